@@ -0,0 +1,53 @@
+(ns ccw.builder.dependencies-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [ccw.builder.dependencies :refer [required-namespaces]])
+  (:import [ccw.builder NamespaceGraph]))
+
+(deftest test-required-namespaces
+  (testing "required-namespaces"
+    (testing "returns the namespaces of symbol and vector libspecs"
+      (is (= ["a.b" "c.d"] (required-namespaces "(ns foo (:require [a.b :as b] c.d))"))))
+    (testing "expands prefix lists"
+      (is (= ["e.f" "e.g"] (required-namespaces "(ns foo (:require (e f [g :as gg])))"))))
+    (testing "includes :use clauses, once per namespace"
+      (is (= ["a" "h" "i"] (required-namespaces "(ns foo (:require a) (:use a h [i :only [j]]))"))))
+    (testing "ignores the forms before the ns form"
+      (is (= ["bar"] (required-namespaces ";; comment\n(println 1)\n(ns foo (:require bar))"))))
+    (testing "returns an empty vector if there is no ns form"
+      (is (= [] (required-namespaces "(println 1)"))))
+    (testing "returns an empty vector if the ns form cannot be read"
+      (is (= [] (required-namespaces "(ns foo (:require bar")))
+      (is (= [] (required-namespaces "(ns foo (:require #=(bar)))"))))))
+
+(defn- graph
+  "NamespaceGraph of the namespaces of deps, a map of namespace names to the
+   names of the namespaces they require"
+  [deps]
+  (let [g (NamespaceGraph.)]
+    (doseq [[ns required] deps]
+      (.setDependencies g ns required))
+    g))
+
+(deftest test-namespace-graph
+  (let [g (graph {"a" []
+                  "b" ["a"]
+                  "c" ["b" "clojure.string"]
+                  "d" ["a"]
+                  "e" []})]
+    (testing "withDependents"
+      (testing "returns the namespaces and their transitive dependents"
+        (is (= #{"a" "b" "c" "d"} (set (.withDependents g ["a"]))))
+        (is (= #{"b" "c"} (set (.withDependents g ["b"])))))
+      (testing "ignores the namespaces which are not in the graph"
+        (is (= #{} (set (.withDependents g ["clojure.string" "x"]))))))
+    (testing "waves"
+      (testing "puts namespaces after the namespaces they depend on"
+        (is (= [["a"] ["b" "d"] ["c"]] (.waves g ["c" "b" "a" "d"]))))
+      (testing "ignores dependencies outside of the compiled namespaces"
+        (is (= [["c" "d" "e"]] (.waves g ["c" "d" "e"]))))))
+  (let [g (graph {"x" ["y"] "y" ["x"] "s" ["s"]})]
+    (testing "waves"
+      (testing "breaks dependency cycles in the order of the namespaces"
+        (is (= [["y"] ["x"]] (.waves g ["y" "x"]))))
+      (testing "ignores self dependencies"
+        (is (= [["s"]] (.waves g ["s"])))))))
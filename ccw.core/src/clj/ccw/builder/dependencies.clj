@@ -0,0 +1,51 @@
+(ns ^{:doc
+      "Dependencies between the namespaces of a project, as declared by
+       the :require and :use clauses of their ns forms."}
+  ccw.builder.dependencies
+  (:import [java.io PushbackReader StringReader]))
+
+(defn- read-ns-form
+  "The first ns form of source-text, or nil if there is none or it cannot
+   be read"
+  [source-text]
+  (try
+    (binding [*read-eval* false
+              *default-data-reader-fn* (fn [tag value] value)]
+      (let [r (PushbackReader. (StringReader. source-text))]
+        (loop []
+          (let [form (read r false ::eof)]
+            (cond
+              (= ::eof form) nil
+              (and (seq? form) (= 'ns (first form))) form
+              :else (recur))))))
+    (catch Exception e
+      nil)))
+
+(defn- libspec-namespaces
+  "Names of the namespaces of a :require or :use libspec, which can be a
+   symbol, a vector with options, or a prefix list"
+  [spec]
+  (cond
+    (symbol? spec)
+      [(name spec)]
+    (and (sequential? spec) (symbol? (first spec)))
+      (let [[prefix & more] spec]
+        (if (and (seq more) (not (keyword? (first more))))
+          (for [s more
+                :let [s (if (sequential? s) (first s) s)]
+                :when (symbol? s)]
+            (str prefix "." s))
+          [(name prefix)]))
+    :else
+      []))
+
+(defn required-namespaces
+  "Names of the namespaces required (or used) by the ns form of
+   source-text, or an empty vector if it has no readable ns form"
+  [source-text]
+  (->> (rest (read-ns-form source-text))
+    (filter #(and (seq? %) (#{:require :use} (first %))))
+    (mapcat rest)
+    (mapcat libspec-namespaces)
+    distinct
+    vec))
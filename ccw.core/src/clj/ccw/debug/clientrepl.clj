@@ -89,6 +89,39 @@
 (defn core-symbol-type [s-name]
   (first (filter identity (map #(symbol-type % s-name) clojure-core-namespaces))))
   
+(defn core-symbol-type-and-ns
+  "Same as core-symbol-type, but returns [symbol-type namespace-name], namespace-name
+   being the name of the namespace s-name has been resolved in. nil if not found."
+  [s-name]
+  (let [[n _] (ns-sym s-name)]
+    (first
+      (keep #(when-let [t (symbol-type % s-name)]
+               [t (if (= "" n) % n)])
+            clojure-core-namespaces))))
+
+(defn core-symbol-types
+  "Map of the names of the special forms and of the public vars of the (loaded)
+   clojure core namespaces to [symbol-type namespace-name].
+   As for core-symbol-type, a name defined in several namespaces is resolved
+   in the first one of clojure-core-namespaces."
+  []
+  (let [specials (into {} (for [s (keys clojure.lang.Compiler/specials)]
+                            [(str s) [:SPECIAL_FORM "clojure.core"]]))]
+    (reduce
+      (fn [m ns-name]
+        (if-let [ns (find-ns (symbol ns-name))]
+          (reduce
+            (fn [m sym]
+              (let [n (str sym)]
+                (if-let [t (and (not (contains? m n)) (symbol-type ns-name n))]
+                  (assoc m n [t ns-name])
+                  m)))
+            m
+            (keys (ns-publics ns)))
+          m))
+      specials
+      clojure-core-namespaces)))
+
 ; FUNCTION, MACRO, SPECIAL_FORM, GLOBAL_VAR
 (defn clojure-symbol-types [] 
 	(let [namespaces (map find-ns clojure-core-namespaces)]
@@ -14,13 +14,13 @@
        TODO: code needs more refactoring (could be more DRY)
       "}
      ccw.editors.clojure.ClojureTopLevelFormsDamagerImpl
-  (:use [paredit.utils :as utils])
   (:import [org.eclipse.jface.text IRegion ITypedRegion DocumentEvent Region
                                    IDocument]
            [ccw.editors.clojure ClojureTopLevelFormsDamager IClojureEditor])
   (:require [ccw.editors.clojure.editor-support :as editor]
             [paredit.parser :as p]
-            [ccw.core.trace :as t]))
+            [ccw.core.trace :as t]
+            [ccw.swt :as swt]))
 
 #_(set! *warn-on-reflection* true)
 
@@ -36,32 +36,82 @@
 (defn setDocument [^ClojureTopLevelFormsDamager this document]
   (dosync (alter (.state this) assoc :document document)))
 
-(defn parse-tree-get [parse-tree idx]
-  (t/format :syntax-color/damager "parse-tree-get[idx:%s, parse-tree:%s]" idx parse-tree)
-  (try (let [offset ((:content-cumulative-count parse-tree) idx)
-             length (:count ((:content parse-tree) idx))]
-         [offset (+ offset length)])
-    (catch Exception e (t/trace :syntax-color/damager (str "parse-tree-get:" idx) e) (throw e))))
-
-(defn parse-tree-count [parse-tree] (count (:content parse-tree)))
-
 (defn parse-tree-content-range [parse-tree text-offset text-length]
   (t/format :syntax-color/damager "parse-tree-content-range [text-offset text-length]: %s" [text-offset text-length])
-  (t/format :syntax-color/damager "parse-tree:%s" parse-tree)
-  (let [start-idx (bin-search [parse-tree-get parse-tree-count]
-                              parse-tree 
-                              (partial range-contains-in-ex
-                                       text-offset))
-        stop-idx  (bin-search [parse-tree-get parse-tree-count]
-                              parse-tree 
-                              (partial range-contains-ex-in 
-                                       (+ text-offset 
-                                          text-length)))]
-    [start-idx stop-idx]))
+  (p/top-level-forms-range parse-tree text-offset text-length))
+
+(defn- document-length [this]
+  (-> this editor .getDocument .getLength))
+
+(defn- extend-range
+  "Range [offset length] of the document covering range (if any) and the
+   change of event, once event is applied"
+  [range ^DocumentEvent event]
+  (let [offset (.getOffset event)
+        length (.getLength event)
+        text-length (.length (or (.getText event) ""))]
+    (if-let [[start range-length] range]
+      (let [new-start (min start offset)
+            end (max (+ start range-length) (+ offset length))]
+        [new-start (- (+ end (- text-length length)) new-start)])
+      [offset text-length])))
+
+(declare repair-deferred!)
+
+(defn- schedule-repair!
+  "Wait in the background for the parse tree to catch up with the document,
+   then repair the deferred range"
+  [this]
+  (future
+    (try
+      (-> this editor .getParseState)
+      (catch Exception e
+        (t/trace :syntax-color/damager "Error while waiting for the parse tree" e)))
+    (swt/doasync (repair-deferred! this))))
+
+(defn- repair-deferred!
+  "Repair the presentation of the top level forms covering the deferred
+   range, if the parse tree has caught up with the document. Otherwise, wait
+   again. Must be called from the UI thread."
+  [this]
+  (let [parse-state (-> this editor .getLastParseState)]
+    (if-not (:current? parse-state)
+      (schedule-repair! this)
+      (when-let [[start length] (dosync
+                                  (let [deferred (:deferred (state-val this))]
+                                    (alter (.state this) dissoc :deferred)
+                                    deferred))]
+        (let [[offset length] (or (some-> (editor/getParseTree parse-state)
+                                    (p/covering-region start length))
+                                  [0 (document-length this)])]
+          (t/format :syntax-color/damager "repairing deferred damage region: [start-offset:%s, length:%s]" offset length)
+          (-> this editor (.invalidateTextPresentation offset length)))))))
+
+(defn- defer-damage!
+  "Remember the change of event, so that it gets repaired once the parse
+   tree has caught up with the document"
+  [this ^DocumentEvent event]
+  (let [schedule? (dosync
+                    (let [deferred (:deferred (state-val this))]
+                      (alter (.state this) assoc :deferred (extend-range deferred event))
+                      (nil? deferred)))]
+    (when schedule?
+      (schedule-repair! this))))
+
+(defn- shift-deferred!
+  "Keep the deferred range, if any, in sync with the document"
+  [this event]
+  (dosync
+    (when-let [deferred (:deferred (state-val this))]
+      (alter (.state this) assoc :deferred (extend-range deferred event)))))
 
 (defn getDamageRegion 
   "Creates a damaged region by merging the regions of the top level forms (tlfs)
-   (so children of the parse tree root node) which contain the event changes"
+   (so children of the parse tree root node) which contain the event changes
+   (see paredit.parser/damaged-region).
+   Never waits for the parse pipeline: if the last parse tree does not
+   include event yet, an empty region is returned, and the damage is repaired
+   once the parse tree has caught up with the document."
   [this
    ^ITypedRegion partition
    ^DocumentEvent event
@@ -71,46 +121,31 @@
     (.getOffset event)
     (.getLength event)
     (.length (.getText event)))
-  (if  (.isForceRepair (editor this))
-    (Region. 0 (-> this editor .getDocument .get .length))
-    (let [previous-parse-tree (-> this editor .getPreviousParseTree)
-        parse-tree (-> this editor .getParseState (editor/getParseTree))
-        [start-offset 
-         stop-offset] (if previous-parse-tree
-                        (do
-                          (t/trace :syntax-color/damager "using previous-parse-tree")
-                          (let  [[start-index stop-index] (parse-tree-content-range 
-                                                            previous-parse-tree
-                                                            (.getOffset event)   ; "#_(a)" et suppression de #
-                                                            ; "#_((a)(b))" et suppression de #_(
-                                                            (.getLength event))]
-                            (t/format :syntax-color/damager "old [start-index stop-index]: %s" [start-index stop-index])
-                            (if (and start-index stop-index)
-                              (do
-                                [((:content-cumulative-count previous-parse-tree) start-index)
-                                 (+
-                                   ((:content-cumulative-count previous-parse-tree) start-index)
-                                   (reduce + (map :count (subvec (:content previous-parse-tree) start-index (inc stop-index)))))])
-                              [0 (+ (-> this state-val ^IDocument (:document) .get .length) (.getLength event) (- (.length ^String (.getText event))))])))
-                        (do
-                          (t/trace :syntax-color/damager "using default values")
-                          [0 0]))
-        _            (t/format :syntax-color/damager "[start-offset stop-offset]: %s" [start-offset stop-offset])]
-    (let [[start-index 
-           stop-index] (parse-tree-content-range 
-                         parse-tree
-                         start-offset   ; "#_(a)" et suppression de #
-                         ; "#_((a)(b))" et suppression de #_(
-                         (+ stop-offset (- start-offset) (.length ^String (.getText event)) (- (.getLength event))))]
-      (t/format :syntax-color/damager "[start-index stop-index]: %s" [start-index stop-index])
-      (if (and start-index stop-index)
-        (let [start-offset ((:content-cumulative-count parse-tree) start-index)
-              stop-offset  (reduce + (map :count (subvec (:content parse-tree) start-index (inc stop-index))))]
-          (t/format :syntax-color/damager "final computed damage region: [start-offset:%s"  ", stop-offset:%s]" start-offset stop-offset)
-          (Region. start-offset stop-offset)) ; TODO suboptimal, we could go to content-cumulative count of ...
+  (let [parse-state (-> this editor .getLastParseState)]
+    (cond
+      (.isForceRepair (editor this))
+        (Region. 0 (document-length this))
+      (not (:current? parse-state))
         (do
-          (t/trace :syntax-color/damager "damaged region: [start-offset:0, stop-offset:0]")
-          (Region. 0 0))))))) 
+          (t/format :syntax-color/damager "parse tree not up to date, deferring damage")
+          (defer-damage! this event)
+          (Region. (.getOffset event) 0))
+      :else
+        (do
+          (shift-deferred! this event)
+          ;; the pipeline may have coalesced several edits since the previous
+          ;; parse tree: the damage covers all of them (see :edit-range)
+          (if-let [[edit-offset edit-length text-length] (:edit-range parse-state)]
+            (let [previous-length (+ (:length parse-state) edit-length (- text-length))
+                  [offset length] (p/damaged-region (:previous-parse-tree parse-state)
+                                                    (editor/getParseTree parse-state)
+                                                    previous-length
+                                                    edit-offset
+                                                    edit-length
+                                                    text-length)]
+              (t/format :syntax-color/damager "final computed damage region: [start-offset:%s, length:%s]" offset length)
+              (Region. offset length))
+            (Region. 0 (document-length this)))))))
 
 (defn getTokensSeq 
   "Given a damaged region created by getDamageRegion, finds back the start index in the
@@ -124,4 +159,24 @@
     (let [s (concat (mapcat #((:abstract-node %) p/tokens-view) (subvec (:content parse-tree) start-index (inc stop-index))) 
                     (list {:token-type :eof :token-length 0}) ;; from paredit.parser/token
                     )]
-      s)))
\ No newline at end of file
+      s)))
+(defn getPackedTokens
+  "Same as getTokensSeq, but writes the tokens as packed longs
+   (see paredit.parser/packed-tokens) into buf, and the symbol texts into
+   texts, which are reused when possible.
+   Return [tokens-array texts-array tokens-count].
+   An empty region (parse-tree can then be nil) only gets the :eof token."
+  [parse-tree offset length buf texts]
+  (if (zero? length)
+    (p/packed-tokens buf texts [])
+    (let [[start-index
+           stop-index] (parse-tree-content-range
+                         parse-tree
+                         offset
+                         length)]
+      (p/packed-tokens buf texts (subvec (:content parse-tree) start-index (inc stop-index))))))
+
+(defn packedTokenTypes
+  "Token types of packed tokens, indexed by their ordinal"
+  []
+  (into-array clojure.lang.Keyword p/packed-token-types))
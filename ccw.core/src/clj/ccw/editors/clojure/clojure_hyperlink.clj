@@ -2,14 +2,13 @@
   (:require [clojure.zip :as z]
             [clojure.string :as str]
             [paredit.loc-utils :as lu]
-            [clojure.tools.nrepl :as repl]
             [ccw.editors.clojure.editor-support :as ed]
+            [ccw.repl.tooling :as tooling]
             [ccw.api.hyperlink :as hyperlink])
   (:import  [org.eclipse.jface.text BadLocationException] 
             [ccw.editors.clojure IClojureEditor
                                  ClojureEditorMessages]
-            [ccw                 ClojureCore]
-            [ccw.repl IConnectionClient]))
+            [ccw                 ClojureCore]))
 
 (defn find-decl [^String sym ^IClojureEditor editor]
   (let [split (.split sym "/")
@@ -24,12 +23,9 @@
       (do
         (.setStatusLineErrorMessage editor ClojureEditorMessages/You_need_a_running_repl)
         nil)
-      (let [[ [file ^String line sym ns :as fds] ] (.withConnection safeConnection
-                                                     (reify IConnectionClient
-                                                       (withConnection [this connection]
-                                                         (let [client (.client connection)]
-                                                           (repl/response-values (repl/message client {:op :eval :code command})))))
-                                                     1000)]
+      (let [[ [file ^String line sym ns :as fds] ] @(tooling/send-code safeConnection command
+                                                       :timeout 1000
+                                                       :feature "hyperlink")]
         (if (every? str/blank? [file line ns])
           (do
             (.setStatusLineErrorMessage editor ClojureEditorMessages/Cannot_find_declaration)
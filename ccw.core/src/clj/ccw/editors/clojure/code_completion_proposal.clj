@@ -100,7 +100,7 @@
                                     ; because we cannot guarantee the code will be interpreted
                                     ; by the right back-end (clojure or clojurescript)
                                     ; :session (.getSessionId repl)
-                                    ))]
+                                    :feature "completion"))]
               response))))
 
 (defmethod find-suggestions "complete"
@@ -114,7 +114,8 @@
                                     {"op" "complete"
                                      "symbol" prefix
                                      "ns" current-namespace
-                                     "session"  (.getSessionId repl)}))]
+                                     "session"  (.getSessionId repl)}
+                                    :feature "completion"))]
               (when-let [completions
                          (seq (->>
                                 (:completions response)
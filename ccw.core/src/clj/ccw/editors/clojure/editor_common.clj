@@ -8,7 +8,8 @@
             [clojure.zip :as z]
             [ccw.core.doc-utils :as doc]
             [ccw.core.trace :as t]
-            [ccw.editors.clojure.editor-support :as editor])
+            [ccw.editors.clojure.editor-support :as editor]
+            [ccw.repl.tooling :as tooling])
   (:import [org.eclipse.jface.viewers StyledString
                                       StyledString$Styler]
            [org.eclipse.jface.text.contentassist IContentAssistProcessor
@@ -23,12 +24,14 @@
                                  IMethod
                                  IType]
            [ccw.editors.clojure IClojureEditor]
+           [java.util Collections WeakHashMap]
            [clojure.tools.nrepl Connection]))
 
 (defn offset-loc
-  "Return the zip loc for offset in part"
+  "Return the zip loc for offset in part, in its last parsed state
+   (does not wait for the pending edits to be parsed)"
   [^IClojureEditor part offset]
-  (let [rloc (-> part .getParseState (editor/getParseTree) lu/parsed-root-loc)]
+  (let [rloc (-> part .getLastParseState (editor/getParseTree) lu/parsed-root-loc)]
     (lu/loc-for-offset rloc offset)))
 
 (defn offset-region
@@ -55,61 +58,20 @@
   ([offset-loc] (lu/loc-text (offset-parent-loc offset-loc)))
   ([^IClojureEditor part offset] (lu/loc-text (offset-parent-loc part offset))))
 
-(defn send-message**
-  "Send the message over the nrepl connection. This version is \"bare\", ie it
-   calls into the REPL without timeout protection. If you want to protect the
-   IDE to freeze if e.g. the REPL never times out, call send-message instead."
-  [^Connection safe-connection message]
-  (try
-    (-> safe-connection
-      .getUnsafeConnection
-      .client
-      (repl/message message))
-    (catch Exception e
-      (ccw.CCWPlugin/logError (str "exception while sending message " message " to connection " safe-connection) e)
-      (when (instance? java.net.SocketException e)
-        (.connectionLost safe-connection))
-      nil)))
-
-(defn send-message*
-  "Same as send-message**, but guarded by a client timeout
-   so that Eclipse cannot hang forever.
-   timeout in milliseconds"
-  [safe-connection message & {:keys [timeout] :or {timeout 1000}}]
-  (let [timeout-val (Object.)
-        secure-call (future (send-message** safe-connection message))
-        result (deref secure-call timeout timeout-val)]
-    (if (not= result timeout-val)
-      result
-      (ccw.CCWPlugin/logError (str
-        "timeout while calling send-message** for message "
-        (pr-str message))))))
-
 (defn send-code
-  "Send code represented as String, guarded by a client timeout,
-   see 'send-message* options. Return a responses vector"
-  [safe-connection code & {:keys [session] :as rest}]
-  (let [msg {"op" "eval", "code" code}
-        msg (if-not session msg (assoc msg "session" session))]
-    (when-let [r (apply send-message* safe-connection msg rest)]
-     (repl/response-values r))))
-
-(def timed-out-safe-connections
-  "Keeps the timed out safe-connections in a map of [safe-connection nb-timeouts]"
-  (atom {}))
+  "Send code represented as String with the tooling client of
+   safe-connection, and wait for the result, see 'ccw.repl.tooling/send-code
+   options. Return a response values vector, or nil if the request timed
+   out or failed."
+  [safe-connection code & options]
+  @(apply tooling/send-code safe-connection code options))
 
 (defn send-message
-  "Sends message and keep tracks of safe-connections that have timeouts.
-   When a safe-connection has had 2 timeouts, stop trying to use
-   it and return nil."
-  [safe-connection message & rest]
-  (let [nb-timeouts (@timed-out-safe-connections safe-connection 0)]
-    (when (< nb-timeouts 3)
-      (try
-        (apply send-message* safe-connection message rest)
-        (catch java.util.concurrent.TimeoutException e
-          (t/trace :editor "timeout sending message: %s" message)
-          (swap! timed-out-safe-connections update-in [safe-connection] (fnil inc 0)))))))
+  "Send message with the tooling client of safe-connection, and wait for
+   the result, see 'ccw.repl.tooling/send-message options. Return a
+   responses vector, or nil if the request timed out or failed."
+  [safe-connection message & options]
+  @(apply tooling/send-message safe-connection message options))
 
 (defn parse-symbol
   "If loc's node is a symbol, return the symbol String. Otherwise, return nil."
@@ -125,40 +87,217 @@
                          (t/trace :editor (str "available ops at repl: " ops))
                          ops))))
 
-(defmulti find-var-metadata
+(defmulti fetch-var-metadata
+  "Fetch from repl the metadata of var, as resolved from current-namespace.
+   Return a CompletableFuture of the metadata, or of nil."
   (fn [current-namespace repl var]
    (get-repl-available-op! repl "info") ))
 
-(defmethod find-var-metadata :default
+(defmethod fetch-var-metadata :default
   [current-namespace repl var]
-  (when repl
+  (if-not repl
+    (tooling/completed nil)
     (let [safe-connection (.getSafeToolingConnection repl)
           code (format (str "(ccw.debug.serverrepl/var-info "
                               "(clojure.core/ns-resolve "
                                 "(clojure.core/the-ns '%s) '%s))")
                        current-namespace
-                       var)
-          response (first (send-code safe-connection code
-                            ; we do not use session via send-code yet because
-                            ; we cannot distinguish between clojure or clojurescript
-                            ; back-end and adapt appropriately
-                            ;:session (.getSessionId repl)
-                            ))]
-      response)))
-
-(defmethod find-var-metadata "info"
+                       var)]
+      (tooling/then
+        (tooling/send-code safe-connection code
+          ; we do not use session via send-code yet because
+          ; we cannot distinguish between clojure or clojurescript
+          ; back-end and adapt appropriately
+          ;:session (.getSessionId repl)
+          :feature "var-info")
+        first))))
+
+(defn- info-message [current-namespace repl var]
+  {"op" "info"
+   "symbol" var
+   "ns" current-namespace
+   "session" (.getSessionId repl)})
+
+(defn- info-response->metadata [response]
+  (set/rename-keys response {:arglists-str :arglists
+                             :resource :file}))
+
+(defmethod fetch-var-metadata "info"
   [current-namespace repl var]
-  (when repl
-    (let [safe-connection (.getSafeToolingConnection repl)
-          response (-> (first
-                         (send-message safe-connection
-                           {"op" "info"
-                            "symbol" var
-                            "ns" current-namespace
-                            "session" (.getSessionId repl)}))
-                     (set/rename-keys {:arglists-str :arglists
-                                       :resource :file}))]
-      response)))
+  (if-not repl
+    (tooling/completed nil)
+    (let [safe-connection (.getSafeToolingConnection repl)]
+      (tooling/then
+        (tooling/send-message safe-connection
+          (info-message current-namespace repl var)
+          :feature "var-info")
+        #(info-response->metadata (first %))))))
+
+;; Var metadata cache
+;;
+;; The var metadata fetched from a REPL is cached per REPL, namespace and var,
+;; for hovers, context information and code completion. Entries expire since
+;; vars can be redefined from the REPL, and the entries concerning a namespace
+;; are evicted as soon as it is (re)loaded, see namespace-loaded.
+
+(def ^:private var-metadata-ttl
+  "Time in milliseconds during which fetched var metadata is used"
+  60000)
+
+(def ^:private unresolved-var-metadata-ttl
+  "Same as var-metadata-ttl, for vars which could not be resolved"
+  5000)
+
+(def ^:private var-metadata-cache-max-size
+  "Size of a cache above which its expired entries are evicted"
+  4096)
+
+(def ^:private var-metadata-caches
+  "REPLView -> atom of {[namespace-name var-name] {:metadata m, :time t}}.
+   REPLs are weakly held, so that closed REPLs are garbage collected."
+  (Collections/synchronizedMap (WeakHashMap.)))
+
+(defonce ^{:private true
+           :doc "Number of namespace loads so far, see namespace-loaded. Metadata
+                 fetched before a load is not cached once the load is done,
+                 since it may describe the vars as they were before the load."}
+  namespace-loads (atom 0))
+
+(defn- var-metadata-cache [repl]
+  (locking var-metadata-caches
+    (or (.get var-metadata-caches repl)
+        (let [a (atom {})]
+          (.put var-metadata-caches repl a)
+          a))))
+
+(defn- fresh? [{:keys [metadata time]} now]
+  (and time
+       (< (- now time) (if metadata var-metadata-ttl unresolved-var-metadata-ttl))))
+
+(defn- cache-var-metadata!
+  "Cache metadata, fetched when namespace-loads was loads"
+  [cache loads current-namespace var metadata]
+  (let [now (System/currentTimeMillis)]
+    (swap! cache
+      (fn [m]
+        (if (not= loads @namespace-loads)
+          m
+          (let [m (if (< (count m) var-metadata-cache-max-size)
+                    m
+                    (into {} (filter #(fresh? (val %) now) m)))]
+            (assoc m [current-namespace (str var)] {:metadata metadata :time now})))))))
+
+(defn find-var-metadata-async
+  "CompletableFuture of the metadata of var as resolved from
+   current-namespace in repl, or of nil. Cached, see var-metadata-caches."
+  [current-namespace repl var]
+  (if-not repl
+    (tooling/completed nil)
+    (let [cache (var-metadata-cache repl)
+          loads @namespace-loads
+          entry (get @cache [current-namespace (str var)])]
+      (if (fresh? entry (System/currentTimeMillis))
+        (tooling/completed (:metadata entry))
+        (tooling/then (fetch-var-metadata current-namespace repl var)
+          (fn [metadata]
+            (cache-var-metadata! cache loads current-namespace var metadata)
+            metadata))))))
+
+(defn find-var-metadata
+  "Metadata of var as resolved from current-namespace in repl, or nil.
+   Cached, see var-metadata-caches."
+  [current-namespace repl var]
+  @(find-var-metadata-async current-namespace repl var))
+
+(defn namespace-loaded
+  "ns-name has been (re)loaded: evict from the caches of all the REPLs the
+   metadata of the vars of ns-name, and of the vars resolved from ns-name.
+   The metadata being fetched meanwhile will not be cached."
+  [ns-name]
+  (swap! namespace-loads inc)
+  (doseq [cache (locking var-metadata-caches (vec (.values var-metadata-caches)))]
+    (swap! cache
+      (fn [m]
+        (into {} (remove (fn [[[current-namespace _] {:keys [metadata]}]]
+                           (or (= current-namespace ns-name)
+                               (= (some-> metadata :ns str) ns-name)))
+                         m))))))
+
+(def ^:private prefetch-window
+  "Number of characters before and after the hovered offset whose top-level
+   forms have the metadata of their vars prefetched"
+  3000)
+
+(def ^:private prefetch-max-vars
+  "Maximum number of vars prefetched at once"
+  100)
+
+(def ^:private prefetch-max-info-requests
+  "Maximum number of vars prefetched at once with the \"info\" op, which
+   requires one request per var"
+  16)
+
+(defn- top-level-symbol-names
+  "Distinct names of the symbols of the top-level forms of parse-tree which
+   intersect [start end["
+  [parse-tree start end]
+  (let [forms (loop [nodes (seq (:content parse-tree)) offset 0 forms []]
+                (if-let [[node & nodes] nodes]
+                  (let [next-offset (+ offset (if (string? node) (count node) (:count node)))]
+                    (cond
+                      (>= offset end) forms
+                      (<= next-offset start) (recur nodes next-offset forms)
+                      :else (recur nodes next-offset (conj forms node))))
+                  forms))]
+    (->> forms
+      (mapcat #(tree-seq map? :content %))
+      (filter #(= :symbol (:tag %)))
+      (map lu/node-text)
+      distinct)))
+
+(defn- var-infos-code
+  "Code evaluating to the map of var-names to their metadata, as resolved
+   from current-namespace"
+  [current-namespace var-names]
+  (format (str "(clojure.core/let [n (clojure.core/the-ns '%s)]"
+               "  (clojure.core/into {}"
+               "    (clojure.core/for [s '[%s]]"
+               "      [(clojure.core/str s)"
+               "       (try (ccw.debug.serverrepl/var-info (clojure.core/ns-resolve n s))"
+               "         (catch Throwable _ nil))])))")
+    current-namespace
+    (s/join " " var-names)))
+
+(defn prefetch-var-metadata
+  "Fetch in the background the metadata of the vars referenced by the
+   top-level forms of part around offset, and not cached yet, so that the
+   hovers over them do not wait for the REPL."
+  [part offset]
+  (when-let [repl (.getCorrespondingREPL part)]
+    (when-let [current-namespace (.findDeclaringNamespace ^IClojureEditor part)]
+      (let [cache (var-metadata-cache repl)
+            loads @namespace-loads
+            cached @cache
+            now (System/currentTimeMillis)
+            parse-tree (-> ^IClojureEditor part .getLastParseState editor/getParseTree)
+            var-names (->> (top-level-symbol-names parse-tree (- offset prefetch-window) (+ offset prefetch-window))
+                        (remove #(fresh? (get cached [current-namespace %]) now))
+                        (take prefetch-max-vars))
+            safe-connection (.getSafeToolingConnection repl)]
+        (when (and safe-connection (seq var-names))
+          (if (get-repl-available-op! repl "info")
+            (doseq [var-name (take prefetch-max-info-requests var-names)]
+              (tooling/send-message safe-connection (info-message current-namespace repl var-name)
+                :feature "var-info-prefetch"
+                :callback #(when %
+                             (cache-var-metadata! cache loads current-namespace var-name
+                               (info-response->metadata (first %))))))
+            (tooling/send-code safe-connection (var-infos-code current-namespace var-names)
+              :timeout 5000
+              :feature "var-info-prefetch"
+              :callback (fn [[metadata-by-name]]
+                          (doseq [[var-name metadata] metadata-by-name]
+                            (cache-var-metadata! cache loads current-namespace var-name metadata))))))))))
 
 (defn context-message
   "Creates the context message"
@@ -169,32 +308,37 @@
       (or (:arglists callee-metadata) "")
       (doc/slim-doc (:doc callee-metadata)))))
 
-(defmulti expand-macro-form
+(defmulti expand-macro-form-async
   "Multi method which expands a macro form using the middleware
   supported by the input repl. Expander must be a string, no check is
-  performed on the validity."
+  performed on the validity. Returns a CompletableFuture of the
+  expansion, or of nil."
   (fn [repl expander current-namespace form]
     (get-repl-available-op! repl "macroexpand")))
 
-(defmethod expand-macro-form :default
+(defmethod expand-macro-form-async :default
   [repl expander current-namespace form]
-  (when repl
+  (if-not repl
+    (tooling/completed nil)
     (let [safe-connection (.getSafeToolingConnection repl)
           expander-var (cond
                          (= expander "macroexpand-all") "clojure.walk/macroexpand-all"
                          :else "clojure.core/macroexpand")
           code (str "(" expander-var " '" form ")")]
       (t/trace :editor (str "Sending to current repl: " code))
-      (first (send-code safe-connection code
-                            ; we do not use session via send-code yet because
-                            ; we cannot distinguish between clojure or clojurescript
-                            ; back-end and adapt appropriately
-                            ;:session (.getSessionId repl)
-                            )))))
-
-(defmethod expand-macro-form "macroexpand"
+      (tooling/then
+        (tooling/send-code safe-connection code
+          ; we do not use session via send-code yet because
+          ; we cannot distinguish between clojure or clojurescript
+          ; back-end and adapt appropriately
+          ;:session (.getSessionId repl)
+          :feature "macroexpand")
+        first))))
+
+(defmethod expand-macro-form-async "macroexpand"
   [repl expander current-namespace form]
-  (when repl
+  (if-not repl
+    (tooling/completed nil)
     (let [safe-connection (.getSafeToolingConnection repl)
           op-data {"op" "macroexpand"
                    "expander" expander
@@ -203,10 +347,11 @@
                    "session" (.getSessionId repl)
                    "display-namespaces" "tidy"}]
       (t/trace :editor (str "Sending to cider: " op-data))
-      (:expansion (-> (first
-                       (send-message safe-connection op-data))
-                      (set/rename-keys {:arglists-str :arglists
-                                        :resource :file}))))))
+      (tooling/then
+        (tooling/send-message safe-connection op-data :feature "macroexpand")
+        #(:expansion (-> (first %)
+                       (set/rename-keys {:arglists-str :arglists
+                                         :resource :file})))))))
 
 (defn string-literal-body
   "Get the string literal body (without double quotes) for editor
@@ -15,12 +15,23 @@
 
      Related to parse tree and text buffer:
        - the state holds a ref, which is a map containing keys
-         :text                    the full text corresponding to the incremental text buffer
+         :version                 the version of the state: the number of edits and resets
+                                    queued for the parse pipeline (see below) it includes
+         :stamp                   the modification stamp of the document the parse-tree
+                                    corresponds to, or ::pending while an edit is being applied
+         :length                  the length of the text corresponding to the incremental text buffer
+         :text                    the full text, only kept for documents without modification stamps
          :incremental-text-buffer the incrementally editable text buffer
          :previous-parse-tree     the previous parse-tree, or nil if no previous parse-tree
          :parse-tree              the parse-tree related to the :text-buffer
          :build-id                the build id, identifying a \"version\" of the parse-tree
                                     (used for determining deltas between 2 updates)
+         :edits                   the number of edits between :previous-parse-tree and :parse-tree,
+                                    nil if the text buffer has been reset
+         :edit-range              [offset length text-length]: a single edit covering all the
+                                    edits between :previous-parse-tree and :parse-tree,
+                                    nil if the text buffer has been reset
+       - the ref is updated by a background parse pipeline, held in its metadata
    "}
   ccw.editors.clojure.editor-support 
   (:require [paredit.parser :as p]
@@ -32,11 +43,79 @@
             [ccw.core.trace :as t]
             [ccw.swt :as swt])
   (:import ccw.editors.clojure.IClojureEditor
+           [java.util.concurrent Executors ExecutorService ThreadFactory]
+           [org.eclipse.jface.text IDocument IDocumentExtension4]
            org.eclipse.ui.texteditor.SourceViewerDecorationSupport))
 
 #_(set! *warn-on-reflection* true)
 
-(defn- safe-edit-buffer [buffer offset len text final-text]
+(defn- modification-stamp
+  "Return the modification stamp of doc, or nil if doc does not track
+   modification stamps."
+  [doc]
+  (when (instance? IDocumentExtension4 doc)
+    (let [stamp (.getModificationStamp ^IDocumentExtension4 doc)]
+      (when-not (= stamp IDocumentExtension4/UNKNOWN_MODIFICATION_STAMP)
+        stamp))))
+
+(defn- edited-text
+  "Text of doc once the (offset, len, text) edit will have been applied.
+   Only used as a fallback, since it copies the whole document."
+  [^IDocument doc offset len ^String text]
+  (if (neg? len)
+    text
+    (let [offset (int offset), len (int len)]
+      (str (.get doc 0 offset)
+           text
+           (.get doc (+ offset len) (- (.getLength doc) offset len))))))
+
+;; Parse pipeline
+;;
+;; Document edits are not parsed on the UI thread: updateTextBuffer just
+;; queues them, with a version number (incremented for each queued edit or
+;; reset), and the pipeline of the state ref applies them in the background,
+;; on parse-executor. All the edits queued since the last run are applied
+;; to the parsley buffer at once, adjacent insertions (typing, pastes made of
+;; several events) being coalesced into a single parsley edit, and only then
+;; is the parse tree rebuilt. The resulting state, holding its :version, is
+;; then published in the ref.
+;;
+;; Consumers needing the parse tree of the current document (getParseState)
+;; wait for the last queued version to be published. Consumers which can do
+;; with a slightly outdated parse tree (getLastParseState) use the last
+;; published state.
+
+(def ^:private parse-wait-timeout
+  "Maximum time in milliseconds to wait for the pipeline to publish a version.
+   Past it, the parse tree is computed on the caller's thread."
+  5000)
+
+(defonce ^:private parse-executor
+  (Executors/newFixedThreadPool
+    2
+    (reify ThreadFactory
+      (newThread [_ runnable]
+        (doto (Thread. ^Runnable runnable "Clojure editor parser")
+          (.setDaemon true))))))
+
+(defn- new-pipeline []
+  {;; :edits to apply, :version of the last queued edit, :running? true
+   ;; while a task draining the edits is scheduled on parse-executor
+   :queue  (atom {:edits [] :version 0 :running? false})
+   ;; version -> modification stamp of the document once edited
+   :stamps (ref {})
+   ;; notified each time a state is published
+   :lock   (Object.)})
+
+(defn- pipeline [r] (::pipeline (meta r)))
+
+(defn- new-state-ref []
+  (ref nil :meta {::pipeline (new-pipeline)}))
+
+(defn- last-version [r]
+  (:version @(:queue (pipeline r))))
+
+(defn- safe-edit-buffer [buffer offset len text]
   (try
     (p/edit-buffer buffer offset len text)
     (catch Exception e
@@ -44,37 +123,246 @@
         (str "--------------------------------------------------------------------------------" \newline
              "Error while editing parsley buffer. offset:" offset ", len:" len ", text:'" text "'" \newline
              "buffer text:'" (-> buffer (p/buffer-parse-tree 0) lu/node-text) "'"))
-      (p/edit-buffer nil 0 0 final-text))))
+      nil)))
+
+(defn- coalesce-edits
+  "Merge each insertion starting where the previous edit ended into the
+   previous edit"
+  [edits]
+  (reduce
+    (fn [coalesced {:keys [offset len text] :as edit}]
+      (let [previous (peek coalesced)]
+        (if (and previous
+                 (not (:reset-text previous))
+                 (not (:reset-text edit))
+                 (zero? len)
+                 (= offset (+ (:offset previous) (count (:text previous)))))
+          (conj (pop coalesced) (assoc previous :text (str (:text previous) text) :version (:version edit)))
+          (conj coalesced edit))))
+    []
+    edits))
+
+(defn- edit-range
+  "[offset length text-length] of a single edit covering the successive
+   edits, or nil if one of them is a reset"
+  [edits]
+  (reduce
+    (fn [[start old-length new-length :as covering] {:keys [offset len text reset-text]}]
+      (let [text-length (count text)]
+        (cond
+          reset-text       (reduced nil)
+          (nil? covering)  [offset len text-length]
+          :else
+            (let [new-start (min start offset)
+                  end (max (+ start new-length) (+ offset len))]
+              [new-start
+               (- end (- new-length old-length) new-start)
+               (- (+ end (- text-length len)) new-start)]))))
+    nil
+    edits))
+
+(defn- apply-edit
+  "Apply edit to the (partial) state {:buffer :length :text :version}"
+  [state {:keys [offset len text reset-text text-only? version] :as edit}]
+  (cond
+    reset-text
+      (cond-> {:buffer (p/edit-buffer nil 0 -1 reset-text)
+               :length (count reset-text)
+               :text   (when text-only? reset-text)
+               :reset? true
+               :version version}
+        (contains? edit :stamp) (assoc :stamp (:stamp edit)))
+    (:buffer state)
+      (-> state
+        (assoc :buffer (safe-edit-buffer (:buffer state) offset len text)
+               :version version)
+        (update-in [:length] + (- (count text) len))
+        (dissoc :stamp :text))
+    :else ; the buffer has been lost: wait for the next reset
+      (assoc state :version version)))
 
-(defn updateTextBuffer [r final-text offset len text]
-  (let [r (if (nil? r) (ref nil) r), text (or text ""), build-id (if-let [old (:build-id @r)] (inc old) 0)] 
+(defn- publish!
+  "Publish in r the state of its buffer after the edits"
+  [r {:keys [buffer length text version reset?] :as edited} nb-edits edit-range]
+  (let [{:keys [stamps lock]} (pipeline r)
+        ;; only the pipeline changes the parse tree of r, so it can be built
+        ;; outside of the transaction
+        build-id (if-let [old (:build-id @r)] (inc old) 0)
+        parse-tree (when buffer (p/buffer-parse-tree buffer build-id))]
     (dosync
-      (when-not (= final-text (:text @r))
-        (let [buffer (safe-edit-buffer (:incremental-text-buffer @r) offset len text final-text)
-              parse-tree (p/buffer-parse-tree buffer build-id)]
-          (if-not true #_(= final-text (lu/node-text parse-tree)) ;;;;;;;;; TODO remove this potentially huge perf sucker!
+      (let [rv @r
+            stamp (cond
+                    (nil? buffer)        nil ; forces a reset, see up-to-date?
+                    (:text edited)       nil
+                    (contains? edited :stamp) (:stamp edited)
+                    :else                (get @stamps version ::pending))]
+        (alter stamps #(into {} (remove (fn [[v _]] (<= v version)) %)))
+        (ref-set r {:version                 version
+                    :stamp                   stamp
+                    :length                  length
+                    :text                    text
+                    :incremental-text-buffer buffer
+                    :previous-parse-tree     (:parse-tree rv)
+                    :parse-tree              parse-tree
+                    :build-id                build-id
+                    :edits                   (when-not reset? nb-edits)
+                    :edit-range              (when-not reset? edit-range)})))
+    (locking lock (.notifyAll lock))))
+
+(defn- drain
+  "Apply all the queued edits of r, until there are none left"
+  [r]
+  (let [queue (:queue (pipeline r))]
+    (loop []
+      (let [q @queue
+            edits (:edits q)]
+        (cond
+          (seq edits)
+            (if (compare-and-set! queue q (assoc q :edits []))
+              (do
+                (try
+                  (let [rv @r
+                        edited (reduce apply-edit
+                                       {:buffer  (:incremental-text-buffer rv)
+                                        :length  (:length rv)
+                                        :version (:version rv)}
+                                       (coalesce-edits edits))]
+                    (publish! r edited (count edits) (edit-range edits)))
+                  (catch Throwable e
+                    (t/trace :editor "Error while parsing the editor content" e)
+                    (publish! r {:version (:version (peek edits))} 0 nil)))
+                (recur))
+              (recur))
+          (compare-and-set! queue q (assoc q :running? false))
+            nil
+          :else
+            (recur))))))
+
+(defn- submit!
+  "Queue edit, and return its version"
+  [r edit]
+  (let [queue (:queue (pipeline r))]
+    (loop []
+      (let [q @queue
+            version (inc (:version q))
+            new-q (assoc q
+                    :edits (conj (:edits q) (assoc edit :version version))
+                    :version version
+                    :running? true)]
+        (if (compare-and-set! queue q new-q)
+          (do
+            (when-not (:running? q)
+              (.execute ^ExecutorService parse-executor ^Runnable #(drain r)))
+            version)
+          (recur))))))
+
+(defn- await-version
+  "Wait until r holds a state of version at least version, or the timeout
+   expires. Return the state held by r."
+  [r version]
+  (let [^Object lock (:lock (pipeline r))
+        deadline (+ (System/currentTimeMillis) parse-wait-timeout)]
+    (locking lock
+      (loop []
+        (let [rv @r
+              remaining (- deadline (System/currentTimeMillis))]
+          (if (or (>= (:version rv -1) version) (<= remaining 0))
+            rv
             (do
-              (t/trace :editor
-                (str
-                  "Doh! the incremental update did not work well. "
-                  \newline
-                  "offset:" offset ", " "len:" len ", " (str "text:'" text "'")
-                  \newline
-                  "final-text passed as argument:'" final-text "'" ", but text recomputed from parse-tree: '" (lu/node-text parse-tree) "'"
-                  \newline
-                  "What happened ? Will throw away the current buffer and start with a fresh one..."))
-              (let [buffer (p/edit-buffer nil 0 -1 final-text)
-                    parse-tree (p/buffer-parse-tree buffer build-id)]
-                (ref-set r {:text final-text, :incremental-text-buffer buffer, :previous-parse-tree (:parse-tree @r), :parse-tree parse-tree, :build-id build-id})))
-            (ref-set r {:text final-text, :incremental-text-buffer buffer, :previous-parse-tree (:parse-tree @r), :parse-tree parse-tree :build-id build-id}))
-          )))
+              (.wait lock remaining)
+              (recur))))))))
+
+(defn- up-to-date?
+  "Is the parse state rv, of the last queued version, in sync with the
+   current content of doc? Compares modification stamps, so it does not
+   depend on the document size. Only documents which do not track
+   modification stamps fall back to comparing the whole text."
+  [rv ^IDocument doc]
+  (let [stamp (:stamp rv)]
+    (cond
+      (nil? rv)                               false
+      (nil? (:incremental-text-buffer rv))    false
+      (= ::pending stamp)                     true
+      (nil? stamp)                            (= (.get doc) (:text rv))
+      :else                                   (= stamp (modification-stamp doc)))))
+
+(defn- current?
+  "Is rv the state of version, and in sync with the content of doc?"
+  [rv version doc]
+  (and (= version (:version rv)) (up-to-date? rv doc)))
+
+(defn- sync-parse-state
+  "Parse state of doc, computed on the caller's thread"
+  [^IDocument doc]
+  (let [text (.get doc)
+        buffer (p/edit-buffer nil 0 -1 text)]
+    {:incremental-text-buffer buffer
+     :parse-tree (p/buffer-parse-tree buffer 0)}))
+
+(defn- record-stamp!
+  "Record stamp as the modification stamp of the document once version is
+   applied"
+  [r version stamp]
+  (dosync
+    (alter (:stamps (pipeline r)) assoc version stamp)
+    (let [rv @r]
+      (when (and (= version (:version rv)) (= ::pending (:stamp rv)))
+        (alter r assoc :stamp stamp)))))
+
+(defn- last-stamp
+  "Modification stamp of the document as of the last version queued for r,
+   or nil if unknown"
+  [r]
+  (let [version (last-version r)
+        rv @r]
+    (or (get @(:stamps (pipeline r)) version)
+        (when (= version (:version rv))
+          (let [stamp (:stamp rv)]
+            (when-not (= ::pending stamp) stamp))))))
+
+(defn resetTextBuffer
+  "Queue the parse of the whole content of doc from scratch, unless r is
+   already up to date with it. Return r, or a new ref if r is nil."
+  [r ^IDocument doc]
+  (let [r (or r (new-state-ref))]
+    (when-not (current? @r (last-version r) doc)
+      (let [stamp (modification-stamp doc)
+            version (submit! r {:reset-text (.get doc) :stamp stamp :text-only? (nil? stamp)})]
+        (when stamp
+          (record-stamp! r version stamp))))
     r))
 
+(defn updateTextBuffer
+  "Queue the edit which is about to be done on doc (replacing len chars
+   at offset by text) for the parse pipeline. Cost is proportional
+   to the size of the edit, not to the size of the document.
+   The published state stays marked as pending until documentChanged is
+   called with the new modification stamp of doc.
+   If doc has been changed without r being told (its stamp is not the one
+   of the last queued version), the whole edited text is queued instead."
+  [r ^IDocument doc offset len text]
+  (let [r (or r (new-state-ref))
+        text (or text "")
+        stamp (modification-stamp doc)]
+    (if (or (nil? @r) (nil? stamp) (not= stamp (last-stamp r)))
+      (submit! r {:reset-text (edited-text doc offset len text)
+                  :text-only? (nil? stamp)})
+      (submit! r {:offset offset :len len :text text}))
+    r))
+
+(defn documentChanged
+  "Called once doc has been modified, to record its new modification stamp
+   for the last queued version."
+  [r ^IDocument doc]
+  (when-let [stamp (and r (modification-stamp doc))]
+    (record-stamp! r (last-version r) stamp))
+  r)
+
 (defn startWatchParseRef [r editor]
   (add-watch r :track-state (fn [_ _ _ new-state] 
                               (.setStructuralEditionPossible editor 
                                 (let [possible? (not (nil? (:parse-tree new-state)))
-                                      possible? (or possible? (.isEmpty ^String (:text new-state)))]
+                                      possible? (or possible? (= 0 (:length new-state)))]
                                   possible?)))))
 
 (defn getParseTree [parse-state] (:parse-tree parse-state))
@@ -83,18 +371,54 @@
   (if-let [parse-tree (getParseTree parse-state)]
     (boolean (:broken? parse-tree))
     true))
-                        
+
+(defn- parse-state-snapshot [rv]
+  {:parse-tree          (:parse-tree rv)
+   :buffer              (:incremental-text-buffer rv)
+   :previous-parse-tree (:previous-parse-tree rv)
+   :version             (:version rv)
+   :length              (:length rv)
+   :edits               (:edits rv)
+   :edit-range          (:edit-range rv)})
+
 (defn getParseState 
-  "text is passed to check if the contents of r is still up to date or not.
-   If not, text will also be used to recompute r on-the-fly."
-  [text r]
-  (let [rv @r] 
-    (if (= text (:text rv))
-      {:parse-tree (:parse-tree rv), :buffer (:incremental-text-buffer rv)}
-      (do
-        (t/trace :editor (str "cached parse-tree miss: expected text='" (:text rv) "'" ", text received: '" text "'"))
-        (updateTextBuffer r text 0 -1 text)
-        (recur text r)))))
+  "Parse state of the current content of doc: waits for the pipeline of r
+   to publish the last queued version, then checks it is still up to date
+   with doc by comparing modification stamps.
+   If not, doc will also be used to recompute r.
+   The returned map holds the :parse-tree and :buffer, the :previous-parse-tree,
+   the number of :edits since it and their :edit-range (nil after a reset),
+   and :current? (always true, see getLastParseState)."
+  [^IDocument doc r]
+  (let [version (last-version r)
+        rv (await-version r version)]
+    (assoc
+      (cond
+        (current? rv version doc)
+          (parse-state-snapshot rv)
+        (< (:version rv -1) version)
+          (do
+            (t/trace :editor (str "parse pipeline timeout: published version=" (:version rv) ", last version: " version))
+            (sync-parse-state doc))
+        :else
+          (do
+            (t/trace :editor (str "cached parse-tree miss: expected stamp=" (:stamp rv) ", document stamp: " (modification-stamp doc)))
+            (resetTextBuffer r doc)
+            (let [version (last-version r)
+                  rv (await-version r version)]
+              (if (current? rv version doc)
+                (parse-state-snapshot rv)
+                (sync-parse-state doc)))))
+      :current? true)))
+
+(defn getLastParseState
+  "Last parse state published by the pipeline of r, without waiting for the
+   queued edits: may lag behind the document. Same keys as getParseState,
+   plus :current?, true if no edit has been queued since."
+  [r]
+  (let [rv @r]
+    (assoc (parse-state-snapshot rv)
+           :current? (= (:version rv) (last-version r)))))
 
 (defn top-level-code-form 
   "Return the top level form which corresponds to code for the current offset" 
@@ -104,8 +428,6 @@
           top-level-loc (static-analysis/top-level-code-form root-loc offset)]
       (lu/loc-text top-level-loc))))
 
-;; Now, I don't like the fact that getting the current and the previous parse tree may lead to incorrect code
-;; since they both are dereferencing a ref instead of decomposing a consistent snapshot of a ref
 (defn getPreviousParseTree 
   [r]
   (:previous-parse-tree @r))
@@ -50,9 +50,16 @@
            ccw.core.StaticStrings
            [ccw.editors.clojure ClojureEditorMessages
                                 IClojureEditor]
-           [ccw.editors.clojure.hovers HoverModel
+           [ccw.editors.clojure.hovers AsyncHoverInput
+                                       HoverModel
                                        HoverDescriptor
-                                       IClojureHover]
+                                       IClojureHover
+                                       Messages]
+           [java.util.concurrent CompletableFuture
+                                 Future
+                                 TimeUnit
+                                 TimeoutException]
+           java.util.function.Consumer
            ccw.util.UiUtils
            ccw.preferences.PreferenceConstants
            ccw.TraceOptions)
@@ -66,6 +73,7 @@
             [ccw.editors.clojure.editor-support :refer [source-viewer
                                                         set-status-line-error-msg-async]]
             [ccw.core.trace :refer [trace]]
+            [ccw.repl.tooling :as tooling]
             [ccw.extensions :refer [configuration-elements
                                     attributes->map
                                     element->map
@@ -326,6 +334,49 @@
   (when-not (blank? html-string)
     (hover-prepend-prolog html-string)))
 
+(def ^{:private true :doc "Time in milliseconds during which a hover waits for
+  its html, before displaying a placeholder instead."}
+  hover-wait-millis 200)
+
+(defn cancel-pending-hover!
+  "Cancels the html computation remembered in pending-hover, an atom
+  containing a [region future] pair, unless it is for region. Called when
+  the mouse moves to another hover region."
+  [pending-hover region]
+  (let [[pending-region ^Future pending-future] @pending-hover]
+    (when (and pending-future (not= pending-region region))
+      (trace :support/hover (str "Cancelling the pending hover of region " pending-region))
+      (.cancel pending-future true)
+      (reset! pending-hover nil))))
+
+(defn async-hover-info
+  "Returns the hover info of region given html-future, the future of its
+  (not yet embellished) html: the embellished html if available within
+  hover-wait-millis, or an AsyncHoverInput displaying a placeholder until
+  it is. The computation is remembered in pending-hover, see
+  cancel-pending-hover!. If there is no html, no-info-msg is displayed in
+  the status line of text-viewer."
+  [pending-hover text-viewer region ^CompletableFuture html-future no-info-msg]
+  (cancel-pending-hover! pending-hover region)
+  (let [^CompletableFuture html-future (tooling/then html-future hover-html)
+        status-line! #(set-status-line-error-msg-async text-viewer (when-not % no-info-msg))
+        _ (reset! pending-hover [region html-future])
+        html (try
+               (.get html-future hover-wait-millis TimeUnit/MILLISECONDS)
+               (catch TimeoutException _ ::pending)
+               (catch Exception _ nil))]
+    (if (= ::pending html)
+      (do
+        (trace :support/hover (str "Hover of region " region " not available yet, displaying a placeholder"))
+        (.thenAccept html-future (reify Consumer (accept [_ html] (status-line! html))))
+        (AsyncHoverInput. html-future (hover-html Messages/Hover_loading)))
+      (do (status-line! html) html))))
+
+(defn- hover-info-blank?
+  "Like blank?, but for hover infos, which can also be AsyncHoverInputs."
+  [info]
+  (and (not (instance? AsyncHoverInput info)) (blank? info)))
+
 ;;;;;;;;;;;;;
 ;;; State ;;;
 ;;;;;;;;;;;;;
@@ -575,7 +626,7 @@
       (getInformation2 [this text-viewer region]
         (trace :support/hover (str (simple-name this) ": region " region))
         (let [[_ info] (hover-result-pair #(.getHoverInfo2 %1 text-viewer region)
-                                          blank?
+                                          hover-info-blank?
                                           (:hovers-by-state-mask @(state-atom))
                                           @previous-hover
                                           (fn [[hover _]] (reset! previous-hover hover)))]
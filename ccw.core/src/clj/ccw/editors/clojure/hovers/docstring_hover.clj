@@ -30,24 +30,27 @@
             [ccw.core.doc-utils :as doc]
             [ccw.core.trace :refer [trace]]
             [ccw.interop :as interop]
+            [ccw.repl.tooling :as tooling]
             [ccw.editors.clojure.hover-support :as hsupport]))
 
 #_(set! *warn-on-reflection* true)
 
 (defn- docstring-hover-html
-  "Return the documentation hover text to be displayed at offset offset
-  for editor. The text can be composed of a subset of html (e.g. <pre>,
-  <i>, etc.). If no info is available or the REPL is nil, it returns
-  nil."
+  "Return a CompletableFuture of the documentation hover text to be
+  displayed at offset offset for editor. The text can be composed of a
+  subset of html (e.g. <pre>, <i>, etc.). If no info is available or the
+  REPL is nil, the future yields nil."
   [^IClojureEditor part offset]
-  (hsupport/hover-html (when-let [parse-symbol (ecommon/parse-symbol (ecommon/offset-loc part offset))]
-                         (let [ns (.findDeclaringNamespace part)
-                               m (ecommon/find-var-metadata ns
-                                                            (.getCorrespondingREPL part)
-                                                            parse-symbol)]
-                           (trace :support/hover (str "ns -> " ns "\n"
-                                                      "find-var-metadata -> " m "\n"))
-                           (doc/var-doc-info-html m)))))
+  (if-let [parse-symbol (ecommon/parse-symbol (ecommon/offset-loc part offset))]
+    (let [ns (.findDeclaringNamespace part)]
+      (tooling/then (ecommon/find-var-metadata-async ns
+                                                     (.getCorrespondingREPL part)
+                                                     parse-symbol)
+                    (fn [m]
+                      (trace :support/hover (str "ns -> " ns "\n"
+                                                 "find-var-metadata -> " m "\n"))
+                      (doc/var-doc-info-html m))))
+    (tooling/completed nil)))
 
 (defn- ensure-control-created
   "Creates the IInformationControlCreator for this hover."
@@ -67,17 +70,19 @@
   "Factory function for creating an ITextHover instance for the editor."
   []
   (let [hover-control (atom nil)
-        hover-enriched-control (atom nil)]
+        hover-enriched-control (atom nil)
+        pending-hover (atom nil)]
     (reify
       IClojureHover
       (getHoverInfo2 [this text-viewer hover-region]
         (trace :support/hover (str "[DOCSTRING-HOVER] " (interop/simple-name this) ".getHoverInfo2 called:\n"
                                    "text-viewer -> " (.toString text-viewer) "\n"
                                    "region -> " (.toString hover-region) "\n"))
-        (let [[i msg] (if-let [info (docstring-hover-html text-viewer (.getOffset hover-region))]
-                        [info nil]
-                        [nil Messages/You_need_a_running_repl_docstring])]
-          (do (esupport/set-status-line-error-msg-async text-viewer msg) i)))
+        (hsupport/async-hover-info pending-hover
+                                   text-viewer
+                                   hover-region
+                                   (docstring-hover-html text-viewer (.getOffset hover-region))
+                                   Messages/You_need_a_running_repl_docstring))
 
       (getHoverControlCreator [this]
         (trace :support/hover (str "[DOCSTRING-HOVER] " (interop/simple-name this) ".getHoverControlCreator called"))
@@ -94,8 +99,11 @@
         (trace :support/hover (str "[DOCSTRING-HOVER] " (interop/simple-name this) ".getHoverRegion called:\n"
                                    "text-viewer -> "(.toString text-viewer) "\n"
                                    "offset -> " offset "\n"))
-        (let [[offset length] (ecommon/offset-region text-viewer offset)]
-          (Region. offset length)))
+        (ecommon/prefetch-var-metadata text-viewer offset)
+        (let [[offset length] (ecommon/offset-region text-viewer offset)
+              region (Region. offset length)]
+          (hsupport/cancel-pending-hover! pending-hover region)
+          region))
 
       (getInformationPresenterControlCreator [this]
         (trace :support/hover (str "[DOCSTRING-HOVER] " (interop/simple-name this) ".getInformationPresenterControlCreator called"))
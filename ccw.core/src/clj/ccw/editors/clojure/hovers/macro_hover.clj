@@ -30,45 +30,49 @@
             [ccw.core.doc-utils :as doc]
             [ccw.core.trace :refer [trace]]
             [ccw.interop :as interop]
+            [ccw.repl.tooling :as tooling]
             [ccw.editors.clojure.hover-support :as hsupport]))
 
 (set! *warn-on-reflection* true)
 
 (defn- macro-expand!
-  "Returns the result of the expasion in a format that
-  ccw.core/doc-utils can understand and render."
+  "Returns a CompletableFuture of the result of the expansion in a format
+  that ccw.core/doc-utils can understand and render, or of nil."
   [expander part offset]
-  (when-let [offset-loc (ecommon/offset-loc part offset)]
+  (if-let [offset-loc (ecommon/offset-loc part offset)]
     (let [parse-symbol (ecommon/parse-symbol offset-loc)
           ns (.findDeclaringNamespace part)
-          metadata (ecommon/find-var-metadata ns
-                                              (.getCorrespondingREPL part)
-                                              parse-symbol)
-          is-macro? (:macro metadata)
-          symbol-ns (:ns metadata) ]
-      (trace :support/hover (str "current-ns -> " ns "\n"
-                                 "parse-symbol -> " parse-symbol "\n"
-                                 "metadata -> " metadata "\n"
-                                 "is-macro? -> " is-macro? "\n"
-                                 "symbol-ns -> " symbol-ns))
-      (when is-macro?
-        (let [form (ecommon/offset-parent-text offset-loc)
-              expansion (ecommon/expand-macro-form (.getCorrespondingREPL part)
-                                                   expander
-                                                   ns
-                                                   form)]
-          (trace :support/hover (str "form -> " form))
-          (trace :support/hover (str "expansion -> " expansion))
-          {:name (str parse-symbol)
-           :ns (str symbol-ns)
-           :macro (str is-macro?)
-           :macro-source (str form)
-           :macro-expanded (str expansion)})))))
+          repl (.getCorrespondingREPL part)]
+      (tooling/then-compose
+        (ecommon/find-var-metadata-async ns repl parse-symbol)
+        (fn [metadata]
+          (let [is-macro? (:macro metadata)
+                symbol-ns (:ns metadata)]
+            (trace :support/hover (str "current-ns -> " ns "\n"
+                                       "parse-symbol -> " parse-symbol "\n"
+                                       "metadata -> " metadata "\n"
+                                       "is-macro? -> " is-macro? "\n"
+                                       "symbol-ns -> " symbol-ns))
+            (if-not is-macro?
+              (tooling/completed nil)
+              (let [form (ecommon/offset-parent-text offset-loc)]
+                (trace :support/hover (str "form -> " form))
+                (tooling/then
+                  (ecommon/expand-macro-form-async repl expander ns form)
+                  (fn [expansion]
+                    (trace :support/hover (str "expansion -> " expansion))
+                    {:name (str parse-symbol)
+                     :ns (str symbol-ns)
+                     :macro (str is-macro?)
+                     :macro-source (str form)
+                     :macro-expanded (str expansion)}))))))))
+    (tooling/completed nil)))
 
 (defn- macro-expand-html!
-  "Returns the result of expanding the macro at the given offset."
+  "Returns a CompletableFuture of the html of the result of expanding the
+  macro at the given offset."
   [expander part offset]
-  (hsupport/hover-html (doc/var-doc-info-html (macro-expand! expander part offset))))
+  (tooling/then (macro-expand! expander part offset) doc/var-doc-info-html))
 
 (defn- ensure-control-created
   "Creates the IInformationControlCreator for this hover."
@@ -92,6 +96,7 @@
   (trace :support/hover (str "[MACRO-HOVER] expander will be: " expander-string-or-keyword))
   (let [hover-control (atom nil)
         hover-enriched-control (atom nil)
+        pending-hover (atom nil)
         expand! (partial macro-expand-html! (name expander-string-or-keyword))]
     (reify
       IClojureHover
@@ -99,10 +104,11 @@
         (trace :support/hover (str "[MACRO-HOVER] " (interop/simple-name this) ".getHoverInfo2 called:\n"
                                    "text-viewer -> " (.toString text-viewer) "\n"
                                    "region -> " (.toString hover-region) "\n"))
-        (let [[i msg] (if-let [info (expand! text-viewer (.getOffset hover-region))]
-                        [info nil]
-                        [nil Messages/You_need_a_running_repl_macro])]
-          (do (esupport/set-status-line-error-msg-async text-viewer msg) i)))
+        (hsupport/async-hover-info pending-hover
+                                   text-viewer
+                                   hover-region
+                                   (expand! text-viewer (.getOffset hover-region))
+                                   Messages/You_need_a_running_repl_macro))
 
       (getHoverControlCreator [this]
         (trace :support/hover (str "[MACRO-HOVER] " (interop/simple-name this) ".getHoverControlCreator called"))
@@ -119,8 +125,10 @@
         (trace :support/hover (str "[MACRO-HOVER] " (interop/simple-name this) ".getHoverRegion called:\n"
                                    "text-viewer -> "(.toString text-viewer) "\n"
                                    "offset -> " offset "\n"))
-        (let [[offset length] (ecommon/offset-region text-viewer offset)]
-          (Region. offset length)))
+        (let [[offset length] (ecommon/offset-region text-viewer offset)
+              region (Region. offset length)]
+          (hsupport/cancel-pending-hover! pending-hover region)
+          region))
 
       (getInformationPresenterControlCreator [this]
         (trace :support/hover (str "[MACRO-HOVER] " (interop/simple-name this) ".getInformationPresenterControlCreator called"))
@@ -0,0 +1,173 @@
+(ns ^{:doc
+      "Snapshots of the vars resolvable from a namespace in a running REPL,
+       used for REPL-aware syntax coloring.
+
+       Snapshots are fetched in the background over the REPL's tooling
+       connection, and cached per REPL and per namespace. Lookups never
+       block on the network: while a snapshot is being fetched, symbols are
+       reported as unknown, and editors which asked for it are redrawn once
+       it is available.
+
+       A snapshot is a map of symbol names to [symbol-type var-namespace-name].
+       When a namespace is reloaded, only the vars coming from this namespace
+       are fetched again."}
+  ccw.editors.clojure.repl-symbols
+  (:require [ccw.editors.clojure.editor-common :as common]
+            [ccw.core.trace :as t]
+            [ccw.swt :as swt])
+  (:import [java.util Collections WeakHashMap]
+           [java.util.concurrent Executors ThreadFactory]
+           [ccw.editors.clojure IClojureEditor]
+           [ccw.repl REPLView]))
+
+(def ^:private fetch-timeout
+  "Timeout in milliseconds for fetching a namespace snapshot"
+  5000)
+
+(def ^:private retry-delay
+  "Delay in milliseconds before fetching again a snapshot whose fetch failed"
+  10000)
+
+(def ^:private snapshots
+  "REPLView -> atom of {namespace-name snapshot-state}, a snapshot-state being
+   {:symbols snapshot-or-nil, :pending #{editors to redraw once fetched},
+    :failed-at time of the last failed fetch}.
+   REPLs are weakly held, so that closed REPLs are garbage collected."
+  (Collections/synchronizedMap (WeakHashMap.)))
+
+(defonce ^:private fetch-executor
+  ;; A single thread: lookups never wait for it, and it prevents fetches
+  ;; from piling up on a slow REPL
+  (Executors/newSingleThreadExecutor
+    (reify ThreadFactory
+      (newThread [_ runnable]
+        (doto (Thread. ^Runnable runnable "Clojure editor REPL symbols fetcher")
+          (.setDaemon true))))))
+
+(defn- repl-snapshots [repl]
+  (locking snapshots
+    (or (.get snapshots repl)
+        (let [a (atom {})]
+          (.put snapshots repl a)
+          a))))
+
+(defn- snapshot-code
+  "Code evaluated in the REPL for fetching the vars of namespace ns-name.
+   When from-ns-name is provided, only the vars interned in this namespace
+   are returned."
+  [ns-name from-ns-name]
+  (format
+    (str "(clojure.core/when-let [n (clojure.core/find-ns '%s)]"
+         "  (clojure.core/into {}"
+         "    (clojure.core/for [[s v] (clojure.core/ns-map n)"
+         "                       :when (clojure.core/var? v)"
+         "                       :let [var-ns (clojure.core/str (.-ns ^clojure.lang.Var v))"
+         "                             m (clojure.core/meta v)"
+         "                             t (clojure.core/cond"
+         "                                 (:macro m) :MACRO"
+         "                                 (:special-form m) :SPECIAL_FORM"
+         "                                 (:dynamic m) :GLOBAL_VAR"
+         "                                 (clojure.core/and (clojure.core/bound? v)"
+         "                                                   (clojure.core/fn? (clojure.core/deref v))) :FUNCTION)]"
+         "                       :when (clojure.core/and t %s)]"
+         "      [(clojure.core/str s) [t var-ns]])))")
+    ns-name
+    (if from-ns-name (str "(clojure.core/= var-ns \"" from-ns-name "\")") "true")))
+
+(defn- fetch [^REPLView repl ns-name from-ns-name]
+  (try
+    (when-let [safe-connection (and (not (.isDisposed repl)) (.getSafeToolingConnection repl))]
+      (let [result (first (common/send-code safe-connection
+                            (snapshot-code ns-name from-ns-name)
+                            :timeout fetch-timeout
+                            :feature "syntax-coloring"))]
+        (when (map? result) result)))
+    (catch Exception e
+      (t/trace :editor (str "Error while fetching REPL symbols of namespace " ns-name) e)
+      nil)))
+
+(defn- redraw [editors]
+  (when (seq editors)
+    (swt/doasync
+      (doseq [^IClojureEditor editor editors]
+        (.markDamagedAndRedraw editor)))))
+
+(defn- merge-from-ns
+  "Replace in symbols the entries coming from from-ns-name by the entries of fetched"
+  [symbols from-ns-name fetched]
+  (merge
+    (into {} (remove (fn [[_ [_ var-ns]]] (= var-ns from-ns-name)) symbols))
+    fetched))
+
+(defn- swap-vals!*
+  "Like swap!, but return [old-value new-value]"
+  [a f]
+  (loop []
+    (let [old @a
+          new (f old)]
+      (if (compare-and-set! a old new)
+        [old new]
+        (recur)))))
+
+(defn- schedule-fetch!
+  "Fetch (part of) the snapshot of ns-name in the background, then apply
+   (update-fn current-symbols fetched-symbols) to it.
+   If the fetch fails, the snapshot is left as is, and marked as failed so
+   that a new fetch is only scheduled after retry-delay."
+  [repl ns-name from-ns-name update-fn]
+  (let [state (repl-snapshots repl)]
+    (.execute fetch-executor
+      (fn []
+        (let [fetched (fetch repl ns-name from-ns-name)
+              [old _] (swap-vals!* state
+                        (fn [m]
+                          (if fetched
+                            (-> m
+                              (update-in [ns-name :symbols] update-fn fetched)
+                              (update-in [ns-name] dissoc :pending :failed-at))
+                            (-> m
+                              (update-in [ns-name] dissoc :pending)
+                              (assoc-in [ns-name :failed-at] (System/currentTimeMillis))))))]
+          (if fetched
+            (do
+              (t/format :editor "REPL symbols of namespace %s fetched (from namespace %s): %s symbols"
+                ns-name from-ns-name (count fetched))
+              (redraw (get-in old [ns-name :pending])))
+            (t/format :editor "REPL symbols of namespace %s (from namespace %s) could not be fetched"
+              ns-name from-ns-name)))))))
+
+(defn- retry-delay-elapsed? [snapshot]
+  (if-let [failed-at (:failed-at snapshot)]
+    (>= (- (System/currentTimeMillis) failed-at) retry-delay)
+    true))
+
+(defn symbol-type
+  "Type (:FUNCTION, :MACRO, :SPECIAL_FORM or :GLOBAL_VAR) of symbol-name as
+   resolved from namespace ns-name in repl, or nil if unknown.
+   Never blocks: if the snapshot of ns-name is not available yet, its fetch
+   is scheduled and editor will be redrawn when it is available."
+  [^REPLView repl ns-name symbol-name ^IClojureEditor editor]
+  (when (and repl ns-name)
+    (let [state (repl-snapshots repl)
+          snapshot (get @state ns-name)]
+      (cond
+        (:symbols snapshot)
+          (first (get (:symbols snapshot) symbol-name))
+        (retry-delay-elapsed? snapshot)
+          (let [[old _] (swap-vals!* state #(update-in % [ns-name :pending] (fnil conj #{}) editor))]
+            (when-not (contains? (get old ns-name) :pending)
+              (schedule-fetch! repl ns-name nil (fn [_ fetched] fetched)))
+            nil)
+        :else
+          nil))))
+
+(defn namespace-loaded
+  "ns-name has been (re)loaded: refresh, in all the REPLs, the snapshots
+   of ns-name, and the entries of the other snapshots coming from ns-name."
+  [ns-name]
+  (doseq [[repl state] (locking snapshots (into [] snapshots))
+          [snapshot-ns {:keys [symbols]}] @state
+          :when symbols]
+    (if (= snapshot-ns ns-name)
+      (schedule-fetch! repl ns-name nil (fn [_ fetched] fetched))
+      (schedule-fetch! repl snapshot-ns ns-name #(merge-from-ns %1 ns-name %2)))))
@@ -2,8 +2,6 @@
   (:use [clojure.core.incubator :only [-?> -?>>]])
   (:require [leiningen.core.project :as p]
             [leiningen.core.classpath :as cp]
-            [leiningen.core.user :as lcu]
-            [cemerick.pomegranate.aether :as aether]
             [clojure.string :as str]
             [ccw.eclipse :as e]
             [ccw.jdt :as jdt]
@@ -82,52 +80,6 @@
   (let [entry-list (map library-entry project-dependencies)]
     (make-leiningen-classpath-container entry-list)))
 
-;; copied from lein-ubersource
-(defn- find-transitive-deps
-  [deps repositories]
-  (->> (aether/resolve-dependencies
-        :coordinates deps
-        :repositories repositories)
-      keys
-      set))
-
-;; copied from lein-ubersource
-(defn- resolve-artifact
-  [dep repositories]
-  (->> (find-transitive-deps [dep] repositories)
-      (filter #(= % dep))
-      first))
-
-;; copied from lein-ubersource
-(defn- try-resolve-sources-artifact!
-  [dep repositories]
-  (try
-    (resolve-artifact (concat dep [:classifier "sources"]) repositories)
-    (catch DependencyResolutionException ex
-      nil)))
-
-(defn- artifacts-entry
-  [dep repositories]
-  (let [main (resolve-artifact dep repositories)
-        source (try-resolve-sources-artifact!
-                 (take 2 dep) ; take only id and version, not optional exclusion sections
-                 repositories)]
-    (if source [(-> main meta :file)
-                (-> source meta :file)]
-               nil)))
-
-(defn get-source-map
-  [{:keys [repositories dependencies] :as project} & args]
-  (let [;; we must explicitly call leiningen.core.user/resolve-crendentials, or repositories
-        ;; with credentials like  {:username :env/SOME_ENV} are left as keywords
-        ;; and later down the road, pomegranate calls Aether's Authentication ctor which expects
-        ;; Strings, not keys ... resulting in a runtime exception such as:
-        ;; "No matching ctor found for class org.sonatype.aether.repository.Authentication"
-        ;; See Issue #666 - https://code.google.com/p/counterclockwise/issues/detail?id=666
-        repositories (map (fn [[name settings]] [name (lcu/resolve-credentials settings)]) repositories)
-        dep (find-transitive-deps dependencies repositories)]
-    (into {} (keep #(artifacts-entry % repositories) dep))))
-
 (defn resolve-dependencies
   "ADAPTED FROM LEININGEN-CORE resolve-dependencies.
   Simply delegate regular dependencies to pomegranate. This will
@@ -136,7 +88,9 @@
   logically true, will add the resolved dependencies to Leiningen's
   classpath.
 
-   Returns a set of the dependencies' files."
+   Returns a seq of [file coordinate] for the dependencies' files, coordinate
+   being [group/artifact version], or nil if unknown.
+   The dependency graph is only resolved once: leiningen memoizes it."
   [project-name dependencies-key {:keys [repositories native-path] :as project} & rest]
   (let [deps-paths 
           ; We use eval-in-project or else we may not benefit from the right SSL
@@ -148,10 +102,47 @@
                (let [~'dependencies (apply leiningen.core.classpath/resolve-dependencies
                                            '~dependencies-key
                                            '~project
-                                           '~rest)]
+                                           '~rest)
+                     ~'graph (apply leiningen.core.classpath/get-dependencies
+                                    '~dependencies-key
+                                    '~project
+                                    '~rest)
+                     ~'coordinates (into {}
+                                     (for [~'dep (keys ~'graph)
+                                           :let [~'file (:file (meta ~'dep))]
+                                           :when ~'file]
+                                       [(.getAbsolutePath ~'file) (vec (take 2 ~'dep))]))]
                  ; we serialize paths to Strings so that clojure datastructures can be passed back
-                 (map #(.getAbsolutePath %) ~'dependencies))))]
-    (map #(File. ^String %) deps-paths)))
+                 (map #(let [~'path (.getAbsolutePath %)] [~'path (~'coordinates ~'path)])
+                      ~'dependencies))))]
+    (map (fn [[path coordinate]] [(File. ^String path) coordinate]) deps-paths)))
+
+(defonce ^{:private true
+           :doc "Atom of map of coordinate -> sources jar, for the release
+                 artifacts whose sources jar has been found in the local
+                 repository. Shared by all the projects of the workspace."}
+  sources-jars (atom {}))
+
+(defn- local-sources-jar
+  "Return the sources jar of the artifact jar, if it is in the local
+   repository (next to jar), or nil"
+  [^File jar]
+  (let [name (.getName jar)]
+    (when (.endsWith name ".jar")
+      (u/file-exists?
+        (io/file (.getParentFile jar)
+                 (str (subs name 0 (- (count name) (count ".jar"))) "-sources.jar"))))))
+
+(defn- sources-jar
+  "Return the sources jar of the artifact jar, of coordinate
+   [group/artifact version] (may be nil), or nil if there is none in the
+   local repository. Sources jars are not downloaded."
+  [^File jar coordinate]
+  (or (@sources-jars coordinate)
+      (when-let [sources (local-sources-jar jar)]
+        (when (and coordinate (not (.endsWith (str (second coordinate)) "SNAPSHOT")))
+          (swap! sources-jars assoc coordinate sources))
+        sources)))
 
 (defn ser-dep [path native-path source-attachment-path]
   (let [s {:path (.getAbsolutePath (io/as-file path))
@@ -160,22 +151,27 @@
       (assoc s :source-attachment-path (.getAbsolutePath (io/as-file source-attachment-path)))
       s)))
 
+(defn project-dependencies
+  "Return the dependencies of lein-project, given the result of
+   resolve-dependencies for it, sorted alphabetically via their file name."
+  [lein-project dependencies]
+  (let [default-native-platform-path (u/lein-native-platform-path lein-project)]
+    (t/format :leiningen "default-native-platform-path: %s" default-native-platform-path)
+    (->> dependencies
+      (filter (fn [[^File f _]] (re-find #"\.(jar|zip)$" (.getName f))))
+      (sort-by (fn [[^File f _]] (.getName f)))
+      (map (fn [[f coordinate]]
+             (ser-dep f
+                      default-native-platform-path
+                      (sources-jar f coordinate)
+                      #_(or #_(u/lein-native-dependency-path lein-project f) ;; TODO make this work :-(
+                          default-native-platform-path)))))))
+
 (defn get-project-dependencies
   "Return the dependencies sorted alphabetically via their file name.
    Throws Aether exceptions if a problem occured"
   [project-name lein-project]
-  (let [dependencies (resolve-dependencies project-name :dependencies lein-project)
-        default-native-platform-path (u/lein-native-platform-path lein-project)
-        srcmap (get-source-map lein-project)]
-    (t/format :leiningen "default-native-platform-path: %s" default-native-platform-path)
-    (->> dependencies
-      (filter #(re-find #"\.(jar|zip)$" (.getName ^File %)))
-      (sort-by #(.getName ^File %))
-      (map #(ser-dep %
-                     default-native-platform-path
-                     (get srcmap %)
-                     #_(or #_(u/lein-native-dependency-path lein-project %) ;; TODO make this work :-(
-                         default-native-platform-path))))))
+  (project-dependencies lein-project (resolve-dependencies project-name :dependencies lein-project)))
 
 (defn- delete-container-markers [?project]
   (.deleteMarkers (e/resource ?project) 
@@ -234,6 +230,46 @@
   [project]
   (map deser-dep (load-project-state project ".container")))
 
+(def ^:private resolution-keys
+  "Keys of the project map read by leiningen when resolving its
+   dependencies (see leiningen.core.classpath/get-dependencies), including
+   the ones only supported by some leiningen versions"
+  [:dependencies :managed-dependencies :exclusions :repositories :mirrors
+   :local-repo :offline? :update :checksum :certificates :pedantic?])
+
+(defn dependencies-resolution-key
+  "The part of lein-project its dependencies resolution depends on: two
+   projects with the same key resolve the same dependencies"
+  [lein-project]
+  (select-keys lein-project resolution-keys))
+
+(defn dependencies-fingerprint
+  "Fingerprint of the dependencies deps of lein-project: changes if what
+   their resolution depends on (see dependencies-resolution-key), the
+   profiles or the native path of the effective project map change, or if
+   a jar of deps is updated in the local repository.
+   deps must be sorted as returned by get-project-dependencies."
+  [lein-project deps]
+  (hash [(dependencies-resolution-key lein-project)
+         (select-keys lein-project [:profiles :native-path])
+         (map #(.lastModified (io/as-file (:path %))) deps)]))
+
+(defn save-dependencies-fingerprint
+  "Save on disk (in the Plugin state directory) the fingerprint of the
+   dependencies of project.
+   Writes log and returns nil if save failed, or return the file"
+  [project fingerprint]
+  (save-project-state project ".fingerprint" fingerprint))
+
+(defn load-dependencies-fingerprint
+  "Retrieve from disk (from the Plugin state directory) the fingerprint of
+   the dependencies of project, or nil if there is none.
+   Writes log and returns nil if loading failed."
+  [project]
+  (with-exc-logged
+    (when-let [state-file (-> project (state-file ".fingerprint") u/file-exists?)]
+      (read-string (slurp state-file)))))
+
 (defn- add-container-marker 
   "Delete previous container markers, add new one"
   [?project message]
@@ -353,51 +389,104 @@
   (if-let [target-folder (.getFolder (e/project project-coercible) "target")]
     (.refreshLocal target-folder (IResource/DEPTH_INFINITE) monitor)))
 
-(defn update-project-dependencies
-  "Get the dependencies.
-   If deps fetched ok: sets lein container, save the dependencies list on disk.
+(defn- persisted-dependencies-if-up-to-date
+  "Return the dependencies of java-project persisted on disk if their
+   fingerprint is the one of lein-project, or nil"
+  [java-project lein-project]
+  (when-let [deps (seq (load-project-dependencies java-project))]
+    (let [fingerprint (load-dependencies-fingerprint java-project)]
+      (when (and fingerprint (= fingerprint (dependencies-fingerprint lein-project deps)))
+        deps))))
+
+(defn refresh-project-dependencies
+  "Get the dependencies, in the calling thread, with
+   (resolve-fn project-name lein-project), which defaults to
+   get-project-dependencies.
+   If the dependencies persisted on disk are up to date (see
+   dependencies-fingerprint), and force? is not true: only sets the lein
+   container if it is not set yet.
+   If deps fetched ok: sets lein container, save the dependencies list and
+   their fingerprint on disk.
    If an exception is thrown while fetching deps: report problem markers, 
    do not touch the current lein container.
+   Updating the lein container is done in a background workspace job."
+  [java-project & {:keys [force? resolve-fn] :or {resolve-fn get-project-dependencies}}]
+  (try
+    (let [lein-project (u/lein-project java-project :enhance-fn #(do (t/trace :leiningen %) (dissoc % :hooks)))
+          up-to-date-deps (when-not force? (persisted-dependencies-if-up-to-date java-project lein-project))
+          deps (or up-to-date-deps
+                   (resolve-fn (.getName (e/project java-project)) lein-project))]
+      ;; Here, get-project-dependencies has succeeded or thrown an error
+      ;; it can take a long time, so we do not put it inside the workspace job which blocks on the workspace root
+      (if up-to-date-deps
+        (do
+          (t/format :leiningen "dependencies of project %s are up to date" (e/project-name java-project))
+          (doto
+            (e/workspace-job
+              (format "Upgrade project build path for project %s" (e/project-name java-project))
+              (fn [^IProgressMonitor monitor]
+                (when-not (JavaCore/getClasspathContainer CONTAINER-PATH java-project)
+                  (set-lein-container java-project deps))
+                (delete-container-markers java-project)))
+            (.setUser true)
+            (.setRule (e/workspace-root))
+            (.schedule)))
+        (doto
+          (e/workspace-job
+            (format "Upgrade project build path for project %s" (e/project-name java-project))
+            (fn [^IProgressMonitor monitor]
+              (set-lein-container java-project deps)
+              (delete-container-markers java-project)
+              (save-project-dependencies java-project deps)
+              (save-dependencies-fingerprint java-project (dependencies-fingerprint lein-project deps))
+              (doto ;; we refresh the target folder outside the workspace-root lock
+                (e/workspace-job
+                  (format "Refreshing project %s" (e/project-name java-project))
+                  (fn [^IProgressMonitor monitor]
+                    (refresh-target-folder java-project monitor)))
+                (.setUser true)
+                (.schedule))))
+          (.setUser true)
+          ;; this rule is OK because we know the job needs it and will not take too long
+          (.setRule (e/workspace-root))
+          (.schedule))))
+    (catch Exception e
+      ;; TODO enhance this in the future ... (more accurate problem markers)
+      (let [[jresource message] (resource-message e java-project)
+            project-name (-> java-project e/resource .getName)]
+        (report-container-error
+          jresource
+          (format "Leiningen Managed Dependencies issue: %s" message)
+          e)))))
+
+(defn update-project-dependencies
+  "Get the dependencies, see refresh-project-dependencies.
    Executes in a background workspace job."
-  [java-project] ;; TODO checks
+  [java-project & {:keys [force?]}] ;; TODO checks
   (doto
     (e/workspace-job
       (format "Update project dependencies for project %s" (e/project-name java-project))
       (fn [^IProgressMonitor monitor]
-        (try
-          (let [lein-project (u/lein-project java-project :enhance-fn #(do (t/trace :leiningen %) (dissoc % :hooks)))
-                deps (get-project-dependencies (.getName (e/project java-project)) lein-project)]
-            ;; Here, get-project-dependencies has succeeded or thrown an error
-            ;; it can take a long time, so we do not put it inside the workspace job which blocks on the workspace root
-            (doto
-              (e/workspace-job
-                (format "Upgrade project build path for project %s" (e/project-name java-project))
-                (fn [^IProgressMonitor monitor]
-                  (set-lein-container java-project deps)
-                  (delete-container-markers java-project)
-                  (save-project-dependencies java-project deps)
-                  (doto ;; we refresh the target folder outside the workspace-root lock
-                    (e/workspace-job
-                      (format "Refreshing project %s" (e/project-name java-project))
-                      (fn [^IProgressMonitor monitor]
-                        (refresh-target-folder java-project monitor)))
-                    (.setUser true)
-                    (.schedule))))
-              (.setUser true)
-              ;; this rule is OK because we know the job needs it and will not take too long
-              (.setRule (e/workspace-root))
-              (.schedule)))
-          (catch Exception e
-            ;; TODO enhance this in the future ... (more accurate problem markers)
-            (let [[jresource message] (resource-message e java-project)
-                  project-name (-> java-project e/resource .getName)]
-              (report-container-error
-                jresource
-                (format "Leiningen Managed Dependencies issue: %s" message)
-                e))))))
+        (refresh-project-dependencies java-project :force? force?)))
     (.setUser true)
     (.schedule)))
 
+(defonce ^{:private true
+           :doc "Names of the projects whose container is being initialized
+                 by the workspace startup stage (see ccw.leiningen.startup)"}
+  startup-initializations (atom #{}))
+
+(defn claim-startup-initializations!
+  "Record that the containers of the projects named project-names are being
+   initialized at startup, so that the container initializer does not
+   initialize them too"
+  [project-names]
+  (swap! startup-initializations into project-names))
+
+(defn release-startup-initialization!
+  [project-name]
+  (swap! startup-initializations disj project-name))
+
 (defn has-container? [java-project container-path]
   (let [entries (.getRawClasspath java-project)]
     (some #(and
@@ -419,14 +508,15 @@
     (initialize [container-path, java-project]
       (if-let [deps (seq (load-project-dependencies java-project))]
         (set-lein-container java-project deps)
-        (let [job (e/workspace-job
-                    (str "Initializing classpath container" container-path)
-                    (fn [monitor]
-                      (update-project-dependencies java-project)))] 
-          (doto job
-            (.setUser false)
-            (.schedule))
-          nil)))
+        (when-not (contains? @startup-initializations (e/project-name java-project))
+          (let [job (e/workspace-job
+                      (str "Initializing classpath container" container-path)
+                      (fn [monitor]
+                        (update-project-dependencies java-project)))] 
+            (doto job
+              (.setUser false)
+              (.schedule))
+            nil))))
     
     (canUpdateClasspathContainer [container-path, java-project]
       false)
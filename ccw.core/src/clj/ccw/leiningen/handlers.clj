@@ -44,10 +44,11 @@
      to check it.
    In both cases, the found project must be open, and with the Leiningen nature
    enabled.
-   Calls cpc/update-project-dependencies which will trigger a background job"
+   Calls cpc/update-project-dependencies which will trigger a background job,
+   even if the dependencies are up to date"
   [handler event]
   (when-let [java-project (e/event->java-project event)]
-    (cpc/update-project-dependencies java-project)))
+    (cpc/update-project-dependencies java-project :force? true)))
 
 (defn generic-launch
   "Pre-requisites:
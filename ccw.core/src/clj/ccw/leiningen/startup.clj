@@ -0,0 +1,120 @@
+(ns ^{:doc
+      "Startup stage initializing the Leiningen classpath containers of all
+       the open Leiningen projects of the workspace at once, instead of one
+       after another as JDT asks for them.
+
+       Containers are refreshed in parallel on a bounded pool of workers,
+       with progress reported by a single Job. Projects whose dependencies
+       resolution depends on the same project keys (see
+       ccw.leiningen.classpath-container/dependencies-resolution-key) share
+       a single resolution."}
+  ccw.leiningen.startup
+  (:require [ccw.leiningen.classpath-container :as cpc]
+            [ccw.leiningen.nature :as nature]
+            [ccw.eclipse :as e]
+            [ccw.core.trace :as t])
+  (:import [org.eclipse.core.runtime IProgressMonitor Status]
+           [org.eclipse.core.runtime.jobs Job]
+           [org.eclipse.jdt.core JavaCore]
+           [java.io File]
+           [java.util.concurrent Executors ExecutorService TimeUnit]
+           [java.util.zip ZipEntry ZipFile]))
+
+(t/trace :leiningen "ccw.leiningen.startup load starts")
+
+(def ^:private max-workers
+  "Maximum number of containers refreshed at the same time.
+   Projects without plugins, middleware, hooks or certificates share the
+   pool of lein environments of ccw.leiningen.util, which is smaller: at
+   most max-shared-envs (2) of them are refreshed at the same time, the
+   other workers refreshing projects which have their own environment."
+  4)
+
+(defn- native-jar?
+  "Return true if jar contains native libraries, which leiningen extracts to
+   the native path of the project"
+  [^File jar]
+  (try
+    (with-open [z (ZipFile. jar)]
+      (boolean (some #(.startsWith (.getName ^ZipEntry %) "native/")
+                     (enumeration-seq (.entries z)))))
+    (catch Exception e false)))
+
+(defn- shared-resolver
+  "Return a fn resolving the dependencies of a project, like
+   cpc/get-project-dependencies, but resolving them only once for the
+   projects with the same cpc/dependencies-resolution-key.
+   Dependencies containing native libraries are not shared: they are
+   resolved again for each project, so that native libraries are extracted
+   in each project."
+  []
+  (let [resolutions (atom {})]
+    (fn [project-name lein-project]
+      (let [k (cpc/dependencies-resolution-key lein-project)
+            own (delay (cpc/resolve-dependencies project-name :dependencies lein-project))
+            candidate {:resolved own
+                       :native? (delay (some native-jar? (map first @own)))}
+            shared (get (swap! resolutions #(if (contains? % k) % (assoc % k candidate))) k)
+            resolved (if (or (identical? shared candidate) @(:native? shared))
+                       @own
+                       (do
+                         (t/format :leiningen "project %s shares the dependencies resolution of another project" project-name)
+                         @(:resolved shared)))]
+        (cpc/project-dependencies lein-project resolved)))))
+
+(defn- leiningen-projects
+  "The open Leiningen projects of the workspace"
+  []
+  (filter #(and (e/project-open? %) (e/project-has-nature? % nature/NATURE-ID))
+          (e/projects)))
+
+(defn- initialize-containers
+  "Refresh the containers of projects in parallel, reporting progress to
+   monitor"
+  [projects ^IProgressMonitor monitor]
+  (let [resolver (shared-resolver)
+        ^ExecutorService pool (Executors/newFixedThreadPool
+                                (min max-workers (max 1 (count projects))))]
+    (.beginTask monitor "Initializing Leiningen classpath containers" (count projects))
+    (try
+      (doseq [p projects]
+        (.submit pool
+          ^Runnable
+          (fn []
+            (try
+              (when-not (.isCanceled monitor)
+                (locking monitor (.subTask monitor (e/project-name p)))
+                (cpc/refresh-project-dependencies (JavaCore/create p) :resolve-fn resolver))
+              (finally
+                (cpc/release-startup-initialization! (e/project-name p))
+                (locking monitor (.worked monitor 1)))))))
+      (.shutdown pool)
+      (while (not (.awaitTermination pool 1 TimeUnit/SECONDS))
+        (when (.isCanceled monitor)
+          (.shutdownNow pool)))
+      (finally
+        (.shutdownNow pool)
+        (.done monitor)))))
+
+(defn start
+  "Initialize the containers of all the open Leiningen projects of the
+   workspace, in a background Job"
+  []
+  (let [projects (vec (leiningen-projects))]
+    (when (seq projects)
+      (t/format :leiningen "initializing the containers of %d Leiningen projects" (count projects))
+      (cpc/claim-startup-initializations! (map e/project-name projects))
+      (doto
+        (proxy [Job] ["Initializing Leiningen classpath containers"]
+          (run [^IProgressMonitor monitor]
+            (try
+              (initialize-containers projects monitor)
+              (finally
+                ;; projects not initialized (e.g. job cancelled) are left to the container initializer
+                (doseq [p projects]
+                  (cpc/release-startup-initialization! (e/project-name p)))))
+            (Status/OK_STATUS)))
+        (.setUser false)
+        (.schedule)))))
+
+(t/trace :leiningen "ccw.leiningen.startup namespace loaded")
@@ -8,7 +8,9 @@
             [clojure.java.io :as io]
             [ccw.core.trace :as t])
   (:import [org.eclipse.core.resources IProject]
-           [java.io File]
+           [java.io Closeable File]
+           [java.util LinkedHashMap Map]
+           [java.util.concurrent LinkedBlockingDeque Semaphore]
            [org.eclipse.core.runtime Platform
                                      FileLocator]))
 
@@ -64,24 +66,166 @@
                       (clojure.core/println "*exit-process?*" leiningen.core.main/*exit-process?*)))
     env))
 
-(defonce ^{:doc 
-           "Ref of map of \"project-name\" -> delay of classlojure environment.
-            e.g. : (ref {\"project-foo\" (delay (lein-env))})" }
-          projects-envs (ref {}))
-
-(defn project-env!
-  "Returns a classlojure environment for project, creating one if none exists yet,
-   or if recreate? is true."
-  [project & recreate?]
-  (let [pname (if (= :project-less project) 
-                project
-                (-> project ^IProject e/project .getName))]
-    (dosync
-      (commute projects-envs
-               #(if (or recreate? (not (% pname)))
-                  (assoc % pname (delay (lein-env)))
-                  %)))
-    @(@projects-envs pname)))
+(defn- dispose-env!
+  "Release the resources of the lein environment env, which must not be in
+   use anymore"
+  [env]
+  (try
+    (t/trace :leiningen "disposing of a lein environment")
+    (c/eval-in env '(clojure.core/shutdown-agents))
+    (when (instance? Closeable env)
+      (.close ^Closeable env))
+    (catch Exception e
+      (t/trace :leiningen "error while disposing of a lein environment" e))))
+
+(defn- dispose-env-delay!
+  "Dispose of the lein environment of env-delay, if it has been created"
+  [env-delay]
+  (when (realized? env-delay)
+    (when-let [env (try @env-delay (catch Exception e nil))]
+      (dispose-env! env))))
+
+;; Projects whose lein environment would be altered by loading their project
+;; (plugins, middlewares, hooks, certificates) get an isolated environment.
+;; The other projects share a small pool of environments: each call borrows
+;; one, and project specific state is passed along with the call.
+
+(def ^:private max-shared-envs
+  "Maximum number of lein environments shared by the projects which do not
+   need an isolated one"
+  2)
+
+(def ^:private max-isolated-envs
+  "Maximum number of isolated lein environments, least recently used ones
+   being disposed of first"
+  4)
+
+(defonce ^:private shared-envs-permits (Semaphore. max-shared-envs true))
+
+(defonce ^{:private true
+           :doc "Shared lein environments not currently used, most recently
+                 used first"}
+  idle-shared-envs (LinkedBlockingDeque.))
+
+(defonce ^{:private true
+           :doc "Names of the projects needing an isolated lein environment"}
+  isolated-projects (atom #{:project-less}))
+
+(defonce ^{:private true
+           :doc "project-name -> atom of {:env delay of lein environment,
+                 :users count of the calls using it, :retired? true once it
+                 must be disposed of after its last use}, in least recently
+                 used order. Guards itself."}
+  isolated-envs (LinkedHashMap. 16 0.75 true))
+
+(defn- project-name [project]
+  (if (= :project-less project)
+    project
+    (-> project ^IProject e/project .getName)))
+
+(defn- retire!
+  "Dispose of the environment of entry once it is not used anymore.
+   Must be called while holding the isolated-envs lock."
+  [entry]
+  (let [{:keys [env users]} (swap! entry assoc :retired? true)]
+    (when (zero? users)
+      (dispose-env-delay! env))))
+
+(defn- acquire-isolated-env!
+  "Return the entry of the isolated environment of pname, marked as used,
+   creating it if none exists yet, or if recreate? is true"
+  [pname recreate?]
+  (locking isolated-envs
+    (let [^Map envs isolated-envs
+          existing (.get envs pname)]
+      (when (and existing recreate?)
+        (retire! existing))
+      (let [entry (if (and existing (not recreate?))
+                    existing
+                    (atom {:env (delay (lein-env)) :users 0}))]
+        (.put envs pname entry)
+        (swap! entry update-in [:users] inc)
+        (while (> (.size envs) max-isolated-envs)
+          (let [it (.iterator (.values envs))
+                eldest (.next it)]
+            (.remove it)
+            (retire! eldest)))
+        entry))))
+
+(defn- release-isolated-env! [entry]
+  (locking isolated-envs
+    (let [{:keys [env users retired?]} (swap! entry update-in [:users] dec)]
+      (when (and retired? (zero? users))
+        (dispose-env-delay! env)))))
+
+(defn- acquire-shared-env! []
+  (.acquire ^Semaphore shared-envs-permits)
+  (try
+    (or (.pollFirst ^LinkedBlockingDeque idle-shared-envs) (lein-env))
+    (catch Throwable e
+      (.release ^Semaphore shared-envs-permits)
+      (throw e))))
+
+(defn- release-shared-env! [env]
+  (.offerFirst ^LinkedBlockingDeque idle-shared-envs env)
+  (.release ^Semaphore shared-envs-permits))
+
+(defn call-with-project-env
+  "Call f with a classlojure environment for project, and return its result.
+   For projects needing an isolated environment, it is the environment of
+   project, created if none exists yet, or if recreate? is true. For the
+   other projects, it is an environment of the shared pool, used by no other
+   call meanwhile."
+  [project f & recreate?]
+  (let [pname (project-name project)]
+    (if (contains? @isolated-projects pname)
+      (let [entry (acquire-isolated-env! pname recreate?)]
+        (try
+          (f @(:env @entry))
+          (finally
+            (release-isolated-env! entry))))
+      (let [env (acquire-shared-env!)]
+        (try
+          (f env)
+          (finally
+            (release-shared-env! env)))))))
+
+(defn dispose-project-env!
+  "Dispose of the isolated environment of project, if any, once it is not
+   used anymore"
+  [project]
+  (locking isolated-envs
+    (when-let [entry (.remove ^Map isolated-envs (project-name project))]
+      (retire! entry))))
+
+(defn dispose-envs!
+  "Dispose of all the lein environments, once they are not used anymore"
+  []
+  (locking isolated-envs
+    (doseq [entry (vec (.values ^Map isolated-envs))]
+      (retire! entry))
+    (.clear ^Map isolated-envs))
+  (loop []
+    (when-let [env (.pollFirst ^LinkedBlockingDeque idle-shared-envs)]
+      (dispose-env! env)
+      (recur))))
+
+(defn- needs-isolated-env?
+  "Return true if loading project-map alters the lein environment"
+  [project-map]
+  (boolean (some #(seq (get project-map %)) [:plugins :middleware :hooks :certificates])))
+
+(defn- update-isolation!
+  "Record whether project needs an isolated environment, given its
+   project-map"
+  [project project-map]
+  (let [pname (project-name project)]
+    (when-not (= :project-less pname)
+      (if (needs-isolated-env? project-map)
+        (swap! isolated-projects conj pname)
+        (when (contains? @isolated-projects pname)
+          (swap! isolated-projects disj pname)
+          (dispose-project-env! project))))))
 
 (defn file-exists? 
   "Return the file if it exists, or nil" 
@@ -92,7 +236,7 @@
   "Evaluates form in the leiningen environment for project. If args are provided,
    consider form is a function and call it with args applied to it."
   [project form & args]
-  (apply c/eval-in (project-env! project) form args))
+  (call-with-project-env project #(apply c/eval-in % form args)))
 
 (defn project-clj 
   "Given project (which must extend IProjectCoercible), returns its project.clj
@@ -104,35 +248,49 @@
     .getLocation
     .toOSString))
 
+(defn- read-project-map
+  "Read the project map of project in env"
+  [env project]
+  (if (= :project-less project)
+    (c/eval-in env
+      `(leiningen.core.project/merge-profiles 
+         (update-in leiningen.core.project/defaults
+           [:repositories] (fnil conj []) ["clojars-ccw-added" {:url "https://clojars.org/repo/"}])
+         [:user :default]))
+    (c/eval-in env 'leiningen.core.project/read (project-clj project))))
+
 (defn lein-project
   "Given a project (anything that coerces to ccw.eclipse/IProjectCoercion),
    analyze its project.clj file and return the project map.
    If static-loading? is true, does not dynamically load plugins, middlewares, etc.
    (e.g. does not call leiningen.core.project/init-project).
-   project can be the specific key :project-less to get the environment associated with no specific project"
+   project can be the specific key :project-less to get the environment associated with no specific project.
+   Whether project needs an isolated environment is decided from its raw
+   project map, before reading and initializing it in that environment."
   [project & {:keys [static-loading? enhance-fn] :or {enhance-fn identity}}]
-  (eval-in-project project '(require 'leiningen.core.project))
-  (let [project-map (if (= :project-less project)
-                      (eval-in-project 
-                        project
-                        `(leiningen.core.project/merge-profiles 
-                           (update-in leiningen.core.project/defaults
-                             [:repositories] (fnil conj []) ["clojars-ccw-added" {:url "https://clojars.org/repo/"}])
-                           [:user :default]))
-                      (eval-in-project
-                        project 
-                        'leiningen.core.project/read
-                        (project-clj project)))
-        project-map (enhance-fn project-map)]
-    (when-not static-loading?
-      (eval-in-project 
-        project
-        (if (= :project-less project)
-          `(do
-             (leiningen.core.project/load-certificates '~project-map)
-             (leiningen.core.project/load-plugins '~project-map))
-          `(leiningen.core.project/init-project '~project-map))))
-    project-map))
+  (let [pname (project-name project)
+        load-in (fn [env retry?]
+                  (c/eval-in env '(require 'leiningen.core.project))
+                  (let [isolated? (contains? @isolated-projects pname)]
+                    (when-not (= :project-less project)
+                      (update-isolation! project
+                        (c/eval-in env 'leiningen.core.project/read-raw (project-clj project))))
+                    (if (and retry? (not= isolated? (contains? @isolated-projects pname)))
+                      ;; env is not the environment project needs anymore
+                      ::isolation-changed
+                      (let [project-map (enhance-fn (read-project-map env project))]
+                        (when-not static-loading?
+                          (c/eval-in env
+                            (if (= :project-less project)
+                              `(do
+                                 (leiningen.core.project/load-certificates '~project-map)
+                                 (leiningen.core.project/load-plugins '~project-map))
+                              `(leiningen.core.project/init-project '~project-map))))
+                        project-map))))
+        result (call-with-project-env project #(load-in % true))]
+    (if (= ::isolation-changed result)
+      (call-with-project-env project #(load-in % false))
+      result)))
 
 (defn lein-native-platform-path
   "Default native arch path when no prefix is specified for a dependency"
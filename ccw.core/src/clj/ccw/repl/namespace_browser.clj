@@ -0,0 +1,114 @@
+(ns ^{:doc
+      "Versioned protocol for refreshing the namespace browser incrementally.
+
+       The REPL keeps, per namespace browser (identified by a client id), a
+       snapshot of the last namespaces info sent to it. A refresh only sends
+       the namespaces added, removed or changed since this snapshot, without
+       their vars. The vars of a namespace are sent on demand, when its node
+       is expanded, from the snapshot.
+
+       Namespaces info is computed by ccw.debug.serverrepl/namespaces-info:
+       a map whose :children are the namespace nodes, whose :children are
+       the var nodes."}
+  ccw.repl.namespace-browser
+  (:require [ccw.repl.tooling :as tooling]))
+
+(def ^:private timeout
+  "Timeout of the requests, in milliseconds"
+  10000)
+
+(def ^:private snapshots-var
+  "The var holding, in the REPL, the snapshots of all the clients:
+   {client-id {:version version, :nodes {namespace-name namespace-node}}}"
+  "(clojure.core/intern (clojure.core/create-ns 'ccw.debug.namespace-browser) 'snapshots)")
+
+(defn- changes-code
+  "Code evaluated in the REPL for taking a new snapshot for client-id, and
+   returning its changes since version. If version is not the version of the
+   snapshot of client-id, all the namespaces are returned."
+  [client-id version]
+  (format
+    (str "(clojure.core/let [v %s"
+         "                   strip (clojure.core/fn [node] (clojure.core/dissoc node :children))"
+         "                   nodes (clojure.core/into {}"
+         "                           (clojure.core/for [node (:children (ccw.debug.serverrepl/namespaces-info))]"
+         "                             [(:name node) node]))]"
+         "  (clojure.core/locking v"
+         "    (clojure.core/let [snapshot (clojure.core/when (clojure.core/bound? v) (clojure.core/get @v %s))"
+         "                       old-nodes (:nodes snapshot)"
+         "                       version (clojure.core/inc (:version snapshot 0))]"
+         "      (clojure.core/alter-var-root v"
+         "        (clojure.core/fn [m] (clojure.core/assoc (clojure.core/if (clojure.core/map? m) m {})"
+         "                               %s {:version version :nodes nodes})))"
+         "      (clojure.core/if (clojure.core/not= (:version snapshot) %d)"
+         "        {:version version :full true"
+         "         :namespaces (clojure.core/mapv (clojure.core/comp strip nodes) (clojure.core/sort (clojure.core/keys nodes)))}"
+         "        {:version version :full false"
+         "         :added (clojure.core/mapv (clojure.core/comp strip nodes)"
+         "                  (clojure.core/sort (clojure.core/remove (clojure.core/partial clojure.core/contains? old-nodes) (clojure.core/keys nodes))))"
+         "         :changed (clojure.core/mapv (clojure.core/comp strip nodes)"
+         "                    (clojure.core/sort (clojure.core/filter #(clojure.core/and (clojure.core/contains? old-nodes %%)"
+         "                                                                    (clojure.core/not= (old-nodes %%) (nodes %%)))"
+         "                              (clojure.core/keys nodes))))"
+         "         :removed (clojure.core/vec (clojure.core/sort (clojure.core/remove (clojure.core/partial clojure.core/contains? nodes) (clojure.core/keys old-nodes))))}))))")
+    snapshots-var
+    (pr-str client-id)
+    (pr-str client-id)
+    version))
+
+(defn- vars-code
+  "Code evaluated in the REPL for returning the var nodes of namespaces
+   ns-names, from the snapshot of client-id"
+  [client-id ns-names]
+  (format
+    (str "(clojure.core/let [v %s"
+         "                   nodes (clojure.core/when (clojure.core/bound? v) (clojure.core/get-in @v [%s :nodes]))]"
+         "  (clojure.core/into {}"
+         "    (clojure.core/for [n %s :let [node (clojure.core/get nodes n)] :when node]"
+         "      [n (clojure.core/vec (:children node))])))")
+    snapshots-var
+    (pr-str client-id)
+    (pr-str (vec ns-names))))
+
+(defn- forget-code
+  "Code evaluated in the REPL for removing the snapshot of client-id"
+  [client-id]
+  (format
+    (str "(clojure.core/let [v %s]"
+         "  (clojure.core/locking v"
+         "    (clojure.core/when (clojure.core/bound? v)"
+         "      (clojure.core/alter-var-root v clojure.core/dissoc %s))"
+         "    nil))")
+    snapshots-var
+    (pr-str client-id)))
+
+(defn- eval-code [safe-connection code]
+  (first @(tooling/send-code safe-connection code :timeout timeout :feature "namespace-browser")))
+
+(defn changes
+  "Changes of the namespaces of the REPL of safe-connection since version
+   of the snapshot of client-id, or all the namespaces if version is not its
+   current version (e.g. -1). Namespace nodes do not have :children.
+   Return either {:version new-version, :full true, :namespaces nodes},
+   or {:version new-version, :full false, :added nodes, :changed nodes,
+   :removed names}, or nil if the request failed."
+  [safe-connection client-id version]
+  (let [result (eval-code safe-connection (changes-code client-id version))]
+    (when (map? result) result)))
+
+(defn vars
+  "Map of namespace names to their var nodes, for namespaces ns-names,
+   from the snapshot of client-id, or nil if the request failed. Namespaces
+   which are not part of the snapshot are missing."
+  [safe-connection client-id ns-names]
+  (let [result (eval-code safe-connection (vars-code client-id ns-names))]
+    (when (map? result) result)))
+
+(defn forget
+  "Remove the snapshot of client-id from the REPL of safe-connection, e.g.
+   when its namespace browser is closed or switches to another REPL.
+   Does not wait for the request to complete."
+  [safe-connection client-id]
+  (tooling/send-code safe-connection (forget-code client-id)
+    :timeout timeout :feature "namespace-browser")
+  nil)
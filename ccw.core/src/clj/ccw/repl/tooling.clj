@@ -0,0 +1,245 @@
+(ns ^{:doc
+      "Client for the tooling requests sent to REPLs: hovers, code
+       completion, hyperlinks, syntax coloring, ...
+
+       Requests are sent with the SafeConnection of the REPL, and thus share
+       its bounded thread pool, its timeouts and its connection health
+       model (see ccw.repl.SafeConnection). On top of it, requests:
+       - are asynchronous: they return a future, which can be deref'ed, and
+         accept a callback
+       - are deduplicated: while a request is in flight, identical requests
+         share its future
+       - never fail: the result of a request which timed out, failed, or was
+         rejected because too many requests are pending, is nil
+       - are cancellable: cancelling the future of a request cancels it,
+         and interrupts its evaluation once no other caller waits for it.
+         Requests without a session are evaluated in an idle tooling
+         session of the connection (see SafeConnection/acquireToolingSession),
+         so that they can be interrupted without waiting for each other, or
+         in an ephemeral session if all of them are busy"}
+  ccw.repl.tooling
+  (:require [clojure.tools.nrepl :as repl]
+            [clojure.tools.nrepl.misc :refer (uuid)]
+            [ccw.core.trace :as t])
+  (:import [java.util.concurrent CancellationException CompletableFuture
+                                 CompletionException RejectedExecutionException
+                                 TimeoutException]
+           [java.util.function BiConsumer BiFunction Consumer Function]
+           [ccw.repl IConnectionClient SafeConnection]
+           [clojure.tools.nrepl Connection]))
+
+(def ^:private default-timeout
+  "Default timeout of the requests, in milliseconds"
+  1000)
+
+(def ^:private in-flight
+  "[safe-connection feature message] -> {:result future of the result of the
+   request in flight, :callers atom of the futures given to its callers}"
+  (atom {}))
+
+(defn send-message**
+  "Send the message over the nrepl connection. This version is \"bare\", ie it
+   calls into the REPL without timeout protection. If you want to protect the
+   IDE to freeze if e.g. the REPL never times out, call send-message instead."
+  [^SafeConnection safe-connection message]
+  (try
+    (-> safe-connection
+      .getUnsafeConnection
+      .client
+      (repl/message message))
+    (catch Exception e
+      (ccw.CCWPlugin/logError (str "exception while sending message " message " to connection " safe-connection) e)
+      (when (instance? java.net.SocketException e)
+        (.connectionLost safe-connection))
+      nil)))
+
+(defn- cancel-request!
+  "Cancel request: if it is running, interrupt its evaluation, and close its
+   tooling session, which may still be evaluating it"
+  [^SafeConnection safe-connection request]
+  (let [state (locking request
+                (let [state (:state @request)]
+                  (when (#{:pending :running} state)
+                    (swap! request assoc :state :cancelled))
+                  state))]
+    (when (= :running state)
+      (let [{:keys [message tooling-session]} @request]
+        (when-let [session (get message "session")]
+          (send-message** safe-connection
+            {"op" "interrupt" "session" session "interrupt-id" (:id message)}))
+        (when tooling-session
+          (.discardToolingSession safe-connection tooling-session))))))
+
+(defn- send-request
+  "Send message with connection, in an idle tooling session of
+   safe-connection if it has no session of its own, and return its
+   responses. request is an atom holding the :state of the request
+   (:pending, :running, :done or :cancelled), and once running, the
+   :message sent and its :tooling-session."
+  [^SafeConnection safe-connection ^Connection connection message request]
+  (let [session (when-not (get message "session")
+                  (.acquireToolingSession safe-connection connection))
+        message (if session (assoc message "session" session) message)
+        running? (locking request
+                   (when (= :pending (:state @request))
+                     (reset! request {:state :running :message message :tooling-session session})))]
+    (if-not running?
+      (do
+        (when session (.releaseToolingSession safe-connection session))
+        nil)
+      (try
+        (let [responses (doall (repl/message (.client connection) message))
+              done? (locking request
+                      (when (= :running (:state @request))
+                        (swap! request assoc :state :done)))]
+          (when (and done? session)
+            (.releaseToolingSession safe-connection session))
+          responses)
+        (catch Throwable e
+          (cancel-request! safe-connection request)
+          (throw e))))))
+
+(defn- trace-failure [feature message e]
+  (let [e (if (instance? CompletionException e) (.getCause ^Throwable e) e)]
+    (cond
+      (instance? TimeoutException e)
+        (t/format :repl-client "%s request timed out: %s" feature (pr-str message))
+      (instance? RejectedExecutionException e)
+        (t/format :repl-client "%s request rejected, too many pending requests: %s" feature (pr-str message))
+      (instance? CancellationException e)
+        nil
+      :else
+        (ccw.CCWPlugin/logError (str "exception while sending message " (pr-str message)) e))))
+
+(defn- start-request
+  "Submit message to safe-connection, completing result with its responses
+   (or nil) once done"
+  [^SafeConnection safe-connection feature message timeout ^CompletableFuture result]
+  (let [message (assoc message :id (uuid))
+        request (atom {:state :pending})
+        ^CompletableFuture f (.submit safe-connection ^String feature
+                               (reify IConnectionClient
+                                 (withConnection [this connection]
+                                   (send-request safe-connection connection message request)))
+                               (long timeout)
+                               ^Runnable #(cancel-request! safe-connection request)
+                               ;; a message with its own session may wait
+                               ;; for the other evaluations of its session
+                               (not (get message "session")))]
+    (.handle f
+      (reify BiFunction
+        (apply [this responses e]
+          (when e (trace-failure feature message e))
+          (.complete result (when-not e responses)))))
+    (.whenComplete result
+      (reify BiConsumer
+        (accept [this _ _]
+          (when (.isCancelled result)
+            (.cancel f true)))))))
+
+(defn- caller-future
+  "Future of the result of request, for one of its callers. request is
+   cancelled once all its callers cancelled their futures."
+  [{:keys [^CompletableFuture result callers]}]
+  (let [f (CompletableFuture.)]
+    (swap! callers conj f)
+    (.whenComplete result
+      (reify BiConsumer
+        (accept [this r e]
+          (if e (.completeExceptionally f e) (.complete f r)))))
+    (.whenComplete f
+      (reify BiConsumer
+        (accept [this _ _]
+          (when (and (.isCancelled f)
+                     (every? #(.isCancelled ^CompletableFuture %) @callers))
+            (.cancel result true)))))
+    f))
+
+(defn- add-callback
+  "Call callback with the result of f, once available. Return f."
+  [^CompletableFuture f callback what]
+  (when callback
+    (.thenAccept f
+      (reify Consumer
+        (accept [this result]
+          (try
+            (callback result)
+            (catch Exception e
+              (ccw.CCWPlugin/logError (str "exception in the callback of " what) e)))))))
+  f)
+
+(defn completed
+  "A CompletableFuture already completed with value"
+  [value]
+  (CompletableFuture/completedFuture value))
+
+(defn- cancel-with
+  "Once f is cancelled, cancel the futures returned by (futures). Return f."
+  [^CompletableFuture f futures]
+  (.whenComplete f
+    (reify BiConsumer
+      (accept [this _ _]
+        (when (.isCancelled f)
+          (doseq [^CompletableFuture g (futures) :when g]
+            (.cancel g true))))))
+  f)
+
+(defn then
+  "Return a CompletableFuture of (g result), result being the result of
+   future f. Cancelling it cancels f."
+  [^CompletableFuture f g]
+  (cancel-with
+    (.thenApply f
+      (reify Function
+        (apply [this r] (g r))))
+    (constantly [f])))
+
+(defn then-compose
+  "Return a CompletableFuture of the result of the future returned by
+   (g result), result being the result of future f. g must return a
+   CompletableFuture. Cancelling the returned future cancels f, or the
+   future returned by g."
+  [^CompletableFuture f g]
+  (let [next (atom nil)]
+    (cancel-with
+      (.thenCompose f
+        (reify Function
+          (apply [this r] (reset! next (g r)))))
+      #(vector f @next))))
+
+(defn send-message
+  "Send message with safe-connection, without waiting for the responses.
+   Return a CompletableFuture of the responses vector, or of nil if the
+   request timed out or failed.
+   Options:
+   - :timeout in milliseconds, defaults to 1000
+   - :feature the name of the feature the message is sent for, for the
+     latency statistics of safe-connection
+   - :callback fn called with the responses (or nil) once available"
+  [^SafeConnection safe-connection message
+   & {:keys [timeout feature callback]
+      :or {timeout default-timeout feature SafeConnection/DEFAULT_FEATURE}}]
+  (let [k [safe-connection feature message]
+        candidate {:result (CompletableFuture.) :callers (atom [])}
+        joinable? (fn [r] (and r (not (.isCancelled ^CompletableFuture (:result r)))))
+        request (get (swap! in-flight #(if (joinable? (get % k)) % (assoc % k candidate))) k)]
+    (when (identical? request candidate)
+      (.whenComplete ^CompletableFuture (:result candidate)
+        (reify BiConsumer
+          (accept [this _ _]
+            (swap! in-flight #(if (identical? candidate (get % k)) (dissoc % k) %)))))
+      (start-request safe-connection feature message timeout (:result candidate)))
+    (add-callback (caller-future request) callback (str "message " (pr-str message)))))
+
+(defn send-code
+  "Send code represented as String with safe-connection, see 'send-message.
+   Option :session for evaluating code in a session.
+   Return a CompletableFuture of the response values, or of nil if the
+   request timed out or failed."
+  [safe-connection code & {:keys [session callback] :as options}]
+  (let [msg {"op" "eval", "code" code}
+        msg (if-not session msg (assoc msg "session" session))
+        ^CompletableFuture responses (apply send-message safe-connection msg
+                                       (apply concat (dissoc options :session :callback)))
+        result (then responses #(some-> % repl/response-values))]
+    (add-callback result callback (str "code " code))))
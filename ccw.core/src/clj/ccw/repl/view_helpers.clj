@@ -6,6 +6,7 @@
             [ccw.eclipse :as eclipse]
             [ccw.swt :as swt])
   (:import ccw.CCWPlugin
+           [java.util Collections WeakHashMap]
            org.eclipse.ui.PlatformUI
            org.eclipse.swt.SWT
            [org.eclipse.swt.custom StyledText StyleRange]
@@ -40,28 +41,161 @@
   [^StyledText widget]
   (.setCaretOffset widget (.getCharCount widget)))
 
-(defn log
-  [^ccw.repl.REPLView repl-view ^StyledText log ^String s type]
-  (swt/dosync
+(defn- highlight-color [^ccw.repl.REPLView repl-view]
+  (ccw.CCWPlugin/getColor
+    ;; We use RGB color because we cannot take the Color directly since
+    ;; we do not "own" it (it would be disposed when colors are changed
+    ;; from the preferences, not good)
+    (-> repl-view .logPanelEditorColors .fCurrentLineBackgroundColor .getRGB)))
+
+(defn- log-content [^String s]
+  (if (re-find #"(\n|\r)$" s) s (str s \newline)))
+
+(defn- nb-newlines [^String s]
+  (loop [i (.indexOf s (int \newline)) n 0]
+    (if (neg? i) n (recur (.indexOf s (int \newline) (inc i)) (inc n)))))
+
+;; Scrollback limit
+;;
+;; The log only keeps the last (.getLogMaxLines repl-view) lines. So that
+;; the head of the log is not removed after each append, it is allowed to
+;; grow a little past the limit before being trimmed back to it.
+
+(defn- trim-threshold
+  "Number of lines past which a log limited to max-lines is trimmed"
+  [max-lines]
+  (+ max-lines (max 1 (quot max-lines 10))))
+
+(defn- trim-log
+  "Remove the oldest lines of the log, along with their styles, if it
+   exceeds the scrollback limit of repl-view. Must be called from the
+   UI Thread."
+  [^ccw.repl.REPLView repl-view ^StyledText log]
+  (let [max-lines (.getLogMaxLines repl-view)
+        line-count (.getLineCount log)]
+    (when (and (pos? max-lines) (> line-count (trim-threshold max-lines)))
+      (let [length (.getOffsetAtLine log (- line-count max-lines))]
+        (.replaceTextRange log 0 length "")
+        (-> repl-view .logPanelStyleCache (.deleteRange 0 length))))))
+
+(defn- append-chunks
+  "Append the [s type] chunks to the log in a single append, consecutive
+   chunks of the same type sharing the same style range. Must be called
+   from the UI Thread."
+  [^ccw.repl.REPLView repl-view ^StyledText log chunks]
+  (when (seq chunks)
     (let [charcnt (.getCharCount log)
-          [log-style highlight-background] (get log-styles type [default-log-style nil])
-          linecnt (.getLineCount log)
-          new-content (if (re-find #"(\n|\r)$" s) s (str s \newline))]
+          first-line (dec (.getLineCount log))
+          sb (StringBuilder.)
+          ;; runs: [type start end] of consecutive chunks of the same type,
+          ;; highlights: [first-line nb-lines] to highlight
+          {:keys [runs highlights]}
+            (reduce
+              (fn [{:keys [runs line] :as acc} [s type]]
+                (let [content (log-content s)
+                      start (.length sb)
+                      nb-lines (nb-newlines content)
+                      [_ highlight-background] (get log-styles type [default-log-style nil])
+                      [last-type last-start] (peek runs)]
+                  (.append sb ^String content)
+                  (cond-> (assoc acc
+                            :line (+ line nb-lines)
+                            :runs (if (= last-type type)
+                                    (conj (pop runs) [type last-start (.length sb)])
+                                    (conj runs [type start (.length sb)])))
+                    highlight-background (update-in [:highlights] conj [line nb-lines]))))
+              {:runs [] :highlights [] :line first-line}
+              chunks)]
       ; Add styles before adding text to the log panel
-      (when-not (= :skip log-style)
-        (let [style (log-style charcnt (.length new-content))]
-          (-> repl-view .logPanelStyleCache (.setStyleRange style))))
-      (.append log new-content)
+      (doseq [[type start end] runs
+              :let [[log-style] (get log-styles type [default-log-style nil])]
+              :when (not= :skip log-style)]
+        (-> repl-view .logPanelStyleCache (.setStyleRange (log-style (+ charcnt start) (- end start)))))
+      (.append log (.toString sb))
+      (doseq [[line nb-lines] highlights]
+        (.setLineBackground log line nb-lines (highlight-color repl-view)))
+      (trim-log repl-view log)
       (doto log
         cursor-at-end
-        .showSelection)
-      (when highlight-background
-        (.setLineBackground log (dec linecnt) (- (.getLineCount log) linecnt)
-          (ccw.CCWPlugin/getColor
-            ;; We use RGB color because we cannot take the Color directly since
-            ;; we do not "own" it (it would be disposed when colors are changed
-            ;; from the preferences, not good)
-            (-> repl-view .logPanelEditorColors .fCurrentLineBackgroundColor .getRGB)))))))
+        .showSelection))))
+
+;; Output pipeline
+;;
+;; The responses of the REPL are not logged one by one on the UI Thread:
+;; their output chunks are queued, and all the chunks queued during a display
+;; frame are appended at once. The thread reading the responses never waits
+;; for the UI Thread.
+
+(def ^:private frame-ms
+  "Delay between the first output chunk queued and the flush of the queue"
+  16)
+
+(def ^:private output-queues
+  "REPLView -> atom of {:items [queued items] :scheduled? flush scheduled}.
+   An item is either [s type] for logging s, or a fn to call on the UI Thread.
+   REPL views are weakly held."
+  (Collections/synchronizedMap (WeakHashMap.)))
+
+(defn- output-queue [repl-view]
+  (locking output-queues
+    (or (.get output-queues repl-view)
+        (let [a (atom {:items [] :scheduled? false})]
+          (.put output-queues repl-view a)
+          a))))
+
+(defn- take-items!
+  "Remove and return all the queued items"
+  [queue]
+  (loop []
+    (let [q @queue]
+      (if (compare-and-set! queue q {:items [] :scheduled? false})
+        (:items q)
+        (recur)))))
+
+(defn- flush-output
+  "Log the queued items of repl-view. Must be called from the UI Thread."
+  [^ccw.repl.REPLView repl-view ^StyledText log]
+  (let [items (take-items! (output-queue repl-view))]
+    (when-not (.isDisposed log)
+      (loop [items items chunks []]
+        (if-let [[item & items] (seq items)]
+          (if (fn? item)
+            (do
+              (append-chunks repl-view log chunks)
+              (item)
+              (recur items []))
+            (recur items (conj chunks item)))
+          (append-chunks repl-view log chunks))))))
+
+(defn- enqueue!
+  "Queue item for the output of repl-view, scheduling a flush of the queue
+   if there is none pending. Does not wait for the UI Thread."
+  [repl-view ^StyledText log item]
+  (let [queue (output-queue repl-view)
+        [old _] (loop []
+                  (let [q @queue
+                        new-q (assoc q :items (conj (:items q) item) :scheduled? true)]
+                    (if (compare-and-set! queue q new-q)
+                      [q new-q]
+                      (recur))))]
+    (when-not (:scheduled? old)
+      (swt/doasync
+        (if (.isDisposed log)
+          (take-items! queue)
+          (.timerExec (.getDisplay log) (int frame-ms) ^Runnable #(flush-output repl-view log)))))))
+
+(defn flush-log
+  "Log the output queued so far for repl-view. Must be called from the UI Thread."
+  [^ccw.repl.REPLView repl-view ^StyledText log]
+  (flush-output repl-view log))
+
+(defn log
+  "Log s in the log of repl-view, after the output queued so far.
+   Blocks until done on the UI Thread."
+  [^ccw.repl.REPLView repl-view ^StyledText log ^String s type]
+  (swt/dosync
+    (flush-output repl-view log)
+    (append-chunks repl-view log [[s type]])))
 
 (defn eval-failure-msg
   [status s]
@@ -77,16 +211,15 @@
   (future
     (doseq [{:keys [out err value ns status] :as resp} responses]
       (evt/post-event :ccw.repl.response resp)
-      (swt/dosync
-        (when ns (.setCurrentNamespace repl-view ns))
-        (doseq [[k v] (dissoc resp :id :ns :status :session)
-                :when (log-styles k)]
-          (log repl-view log-component v k))
-        (doseq [status status]
-          (case status
-            "interrupted" (log repl-view log-component (eval-failure-msg status expr) :err)
-            "need-input" (.getStdIn repl-view)
-            nil))))))
+      (when ns (.setCurrentNamespace repl-view ns))
+      (doseq [[k v] (dissoc resp :id :ns :status :session)
+              :when (log-styles k)]
+        (enqueue! repl-view log-component [v k]))
+      (doseq [status status]
+        (case status
+          "interrupted" (enqueue! repl-view log-component [(eval-failure-msg status expr) :err])
+          "need-input" (enqueue! repl-view log-component #(.getStdIn repl-view))
+          nil)))))
 
 (defn eval-expression
   "evaluate expression. Will use the current value for use-pprint and pprint-right-margin
@@ -26,6 +26,8 @@ import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.debug.core.ILaunch;
@@ -68,6 +70,8 @@ import ccw.editors.clojure.ClojureEditor;
 import ccw.editors.clojure.IClojureEditor;
 import ccw.editors.clojure.scanners.IScanContext;
 import ccw.launching.LaunchUtils;
+import ccw.launching.WarmREPLPool;
+import ccw.leiningen.LeiningenEnvironments;
 import ccw.nature.AutomaticNatureAdder;
 import ccw.preferences.PreferenceConstants;
 import ccw.repl.REPLView;
@@ -114,6 +118,8 @@ public class CCWPlugin extends AbstractUIPlugin {
 
 	private AutomaticNatureAdder synchronizedNatureAdapter;
 
+	private final LeiningenEnvironments leiningenEnvironments = new LeiningenEnvironments();
+
 	private ITracer tracer = NullTracer.INSTANCE;
 
 	public static ITracer getTracer() {
@@ -146,6 +152,26 @@ public class CCWPlugin extends AbstractUIPlugin {
     	ClojureInvoker.newInvoker(this, "ccw.repl.visible-in-all-perspectives").__("start");
     }
     
+    /**
+     * Initialize, in the background, the Leiningen classpath containers of the
+     * open Leiningen projects of the workspace, if any.
+     */
+    public void startLeiningenClasspathInitialization() {
+    	for (IProject project: ResourcesPlugin.getWorkspace().getRoot().getProjects()) {
+    		try {
+    			if (project.isOpen() && project.hasNature(LEININGEN_NATURE_ID)) {
+    				ClojureInvoker.newInvoker(this, "ccw.leiningen.startup").__("start");
+    				return;
+    			}
+    		} catch (CoreException e) {
+    			logError("Could not check the nature of project " + project.getName(), e);
+    		} catch (Exception e) {
+    			logError("Could not initialize the Leiningen classpath containers", e);
+    			return;
+    		}
+    	}
+    }
+
     public void startNamespaces() {
 //    	ClojureInvoker.newInvoker(this, "ccw.editors.clojure.code-content-assist").__("start");
     	ClojureInvoker.newInvoker(this, "ccw.editors.clojure.code-context-information").__("start");
@@ -274,6 +300,8 @@ public class CCWPlugin extends AbstractUIPlugin {
         logDependenciesInformation(context);
 
         initInjections(context);
+
+        leiningenEnvironments.start();
         
         context.addBundleListener(new BundleListener() {
 
@@ -346,6 +374,8 @@ public class CCWPlugin extends AbstractUIPlugin {
 								}
 
 								getNatureAdapter().start();
+
+								startLeiningenClasspathInitialization();
 							}
 
 						}).start();
@@ -441,6 +471,10 @@ public class CCWPlugin extends AbstractUIPlugin {
     	
     	this.getNatureAdapter().stop();
     	
+    	WarmREPLPool.shutdown();
+    	
+    	leiningenEnvironments.stop();
+    	
         plugin = null;
         super.stop(context);
     }
@@ -523,6 +557,14 @@ public class CCWPlugin extends AbstractUIPlugin {
 		return CCWPlugin.getDefault().getPreferenceStore().getBoolean(PreferenceConstants.CCW_GENERAL_AUTO_RELOAD_ON_STARTUP_SAVE);
 	}
 	
+	public static boolean isParallelNamespacesCompilationEnabled() {
+		return CCWPlugin.getDefault().getPreferenceStore().getBoolean(PreferenceConstants.CCW_GENERAL_PARALLEL_NAMESPACES_COMPILATION);
+	}
+
+	public static boolean isPrewarmedREPLsEnabled() {
+		return CCWPlugin.getDefault().getPreferenceStore().getBoolean(PreferenceConstants.CCW_GENERAL_PREWARMED_REPLS);
+	}
+
 	public static boolean isAutoReloadOnStartupSaveEnabled(ILaunch launch) {
 		return (Boolean.parseBoolean(launch.getAttribute(LaunchUtils.ATTR_IS_AUTO_RELOAD_ENABLED)));
 	}
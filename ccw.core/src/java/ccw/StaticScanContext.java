@@ -12,9 +12,11 @@
 package ccw;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import ccw.editors.clojure.scanners.IScanContext;
+import ccw.editors.clojure.scanners.ScannerMetrics;
 import ccw.preferences.PreferenceConstants;
 import ccw.util.ClojureInvoker;
 import clojure.lang.Keyword;
@@ -22,12 +24,35 @@ import clojure.lang.RT;
 import clojure.lang.Var;
 
 public class StaticScanContext implements IScanContext {
-	private Map<String,Keyword> clojureSymbolTypesCache = new HashMap<String, Keyword>();
+	/** Shared by all the token scanners, possibly from different threads */
+	private final SymbolTypesCache clojureSymbolTypesCache = new SymbolTypesCache();
 	
 	// TODO this is to ensure that ccw.debug.clientrepl is launched ...
 	private ClojureInvoker clientrepl = ClojureInvoker.newInvoker(CCWPlugin.getDefault(), "ccw.debug.clientrepl");
 	
-	private final Var coreSymbolType = RT.var("ccw.debug.clientrepl", "core-symbol-type");
+	private final Var coreSymbolTypeAndNs = RT.var("ccw.debug.clientrepl", "core-symbol-type-and-ns");
+	
+	public StaticScanContext() {
+		preloadCoreSymbolTypes();
+	}
+	
+	/** Fill the cache with the public vars of the clojure core namespaces */
+	private void preloadCoreSymbolTypes() {
+		Map<?, ?> coreSymbolTypes = (Map<?, ?>) clientrepl.__("core-symbol-types");
+		Map<String, SymbolTypesCache.Entry> entries = new HashMap<String, SymbolTypesCache.Entry>(coreSymbolTypes.size() * 2);
+		for (Map.Entry<?, ?> e: coreSymbolTypes.entrySet()) {
+			entries.put((String) e.getKey(), toCacheEntry((List<?>) e.getValue()));
+		}
+		clojureSymbolTypesCache.preload(entries);
+	}
+	
+	private static SymbolTypesCache.Entry toCacheEntry(List<?> typeAndNs) {
+		if (typeAndNs == null) {
+			return new SymbolTypesCache.Entry(PreferenceConstants.RAW_SYMBOL_Token, null);
+		} else {
+			return new SymbolTypesCache.Entry((Keyword) typeAndNs.get(0), (String) typeAndNs.get(1));
+		}
+	}
 	
 	private boolean isJavaIdentifier(String s) {
 		assert s != null && s.length() > 0;
@@ -52,6 +77,11 @@ public class StaticScanContext implements IScanContext {
 	}
 	
 	public Keyword getSymbolType(String symbol, boolean isCallableSymbol) {
+		return getSymbolType(symbol, isCallableSymbol, null);
+	}
+	
+	@Override
+	public Keyword getSymbolType(String symbol, boolean isCallableSymbol, ScannerMetrics metrics) {
 		assert symbol != null && symbol.length() > 0;
 		
 		if (isEarmuffedVar(symbol)) {
@@ -88,25 +118,16 @@ public class StaticScanContext implements IScanContext {
 		else 
 			return PreferenceConstants.callable_RAW_SYMBOL_Token;
 		*/
-		if (clojureSymbolTypesCache.containsKey(symbol)) {
-			return getCallableOrNonCallable(clojureSymbolTypesCache.get(symbol), isCallableSymbol);
-		} else {
-			Keyword symbolType =  (Keyword) coreSymbolType.invoke(symbol);	
-	
-			if (symbolType == null) {
-				clojureSymbolTypesCache.put(symbol, PreferenceConstants.RAW_SYMBOL_Token);
-				return getCallableOrNonCallable(PreferenceConstants.RAW_SYMBOL_Token, isCallableSymbol);
-			} else {
-				try {
-					clojureSymbolTypesCache.put(symbol, symbolType);
-					return getCallableOrNonCallable(symbolType, isCallableSymbol);
-				} catch (IllegalArgumentException e) {
-					CCWPlugin.logError("The clojure code returned an invalid symbolType value:'" + symbolType + "' for enumeration SymbolType", e);
-					return null;
-				}
+		SymbolTypesCache.Entry entry = clojureSymbolTypesCache.get(symbol);
+		if (entry != null) {
+			if (metrics != null) {
+				metrics.symbolCacheHit();
 			}
+		} else {
+			entry = toCacheEntry((List<?>) coreSymbolTypeAndNs.invoke(symbol));
+			clojureSymbolTypesCache.put(symbol, entry);
 		}
-		
+		return getCallableOrNonCallable(entry.type, isCallableSymbol);
 	}
 	
 	private static final Map<Keyword, Keyword> symbolToCallable = new HashMap<Keyword, Keyword>() {
@@ -118,7 +139,7 @@ public class StaticScanContext implements IScanContext {
 		}
 	};
 	
-	private Keyword getCallableOrNonCallable(Keyword symbolKeyword, boolean isCallableSymbol) {
+	public static Keyword getCallableOrNonCallable(Keyword symbolKeyword, boolean isCallableSymbol) {
 		if (isCallableSymbol) {
 			Keyword callableFlavor = symbolToCallable.get(symbolKeyword);
 			if (callableFlavor != null) {
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Laurent Petit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Laurent PETIT - initial API and implementation
+ *******************************************************************************/
+
+package ccw;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import clojure.lang.Keyword;
+
+/**
+ * Thread-safe cache of symbol types, used by the syntax coloring scan context.
+ * <p>
+ * Made of two parts:
+ * <ul>
+ * <li>a preloaded, never evicted part, holding the public vars of the
+ *     clojure core namespaces. It is replaced atomically.</li>
+ * <li>a bounded part, holding every other symbol looked up so far, with
+ *     least recently used entries evicted first.</li>
+ * </ul>
+ * Each entry remembers the namespace the symbol was resolved in (or null if
+ * it could not be resolved). Symbols are only resolved against the
+ * namespaces loaded in the IDE's own JVM, so entries never go stale because
+ * of a namespace loaded in a REPL: they are never invalidated.
+ */
+public final class SymbolTypesCache {
+
+	/** Default maximum number of entries in the bounded part of the cache */
+	public static final int DEFAULT_MAX_SIZE = 4096;
+
+	public static final class Entry {
+		public final Keyword type;
+		public final String namespace;
+
+		public Entry(Keyword type, String namespace) {
+			this.type = type;
+			this.namespace = namespace;
+		}
+	}
+
+	private volatile Map<String, Entry> preloaded = Collections.emptyMap();
+
+	private final Map<String, Entry> entries;
+
+	public SymbolTypesCache(final int maxSize) {
+		entries = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxSize;
+			}
+		});
+	}
+
+	public SymbolTypesCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Replace the preloaded part of the cache.
+	 * @param symbolTypes the map must not be modified afterwards
+	 */
+	public void preload(Map<String, Entry> symbolTypes) {
+		preloaded = symbolTypes;
+	}
+
+	/** @return the cached entry for symbol, or null if there is none */
+	public Entry get(String symbol) {
+		Entry e = preloaded.get(symbol);
+		return (e != null) ? e : entries.get(symbol);
+	}
+
+	public void put(String symbol, Entry entry) {
+		entries.put(symbol, entry);
+	}
+
+	public int size() {
+		return preloaded.size() + entries.size();
+	}
+}
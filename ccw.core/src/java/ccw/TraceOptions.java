@@ -66,6 +66,9 @@ public class TraceOptions {
 	/** Syntax color - Damager related traces */
 	public static final String SYNTAX_COLOR__DAMAGER = "/syntax-color/damager";
 
+	/** Syntax color - Token scanner metrics (tokens, symbols, timings per colored range) */
+	public static final String SYNTAX_COLOR__SCANNER = "/syntax-color/scanner";
+
 	/** Leiningen support related traces */
 	public static final String LEININGEN = "/leiningen";
 
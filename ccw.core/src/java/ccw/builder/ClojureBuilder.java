@@ -12,27 +12,35 @@
 
 package ccw.builder;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IFolder;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.IResourceDeltaVisitor;
 import org.eclipse.core.resources.IncrementalProjectBuilder;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.SubProgressMonitor;
 import org.eclipse.jdt.core.IClasspathEntry;
 import org.eclipse.jdt.core.IJavaProject;
 import org.eclipse.jdt.core.JavaCore;
 
 import ccw.CCWPlugin;
+import ccw.ClojureCore;
+import ccw.TraceOptions;
 import ccw.launching.ClojureLaunchDelegate;
 import ccw.repl.REPLView;
 
@@ -40,7 +48,6 @@ import ccw.repl.REPLView;
  * gaetan.morice:
  * "
  * Note that this code is just a prototype and there is still lots of problems to fix. Among then :
- * Incremental build : I only implement full build.
  *  Synchronization with JDT build : as clojure and java files could depend on each others, the two builders
  *  need to be launch several time to resolve all the dependencies.
  */
@@ -49,6 +56,15 @@ public class ClojureBuilder extends IncrementalProjectBuilder {
 
     static public final String BUILDER_ID = "ccw.builder";
 
+    /** Name of the file of the working location of the project where its namespace graph is saved */
+    private static final String NAMESPACE_GRAPH_FILE = "namespaces.graph";
+
+    /**
+     * The namespace graph of the project, as of the last build, or null if
+     * unknown (e.g. not loaded yet). Incremental builds require it.
+     */
+    private NamespaceGraph namespaceGraph;
+
     @SuppressWarnings("unchecked")
     @Override
     protected IProject[] build(int kind, Map args, IProgressMonitor monitor)
@@ -66,12 +82,59 @@ public class ClojureBuilder extends IncrementalProjectBuilder {
 	    	if (onlyClassesOrOutputFolderRelatedDelta() && !onlyProjectTouched() ) {
 	    		return null;
 	    	}
+	    	IResourceDelta delta = getDelta(getProject());
+	    	if (delta != null && !onlyProjectTouched() && !classpathChanged(delta)
+	    			&& getNamespaceGraph() != null) {
+	    		incrementalBuild(delta, monitor);
+	    		return null;
+	    	}
     	}
 
-    	fullBuild(getProject(), monitor);
+    	setNamespaceGraph(fullBuild(getProject(), monitor));
         return null;
     }
 
+    /** A classpath change may change the namespaces compiled: it requires a full build */
+    private static boolean classpathChanged(IResourceDelta delta) {
+    	return delta.findMember(new Path(".classpath")) != null
+    			|| delta.findMember(new Path("project.clj")) != null;
+    }
+
+    private File getNamespaceGraphFile() {
+    	return getProject().getWorkingLocation(CCWPlugin.PLUGIN_ID).append(NAMESPACE_GRAPH_FILE).toFile();
+    }
+
+    /** @return the namespace graph, loading it if necessary, or null if unknown */
+    private NamespaceGraph getNamespaceGraph() {
+    	if (namespaceGraph == null) {
+    		File file = getNamespaceGraphFile();
+    		if (file.exists()) {
+    			try {
+    				namespaceGraph = NamespaceGraph.load(file);
+    			} catch (IOException e) {
+    				CCWPlugin.logError("Unable to load the namespace graph of project " + getProject().getName(), e);
+    			}
+    		}
+    	}
+    	return namespaceGraph;
+    }
+
+    /** Set, and save, the namespace graph. If null, the next build will be a full build. */
+    private void setNamespaceGraph(NamespaceGraph graph) {
+    	namespaceGraph = graph;
+    	File file = getNamespaceGraphFile();
+    	if (graph == null) {
+    		file.delete();
+    		return;
+    	}
+    	try {
+    		graph.save(file);
+    	} catch (IOException e) {
+    		CCWPlugin.logError("Unable to save the namespace graph of project " + getProject().getName(), e);
+    		file.delete();
+    	}
+    }
+
     /** Only project touch is treated similarly to a full build request */
     private boolean onlyProjectTouched() {
         IResourceDelta delta = getDelta(getProject());
@@ -102,10 +165,101 @@ public class ClojureBuilder extends IncrementalProjectBuilder {
 	}
 
 
-    protected void incrementalBuild(IResourceDelta delta, IProgressMonitor monitor) {
+    /**
+     * Recompile the namespaces whose files were added, changed or removed
+     * according to delta, and the namespaces depending on them.
+     */
+    protected void incrementalBuild(IResourceDelta delta, IProgressMonitor monitor) throws CoreException {
+        if(monitor == null) {
+            monitor = new NullProgressMonitor();
+        }
+
+        REPLView repl = getAutoReloadREPL(getProject());
+        if (repl == null) {
+        	// Changes will not be compiled, the next build has to be a full build
+        	setNamespaceGraph(null);
+        	return;
+        }
+
+        createClassesFolder(getProject(), new SubProgressMonitor(monitor, 0));
+
+        final Map<IFolder, IFolder> srcFolders = getSrcFolders(getProject());
+        final NamespaceGraph graph = namespaceGraph;
+        final Set<String> changed = new LinkedHashSet<String>();
+        delta.accept(new IResourceDeltaVisitor() {
+			@Override public boolean visit(IResourceDelta d) throws CoreException {
+				if (!(d.getResource() instanceof IFile)) {
+					return true;
+				}
+				if (d.getKind() == IResourceDelta.CHANGED && (d.getFlags() & IResourceDelta.CONTENT) == 0) {
+					return false;
+				}
+				IFile file = (IFile) d.getResource();
+				IFolder srcFolder = getSrcFolder(srcFolders, file);
+				if (srcFolder == null) {
+					return false;
+				}
+				String oldNamespace = graph.getNamespace(file);
+				if (oldNamespace != null) {
+					changed.add(oldNamespace);
+					graph.removeNamespace(oldNamespace);
+				}
+				if (d.getKind() != IResourceDelta.REMOVED) {
+					String namespace = ClojureCore.findMaybeLibNamespace(file, srcFolder.getFullPath());
+					if (namespace != null) {
+						graph.putNamespace(namespace, file);
+						changed.add(namespace);
+					}
+				}
+				return false;
+			}
+		});
+
+        Set<String> toCompile = graph.withDependents(changed);
+        CCWPlugin.getTracer().trace(TraceOptions.BUILDER,
+        		"Incremental build of ", getProject().getName(), ", changed: ", changed, ", compiled: ", toCompile);
+        if (toCompile.isEmpty()) {
+        	setNamespaceGraph(graph);
+        	return;
+        }
+
+        for (String namespace: toCompile) {
+        	IFile file = graph.getFile(namespace);
+        	if (file != null && file.exists()) {
+        		file.deleteMarkers(CLOJURE_COMPILER_PROBLEM_MARKER_TYPE, true, IResource.DEPTH_ZERO);
+        	}
+        }
+
+        try {
+        	new ClojureVisitor(repl.getSafeToolingConnection(), graph).compile(toCompile);
+        } catch (CoreException | RuntimeException e) {
+        	// graph has been updated, but its namespaces may not have been
+        	// compiled: the next build has to be a full build
+        	setNamespaceGraph(null);
+        	throw e;
+        }
+        setNamespaceGraph(graph);
+
+        getClassesFolder(getProject()).refreshLocal(IResource.DEPTH_INFINITE, new SubProgressMonitor(monitor, 0));
     }
 
-    public static void fullBuild(IProject project, IProgressMonitor monitor) throws CoreException{
+    /** @return the source folder of srcFolders containing file, or null */
+    private static IFolder getSrcFolder(Map<IFolder, IFolder> srcFolders, IFile file) {
+    	for (IFolder srcFolder: srcFolders.keySet()) {
+    		if (srcFolder.getFullPath().isPrefixOf(file.getFullPath())) {
+    			return srcFolder;
+    		}
+    	}
+    	return null;
+    }
+
+    /**
+     * Compile all the namespaces of the source folders of project.
+     *
+     * @return the namespace graph of project, or null if its namespaces
+     *         were not compiled because it has no REPL with auto reload enabled
+     */
+    public static NamespaceGraph fullBuild(IProject project, IProgressMonitor monitor) throws CoreException{
 
         if(monitor == null) {
             monitor = new NullProgressMonitor();
@@ -113,6 +267,23 @@ public class ClojureBuilder extends IncrementalProjectBuilder {
 
         createClassesFolder(project, new SubProgressMonitor(monitor, 0));
 
+        REPLView repl = getAutoReloadREPL(project);
+        if (repl == null) {
+        	return null;
+        }
+
+        deleteMarkers(project);
+
+
+        ClojureVisitor visitor = new ClojureVisitor(repl.getSafeToolingConnection());
+        visitor.visit(getSrcFolders(project));
+
+        getClassesFolder(project).refreshLocal(IResource.DEPTH_INFINITE, new SubProgressMonitor(monitor, 0));
+        return visitor.getNamespaceGraph();
+    }
+
+    /** @return the REPL of project, if auto reload is enabled for it, or null */
+    private static REPLView getAutoReloadREPL(IProject project) {
         // Issue #203 is probably related to the following way of getting a REPLView.
         // A race condition between the builder and the Eclipse machinery creating the views, etc.
         // We will probably have to refactor stuff to separate things a little bit more, but for the time
@@ -131,16 +302,9 @@ public class ClojureBuilder extends IncrementalProjectBuilder {
     		repl = CCWPlugin.getDefault().getProjectREPL(project);
         }
         if (repl == null || repl.isDisposed() || !ClojureLaunchDelegate.isAutoReloadEnabled(repl.getLaunch())) {
-        	return;
+        	return null;
         }
-
-        deleteMarkers(project);
-
-
-        ClojureVisitor visitor = new ClojureVisitor(repl.getSafeToolingConnection());
-        visitor.visit(getSrcFolders(project));
-
-        getClassesFolder(project).refreshLocal(IResource.DEPTH_INFINITE, new SubProgressMonitor(monitor, 0));
+        return repl;
     }
 
     private static IFolder getClassesFolder(IProject project) {
@@ -203,6 +367,7 @@ public class ClojureBuilder extends IncrementalProjectBuilder {
     	}
 
         deleteMarkers(getProject());
+        setNamespaceGraph(null);
     }
 
     private static void deleteMarkers(IProject project) throws CoreException {
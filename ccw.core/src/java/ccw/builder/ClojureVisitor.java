@@ -14,8 +14,15 @@ package ccw.builder;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,72 +37,237 @@ import org.eclipse.ui.texteditor.MarkerUtilities;
 
 import ccw.CCWPlugin;
 import ccw.ClojureCore;
+import ccw.TraceOptions;
 import ccw.editors.clojure.CompileLibAction;
+import ccw.editors.clojure.scanners.ReplScanContext;
 import ccw.repl.IConnectionClient;
 import ccw.repl.SafeConnection;
 import clojure.tools.nrepl.Connection;
 import clojure.tools.nrepl.Connection.Response;
 
+/**
+ * Finds the namespaces of the source folders of a project, and compiles
+ * them in its REPL, creating markers for the compilation errors.
+ * <p>
+ * Namespaces are compiled in dependency order, one request per namespace,
+ * each request having its own timeout. When parallel compilation is enabled
+ * (see {@link CCWPlugin#isParallelNamespacesCompilationEnabled()}),
+ * namespaces are compiled in waves (see {@link NamespaceGraph#waves}),
+ * the independent namespaces of a wave being compiled in parallel. In both
+ * cases, the result of a namespace compilation is handled as soon as it is
+ * available.
+ */
 public class ClojureVisitor implements IResourceVisitor {
-	private Map.Entry<IFolder, IFolder> currentSrcFolder;
+	/** Timeout of the compilation of a namespace, in milliseconds */
+	private static final long COMPILE_TIMEOUT = 20000;
+
+	/**
+	 * Maximum number of namespaces compiled at the same time. Compilations
+	 * run on the request pool of SafeConnection, shared with hovers, code
+	 * completion, ..., so they can occupy up to half of its 8 threads.
+	 */
+	private static final int MAX_PARALLEL_COMPILATIONS = 4;
 
-	private Map<IFolder, IFolder> srcFolders;
+	private Map.Entry<IFolder, IFolder> currentSrcFolder;
 
 	private final List<String> clojureLibs = new ArrayList<String>();
+	private final NamespaceGraph namespaceGraph;
+	/** Files of the source folders, by name, for placing markers */
+	private final Map<String, List<IFile>> filesByName = new HashMap<String, List<IFile>>();
 	private final SafeConnection replConnection;
+	/** Namespaces outside of the compiled ones, already loaded before a wave */
+	private final Set<String> loadedDependencies = new HashSet<String>();
 
 	public ClojureVisitor() {
-		replConnection = null;
+		this(null);
 	}
 
 	public ClojureVisitor (SafeConnection repl) {
+		this(repl, new NamespaceGraph());
+	}
+
+	/**
+	 * @param namespaceGraph the graph of the namespaces of the project, filled
+	 *        while visiting source folders
+	 */
+	public ClojureVisitor (SafeConnection repl, NamespaceGraph namespaceGraph) {
 		this.replConnection = repl;
+		this.namespaceGraph = namespaceGraph;
 	}
+
 	public void visit (Map<IFolder, IFolder> srcFolders) throws CoreException {
-		this.srcFolders = new HashMap<IFolder, IFolder>(srcFolders);
         for(Map.Entry<IFolder, IFolder> srcFolderEntry : srcFolders.entrySet()){
         	setSrcFolder(srcFolderEntry);
             srcFolderEntry.getKey().accept(this);
         }
 		if (replConnection != null) {
-		    try {
-		    	replConnection.withConnection(new IConnectionClient() {
-					@Override public <T> T withConnection(Connection c) {
-		    			for (String maybeLibName: clojureLibs) {
-		    				String compileLibCommand = CompileLibAction.compileLibCommand(maybeLibName);
-							Response res = c.send("op", "eval", "code", compileLibCommand);
-							if (!res.values().isEmpty()) {
-			    				Object result = res.values().get(0);
-			                    if (result instanceof Map) {
-			                    	Map resultMap = (Map) result;
-			                        Collection<Map> response = (Collection<Map>)resultMap.get("response");
-			                        if (response != null) {
-			                            Map<?,?> errorMap = response.iterator().next();
-			                            if (errorMap != null) {
-			                                String message = (String) errorMap.get("message");
-			                                if (message != null) {
-			                                    Matcher matcher = ERROR_MESSAGE_PATTERN.matcher(message);
-			                                    if (matcher.matches()) {
-			                                        String messageBody = matcher.group(MESSAGE_GROUP);
-			                                        String filename = matcher.group(FILENAME_GROUP);
-			                                        String lineStr = matcher.group(LINE_GROUP);
-			                                        if (!NO_SOURCE_FILE.equals(filename)) {
-			                                            createMarker(filename, Integer.parseInt(lineStr), messageBody);
-			                                        }
-			                                    } else {
-			                                    }
-			                                }
-			                            }
-			                        }
-			                    }
-							}
-		    			}
-		    			return null;
-					}}, 20000);
-		    } catch (Exception e) {
-		        throw new WorkbenchException(
-		        		String.format("Could not visit: %s.\nDid you kill the project's JVM during the build?", clojureLibs), e);
-		    }
+			compile(clojureLibs);
+		}
+	}
+
+	/**
+	 * Compile libs, namespaces of the namespace graph, in dependency order.
+	 * Markers are only placed on the files of the namespace graph, unless
+	 * source folders have been visited.
+	 */
+	public void compile(Collection<String> libs) throws CoreException {
+		if (filesByName.isEmpty()) {
+			for (IFile file: namespaceGraph.getFiles()) {
+				indexFile(file);
+			}
+		}
+		if (CCWPlugin.isParallelNamespacesCompilationEnabled()) {
+			Set<String> compiled = new HashSet<String>(libs);
+			for (List<String> wave: namespaceGraph.waves(libs)) {
+				if (wave.size() > 1) {
+					loadDependencies(wave, compiled);
+				}
+				compile(wave, MAX_PARALLEL_COMPILATIONS);
+			}
+		} else {
+			List<String> orderedLibs = new ArrayList<String>();
+			for (List<String> wave: namespaceGraph.waves(libs)) {
+				orderedLibs.addAll(wave);
+			}
+			compile(orderedLibs, 1);
+		}
+	}
+
+	/**
+	 * Load, one after the other, the namespaces required by the namespaces of
+	 * wave which are not compiled: Clojure's loading is not thread-safe, so
+	 * the namespaces of wave must not load them at the same time.
+	 * Failures are left to the compilation of the namespaces of wave.
+	 */
+	private void loadDependencies(List<String> wave, Set<String> compiled) throws CoreException {
+		Set<String> deps = new LinkedHashSet<String>();
+		for (String ns: wave) {
+			for (String dep: namespaceGraph.getDependencies(ns)) {
+				if (!compiled.contains(dep) && loadedDependencies.add(dep)) {
+					deps.add(dep);
+				}
+			}
+		}
+		if (deps.isEmpty()) {
+			return;
+		}
+		CCWPlugin.getTracer().trace(TraceOptions.BUILDER, "Loading ", deps);
+		StringBuilder names = new StringBuilder();
+		for (String dep: deps) {
+			names.append(' ').append(dep);
+		}
+		final String code = "(clojure.core/doseq [n '[" + names + "]]"
+				+ " (try (clojure.core/require n) (catch Throwable e nil)))";
+		try {
+			replConnection.withConnection("builder", new IConnectionClient() {
+				@Override public Response withConnection(Connection c) {
+					Response res = c.send("op", "eval", "code", code);
+					// Read the whole response while protected by the timeout
+					res.values();
+					return res;
+				}
+			}, COMPILE_TIMEOUT);
+		} catch (Exception e) {
+			throw new WorkbenchException(
+					String.format("Could not load: %s.\nDid you kill the project's JVM during the build?", deps), e);
+		}
+	}
+
+	public NamespaceGraph getNamespaceGraph() {
+		return namespaceGraph;
+	}
+
+	/** The result of the compilation of a namespace */
+	private static final class CompilationResult {
+		final String lib;
+		final Response response;
+		final Throwable error;
+
+		CompilationResult(String lib, Response response, Throwable error) {
+			this.lib = lib;
+			this.response = response;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Compile libs, at most parallelism at a time, handling their results in
+	 * the calling (builder) thread, as soon as they are available. After a
+	 * failure, the remaining libs are not compiled.
+	 */
+	private void compile(List<String> libs, int parallelism) throws CoreException {
+		final BlockingQueue<CompilationResult> results = new LinkedBlockingQueue<CompilationResult>();
+		Iterator<String> pending = libs.iterator();
+		int running = 0;
+		List<String> failedLibs = new ArrayList<String>();
+		Throwable failure = null;
+		try {
+			while (running > 0 || (failure == null && pending.hasNext())) {
+				while (failure == null && running < parallelism && pending.hasNext()) {
+					submitCompilation(pending.next(), results);
+					running++;
+				}
+				CompilationResult result = results.take();
+				running--;
+				if (result.error != null) {
+					failedLibs.add(result.lib);
+					failure = result.error;
+				} else {
+					handleCompilationResult(result.lib, result.response);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure = e;
+		}
+		if (failure != null) {
+			throw new WorkbenchException(
+					String.format("Could not visit: %s.\nDid you kill the project's JVM during the build?", failedLibs), failure);
+		}
+	}
+
+	private void submitCompilation(final String lib, final BlockingQueue<CompilationResult> results) {
+		CCWPlugin.getTracer().trace(TraceOptions.BUILDER, "Compiling ", lib);
+		replConnection.<Response>submit("builder", new IConnectionClient() {
+			@Override public Response withConnection(Connection c) {
+				Response res = c.send("op", "eval", "code", CompileLibAction.compileLibCommand(lib));
+				// Read the whole response while protected by the timeout
+				res.values();
+				return res;
+			}
+		}, COMPILE_TIMEOUT, null).whenComplete(new BiConsumer<Response, Throwable>() {
+			@Override public void accept(Response res, Throwable e) {
+				results.add(new CompilationResult(lib, res, e));
+			}
+		});
+	}
+
+	private void handleCompilationResult(String lib, Response res) {
+		ReplScanContext.namespaceLoaded(lib);
+		if (!res.values().isEmpty()) {
+			Object result = res.values().get(0);
+            if (result instanceof Map) {
+            	Map resultMap = (Map) result;
+                Collection<Map> response = (Collection<Map>)resultMap.get("response");
+                if (response != null) {
+                    Map<?,?> errorMap = response.iterator().next();
+                    if (errorMap != null) {
+                        String message = (String) errorMap.get("message");
+                        if (message != null) {
+                            Matcher matcher = ERROR_MESSAGE_PATTERN.matcher(message);
+                            if (matcher.matches()) {
+                                String messageBody = matcher.group(MESSAGE_GROUP);
+                                String filename = matcher.group(FILENAME_GROUP);
+                                String lineStr = matcher.group(LINE_GROUP);
+                                if (!NO_SOURCE_FILE.equals(filename)) {
+                                    createMarker(filename, Integer.parseInt(lineStr), messageBody);
+                                }
+                            } else {
+                            }
+                        }
+                    }
+                }
+            }
 		}
 	}
 
@@ -109,37 +281,43 @@ public class ClojureVisitor implements IResourceVisitor {
 	@Override
 	public boolean visit(IResource resource) throws CoreException {
 		if (resource instanceof IFile) {
+			IFile file = (IFile) resource;
+			indexFile(file);
 			String maybeLibName = ClojureCore.findMaybeLibNamespace(
-					(IFile) resource, currentSrcFolder.getKey().getFullPath());
+					file, currentSrcFolder.getKey().getFullPath());
 			if (maybeLibName != null) {
 				clojureLibs.add(maybeLibName);
+				namespaceGraph.putNamespace(maybeLibName, file);
 			}
 		}
 		return true;
 	}
 
+	private void indexFile(IFile file) {
+		List<IFile> files = filesByName.get(file.getName());
+		if (files == null) {
+			files = new ArrayList<IFile>(1);
+			filesByName.put(file.getName(), files);
+		}
+		files.add(file);
+	}
+
 	private void createMarker(final String filename, final int line, final String message) {
-		try {
-			for (IFolder srcFolder: srcFolders.keySet()) {
-				srcFolder.accept(new IResourceVisitor() {
-					@Override
-					public boolean visit(IResource resource) throws CoreException {
-						if (resource.getType() == IResource.FILE) {
-							if (resource.getName().equals(filename)) {
-								Map attrs = new HashMap();
-								MarkerUtilities.setLineNumber(attrs, line);
-								MarkerUtilities.setMessage(attrs, message);
-								attrs.put(IMarker.SEVERITY, IMarker.SEVERITY_ERROR);
-								MarkerUtilities.createMarker(resource, attrs, ClojureBuilder.CLOJURE_COMPILER_PROBLEM_MARKER_TYPE);
-							}
-						}
-						return true;
-					}
-				});
+		List<IFile> files = filesByName.get(filename);
+		if (files == null) {
+			return;
+		}
+		for (IFile file: files) {
+			try {
+				Map attrs = new HashMap();
+				MarkerUtilities.setLineNumber(attrs, line);
+				MarkerUtilities.setMessage(attrs, message);
+				attrs.put(IMarker.SEVERITY, IMarker.SEVERITY_ERROR);
+				MarkerUtilities.createMarker(file, attrs, ClojureBuilder.CLOJURE_COMPILER_PROBLEM_MARKER_TYPE);
+			} catch (CoreException e) {
+				CCWPlugin.logError("error while creating marker for file : " + filename + " at line " + line
+						+ " with message :'" + message + "'", e);
 			}
-		} catch (CoreException e) {
-			CCWPlugin.logError("error while creating marker for file : " + filename + " at line " + line
-					+ " with message :'" + message + "'", e);
 		}
 	}
 
@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Laurent Petit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Laurent PETIT - initial API and implementation
+ *******************************************************************************/
+package ccw.builder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.Path;
+
+import ccw.CCWPlugin;
+import ccw.ClojureCore;
+import ccw.util.ClojureInvoker;
+
+/**
+ * Dependencies between the namespaces of a project, as declared by their
+ * ns forms (see <code>ccw.builder.dependencies</code>), and the files
+ * defining them.
+ * <p>
+ * Not thread-safe. Can be saved to, and loaded from, a file, so that
+ * incremental builds survive restarts.
+ */
+public final class NamespaceGraph {
+
+	private static final ClojureInvoker dependenciesReader = ClojureInvoker.newInvoker(
+			CCWPlugin.getDefault(),
+			"ccw.builder.dependencies");
+
+	private final Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+
+	/** Full paths of the files of the namespaces */
+	private final Map<String, String> files = new HashMap<String, String>();
+
+	/** Namespaces of the files, by full path */
+	private final Map<String, String> namespaces = new HashMap<String, String>();
+
+	/** Set the namespaces required by namespace */
+	public void setDependencies(String namespace, Collection<String> requiredNamespaces) {
+		dependencies.put(namespace, new LinkedHashSet<String>(requiredNamespaces));
+	}
+
+	/**
+	 * Add or update namespace, defined by file, reading the namespaces it
+	 * requires from the ns form of file.
+	 */
+	public void putNamespace(String namespace, IFile file) {
+		String path = file.getFullPath().toString();
+		String previousPath = files.put(namespace, path);
+		if (previousPath != null && !previousPath.equals(path)) {
+			namespaces.remove(previousPath);
+		}
+		String previousNamespace = namespaces.put(path, namespace);
+		if (previousNamespace != null && !previousNamespace.equals(namespace)) {
+			dependencies.remove(previousNamespace);
+			files.remove(previousNamespace);
+		}
+		setDependencies(namespace, requiredNamespaces(file));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Collection<String> requiredNamespaces(IFile file) {
+		String text = ClojureCore.getFileText(file);
+		return (text == null)
+				? Collections.<String>emptyList()
+				: (Collection<String>) dependenciesReader.__("required-namespaces", text);
+	}
+
+	/** Remove namespace, but not the dependencies of the other namespaces on it */
+	public void removeNamespace(String namespace) {
+		dependencies.remove(namespace);
+		String path = files.remove(namespace);
+		if (path != null) {
+			namespaces.remove(path);
+		}
+	}
+
+	/** @return true if namespace has been put in the graph */
+	public boolean containsNamespace(String namespace) {
+		return dependencies.containsKey(namespace);
+	}
+
+	/** @return the namespace defined by file, or null if unknown */
+	public String getNamespace(IFile file) {
+		return namespaces.get(file.getFullPath().toString());
+	}
+
+	/** @return the file defining namespace, or null if unknown */
+	public IFile getFile(String namespace) {
+		String path = files.get(namespace);
+		return (path == null) ? null : ResourcesPlugin.getWorkspace().getRoot().getFile(new Path(path));
+	}
+
+	/** @return the files of all the namespaces */
+	public List<IFile> getFiles() {
+		List<IFile> ret = new ArrayList<IFile>(files.size());
+		for (String namespace: files.keySet()) {
+			ret.add(getFile(namespace));
+		}
+		return ret;
+	}
+
+	/** @return the namespaces required by namespace, or an empty set if unknown */
+	public Set<String> getDependencies(String namespace) {
+		Set<String> deps = dependencies.get(namespace);
+		return (deps == null) ? Collections.<String>emptySet() : Collections.unmodifiableSet(deps);
+	}
+
+	/**
+	 * @return the namespaces of the graph among namespaces, and the namespaces
+	 *         of the graph depending on them, directly or transitively
+	 */
+	public Set<String> withDependents(Collection<String> namespaces) {
+		Map<String, List<String>> dependents = new HashMap<String, List<String>>();
+		for (Map.Entry<String, Set<String>> e: dependencies.entrySet()) {
+			for (String dep: e.getValue()) {
+				List<String> l = dependents.get(dep);
+				if (l == null) {
+					l = new ArrayList<String>();
+					dependents.put(dep, l);
+				}
+				l.add(e.getKey());
+			}
+		}
+		Set<String> visited = new LinkedHashSet<String>();
+		Deque<String> toVisit = new ArrayDeque<String>(namespaces);
+		while (!toVisit.isEmpty()) {
+			String ns = toVisit.pop();
+			if (visited.add(ns)) {
+				List<String> l = dependents.get(ns);
+				if (l != null) {
+					toVisit.addAll(l);
+				}
+			}
+		}
+		visited.retainAll(dependencies.keySet());
+		return visited;
+	}
+
+	/**
+	 * Group namespaces in waves, so that the namespaces of a wave only depend
+	 * on namespaces of previous waves, or outside namespaces: the namespaces of
+	 * a wave can be compiled in parallel once the previous waves are compiled.
+	 * Namespaces in a dependency cycle get a wave each, in the order of
+	 * namespaces.
+	 */
+	public List<List<String>> waves(Collection<String> namespaces) {
+		Set<String> remaining = new LinkedHashSet<String>(namespaces);
+		List<List<String>> waves = new ArrayList<List<String>>();
+		while (!remaining.isEmpty()) {
+			List<String> wave = new ArrayList<String>();
+			for (String ns: remaining) {
+				if (dependsOnNone(ns, remaining)) {
+					wave.add(ns);
+				}
+			}
+			if (wave.isEmpty()) {
+				wave.add(remaining.iterator().next());
+			}
+			remaining.removeAll(wave);
+			waves.add(wave);
+		}
+		return waves;
+	}
+
+	private boolean dependsOnNone(String namespace, Set<String> namespaces) {
+		for (String dep: getDependencies(namespace)) {
+			if (!dep.equals(namespace) && namespaces.contains(dep)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Save the graph to file, one line per namespace: its name, the full path
+	 * of its file, and its dependencies, separated by tabulations.
+	 */
+	public void save(File file) throws IOException {
+		BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+		try {
+			for (Map.Entry<String, Set<String>> e: dependencies.entrySet()) {
+				String path = files.get(e.getKey());
+				w.write(e.getKey());
+				w.write('\t');
+				w.write(path == null ? "" : path);
+				for (String dep: e.getValue()) {
+					w.write('\t');
+					w.write(dep);
+				}
+				w.newLine();
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+	/** @return the graph saved to file, see {@link #save(File)} */
+	public static NamespaceGraph load(File file) throws IOException {
+		NamespaceGraph graph = new NamespaceGraph();
+		BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = r.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length < 2) {
+					continue;
+				}
+				graph.setDependencies(fields[0], Arrays.asList(fields).subList(2, fields.length));
+				if (!fields[1].isEmpty()) {
+					graph.files.put(fields[0], fields[1]);
+					graph.namespaces.put(fields[1], fields[0]);
+				}
+			}
+		} finally {
+			r.close();
+		}
+		return graph;
+	}
+}
@@ -746,6 +746,10 @@ public class ClojureEditor extends TextEditor implements IClojureEditor, IReplPr
     public Object getParseState() {
     	return sourceViewer().getParseState();
     }
+
+    public Object getLastParseState() {
+    	return sourceViewer().getLastParseState();
+    }
     
     public Object getPreviousParseTree() {
     	return sourceViewer().getPreviousParseTree();
@@ -785,6 +789,11 @@ public class ClojureEditor extends TextEditor implements IClojureEditor, IReplPr
 		sourceViewer().markDamagedAndRedraw();
 	}
 
+	@Override
+	public void invalidateTextPresentation(int offset, int length) {
+		sourceViewer().invalidateTextPresentation(offset, length);
+	}
+
     @Override
 	public boolean isEscapeInStringLiteralsEnabled() {
 		return sourceViewer().isEscapeInStringLiteralsEnabled();
@@ -212,8 +212,7 @@ public abstract class ClojureSourceViewer extends ProjectionViewer implements IC
             public void inputDocumentChanged(IDocument oldInput, IDocument newInput) {
                 if (newInput != null) {
                     newInput.addDocumentListener(parseTreeConstructorDocumentListener);
-                    String text = newInput.get();
-                    updateTextBuffer(text, 0, -1, text);
+                    resetTextBuffer(newInput);
                 }
             }
             
@@ -350,32 +349,42 @@ public abstract class ClojureSourceViewer extends ProjectionViewer implements IC
     private IDocumentListener parseTreeConstructorDocumentListener = new IDocumentListener() {
         public void documentAboutToBeChanged(DocumentEvent event) {
         	//  TODO ?? maybe call updateTextBuffer directly from within an overriden method of AbstractDocument (so creating our own ClojureDocument ?) => maintaining parse tree with document ...
-        	String newText = replace(event.getDocument().get(), event.getOffset(), event.getLength(), event.getText());
-        	updateTextBuffer(newText, event.getOffset(), event.getLength(), event.getText());
+        	updateTextBuffer(event.getDocument(), event.getOffset(), event.getLength(), event.getText());
         }
         public void documentChanged(DocumentEvent event) {
+        	editorSupport.__("documentChanged", parseState, event.getDocument());
         }
     };
     
-    private String replace(String doc, int offset, int length, String text) {
-    	return doc.substring(0, offset) + text + doc.substring(offset + length);
-    }
-    
-    private void updateTextBuffer (String finalText, long offset, long length, String text) {
+    private void updateTextBuffer (IDocument document, long offset, long length, String text) {
     	boolean firstTime = (parseState == null);
-    	parseState = editorSupport.__("updateTextBuffer",parseState, finalText, offset, length, text);
+    	parseState = editorSupport.__("updateTextBuffer", parseState, document, offset, length, text);
         if (firstTime) {
         	editorSupport.__("startWatchParseRef", parseState, this);
         }
     }
     
+    private void resetTextBuffer (IDocument document) {
+    	boolean firstTime = (parseState == null);
+    	parseState = editorSupport.__("resetTextBuffer", parseState, document);
+    	if (firstTime) {
+    		editorSupport.__("startWatchParseRef", parseState, this);
+    	}
+    }
+    
     // TODO rename getParseInfo or get.. ?
     public Object getParseState () {
         if (parseState == null) {
-        	String text = getDocument().get();
-            updateTextBuffer(text, 0, -1, text);
+        	resetTextBuffer(getDocument());
+        }
+        return editorSupport.__("getParseState", getDocument(), parseState);
+    }
+
+    public Object getLastParseState () {
+        if (parseState == null) {
+        	return getParseState();
         }
-        return editorSupport.__("getParseState", getDocument().get(), parseState);
+        return editorSupport.__("getLastParseState", parseState);
     }
     
     public boolean isParseTreeBroken() {
@@ -469,8 +478,7 @@ public abstract class ClojureSourceViewer extends ProjectionViewer implements IC
     		int modelRangeLength) {
     	super.setDocument(document, annotationModel, modelRangeOffset, modelRangeLength);
     	if (document != null) {
-    		String text = document.get();
-    		updateTextBuffer(text, 0, -1, text);
+    		resetTextBuffer(document);
     	}
     }
     
@@ -80,6 +80,17 @@ public interface IClojureEditor extends IAdaptable {
     IJavaProject getAssociatedProject ();
 
     Object getParseState ();
+
+    /**
+     * Returns the last parse state computed in the background, without
+     * waiting for the pending edits to be parsed: it may lag behind the
+     * document. Meant for consumers which can do with an approximate state,
+     * like hovers, or which must not block the UI thread, like the damager.
+     */
+    default Object getLastParseState () {
+        return getParseState();
+    }
+
     Object getPreviousParseTree ();
     
     /**
@@ -109,6 +120,15 @@ public interface IClojureEditor extends IAdaptable {
      * e.g., useful to have syntax coloring adapt to new preference settings.
      */
 	void markDamagedAndRedraw();
+
+	/**
+	 * Have the presentation of the given region of the document computed
+	 * again, e.g. once the parse tree has caught up with edits whose damage
+	 * has been deferred.
+	 */
+	default void invalidateTextPresentation(int offset, int length) {
+		markDamagedAndRedraw();
+	}
 	
 	boolean isForceRepair();
 	
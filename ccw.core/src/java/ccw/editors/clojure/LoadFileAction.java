@@ -24,11 +24,15 @@ import ccw.CCWPlugin;
 import ccw.ClojureCore;
 import ccw.ClojureProject;
 import ccw.TraceOptions;
+import ccw.editors.clojure.scanners.ReplScanContext;
 import ccw.launching.ClojureLaunchShortcut;
 import ccw.launching.ClojureLaunchShortcut.IWithREPLView;
 import ccw.repl.Actions;
 import ccw.repl.REPLView;
 import ccw.util.ClojureInvoker;
+import clojure.lang.ISeq;
+import clojure.lang.RT;
+import clojure.tools.nrepl.Connection.Response;
 
 public class LoadFileAction extends Action {
 
@@ -69,7 +73,8 @@ public class LoadFileAction extends Action {
         final REPLView repl = REPLView.activeREPL.get();
         if (repl != null && !repl.isDisposed())  {
         	try {
-        		evaluateFileText(repl, editor.getDocument().get(), filePath, sourcePath, fileName);
+        		evaluateFileText(repl, editor.getDocument().get(), filePath, sourcePath, fileName,
+        				namespaceLoaded(editor));
         	} catch (Exception e) {
         		CCWPlugin.logError("Could not start a REPL for loading file " + filePath, e);
         	}
@@ -85,7 +90,8 @@ public class LoadFileAction extends Action {
 						public void run(final REPLView repl) {
 				        	if (repl != null && !repl.isDisposed()) {
 				        		try {
-				        			evaluateFileText(repl, editor.getDocument().get(), filePath, sourcePath, fileName);
+				        			evaluateFileText(repl, editor.getDocument().get(), filePath, sourcePath, fileName,
+				        					namespaceLoaded(editor));
 				        		} catch(Exception e) {
 					        		CCWPlugin.logError("Could not start a REPL for loading file " + filePath, e);
 				        		}
@@ -100,6 +106,44 @@ public class LoadFileAction extends Action {
         }
 	}
 
+	/**
+	 * @return the action letting the syntax coloring and the var metadata
+	 *         caches know the editor's namespace may have new or redefined vars,
+	 *         to be run once the file has been loaded
+	 */
+	private static Runnable namespaceLoaded(ClojureEditor editor) {
+		final String namespace = editor.findDeclaringNamespace();
+		return new Runnable() {
+			@Override public void run() {
+				if (namespace != null) {
+					ReplScanContext.namespaceLoaded(namespace);
+				}
+			}
+		};
+	}
+
+	/** Run onDone in a new thread, once all the responses of response have been received */
+	private static void whenDone(final Object response, final Runnable onDone) {
+		Thread t = new Thread(new Runnable() {
+			@Override public void run() {
+				try {
+					if (response instanceof Response) {
+						((Response) response).combinedResponse();
+					} else {
+						for (ISeq s = RT.seq(response); s != null; s = s.next()) {
+							// wait for all the responses
+						}
+					}
+				} catch (Exception e) {
+					CCWPlugin.logError("Error while waiting for the responses of a file load", e);
+				}
+				onDone.run();
+			}
+		}, "Waiting for a file load");
+		t.setDaemon(true);
+		t.start();
+	}
+
 	private static String computeFilePath(final ClojureEditor editor, final IFile editorFile) {
 		String filePath;
 		if (editorFile != null) {
@@ -138,15 +182,17 @@ public class LoadFileAction extends Action {
 		return sourcePath;
 	}
 	
-	private static void evaluateFileText(REPLView repl, String text, String filePath, String sourcePath, String fileName) throws Exception {
+	/** Load the file in repl, then run onLoaded */
+	private static void evaluateFileText(REPLView repl, String text, String filePath, String sourcePath, String fileName, Runnable onLoaded) throws Exception {
         if (repl.getAvailableOperations().contains("load-file")) {
-            repl.getConnection().sendSession(repl.getSessionId(),
+            whenDone(repl.getConnection().sendSession(repl.getSessionId(),
                     "op", "load-file", "file", text,
-                    "file-path", sourcePath, "file-name", fileName);
+                    "file-path", sourcePath, "file-name", fileName),
+                    onLoaded);
         } else {
             String loadFileText = (String) nreplHelpers.__("load-file-command", text, sourcePath, fileName);
             EvaluateTextUtil.evaluateText(repl, ";; Loading file " + filePath, false);
-            EvaluateTextUtil.evaluateText(repl, loadFileText, true);
+            whenDone(repl.evalExpression(loadFileText, false, false, true), onLoaded);
         }
         Actions.ShowActiveREPL.execute(false);
 	}
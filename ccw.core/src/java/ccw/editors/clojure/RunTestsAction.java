@@ -52,7 +52,7 @@ public class RunTestsAction extends Action {
             String lib = editor.findDeclaringNamespace();
             REPLView replView = editor.getCorrespondingREPL();
             SafeConnection replConnection = replView.getSafeToolingConnection();
-            Response compilationResult = replConnection.send(15000, "op", "eval", "code", CompileLibAction.compileLibCommand(lib));
+            Response compilationResult = replConnection.send("run-tests", 15000, "op", "eval", "code", CompileLibAction.compileLibCommand(lib));
             refreshCompilationResults();
             if (new Long(0).equals(((Map)compilationResult.values().get(0)).get("response-type"))) {
                 runTests(lib, replConnection);
@@ -66,7 +66,7 @@ public class RunTestsAction extends Action {
     }
 
     private void runTests(String lib, SafeConnection repl) throws Exception {
-        Response results = repl.send(15000, "op", "eval", "code", runTestsCommand(lib));
+        Response results = repl.send("run-tests", 15000, "op", "eval", "code", runTestsCommand(lib));
         if (((String)results.combinedResponse().get(Keyword.intern("out"))).contains(":fail 0, :error 0")) {
             editor.setStatusLineErrorMessage(ClojureEditorMessages.Tests_passed);
             setReplBackgroundColor(colorRegistry.get(PASSED_TESTS_COLOR_KEY));
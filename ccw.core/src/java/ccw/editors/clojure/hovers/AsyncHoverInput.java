@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Laurent Petit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Laurent PETIT - initial API and implementation
+ *******************************************************************************/
+package ccw.editors.clojure.hovers;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+import org.eclipse.jface.internal.text.html.BrowserInformationControlInput;
+
+/**
+ * Input of a hover whose html is still being computed, e.g. because it
+ * requires a round-trip to the REPL.
+ * <p>
+ * Until the html is available, a placeholder is displayed.
+ * {@link CCWBrowserInformationControl} then replaces it in place with the
+ * html, or hides itself if there is none. The computation is cancelled once
+ * no control displays the input anymore.
+ */
+@SuppressWarnings("restriction")
+public class AsyncHoverInput extends BrowserInformationControlInput {
+
+    private final CompletableFuture<String> html;
+    private final String placeholderHtml;
+    private int controls;
+
+    /**
+     * @param html the future of the html of the hover, or of null if there is
+     *        no information to display
+     * @param placeholderHtml the html displayed until html is available
+     */
+    public AsyncHoverInput(CompletableFuture<String> html, String placeholderHtml) {
+        super(null);
+        this.html = html;
+        this.placeholderHtml = placeholderHtml;
+    }
+
+    /** @return true once the html is available, or known to be missing */
+    public boolean isDone() {
+        return html.isDone();
+    }
+
+    /** @return true if the html is available */
+    public boolean hasHtml() {
+        return html.isDone() && !html.isCompletedExceptionally() && html.getNow(null) != null;
+    }
+
+    /**
+     * Run callback, in the thread completing the html, once it is available or
+     * known to be missing.
+     */
+    public void whenDone(final Runnable callback) {
+        html.whenComplete(new BiConsumer<String, Throwable>() {
+            @Override public void accept(String s, Throwable e) {
+                callback.run();
+            }
+        });
+    }
+
+    /** A control starts displaying this input */
+    synchronized void attach() {
+        controls++;
+    }
+
+    /** A control stops displaying this input. Cancel it if it was the last one. */
+    synchronized void detach() {
+        if (controls > 0 && --controls == 0) {
+            html.cancel(true);
+        }
+    }
+
+    @Override
+    public String getHtml() {
+        return hasHtml() ? html.getNow(null) : placeholderHtml;
+    }
+
+    @Override
+    public String getInputName() {
+        return ""; //$NON-NLS-1$
+    }
+
+    @Override
+    public Object getInputElement() {
+        return getHtml();
+    }
+
+    @Override
+    public String toString() {
+        return getHtml();
+    }
+}
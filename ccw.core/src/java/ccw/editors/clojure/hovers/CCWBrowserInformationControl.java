@@ -25,6 +25,7 @@ import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.graphics.TextLayout;
 import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Shell;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
@@ -55,6 +56,9 @@ public class CCWBrowserInformationControl extends BrowserInformationControl {
     protected final String fSymbolicFontName;
     
     private TextLayout fTestWidget;
+
+    /** The input being displayed, if its html is still being computed */
+    private AsyncHoverInput fAsyncInput;
     
     public CCWBrowserInformationControl(Shell parent, String symbolicFontName, boolean resizable) {
         super(parent, symbolicFontName, resizable);
@@ -92,8 +96,71 @@ public class CCWBrowserInformationControl extends BrowserInformationControl {
         createTestWidget();
     }
 
+    /**
+     * Displays input. An {@link AsyncHoverInput} is displayed with its
+     * placeholder, which is replaced in place once its html is available.
+     */
+    @Override
+    public void setInput(Object input) {
+        detachAsyncInput();
+        if (input instanceof AsyncHoverInput) {
+            final AsyncHoverInput asyncInput = (AsyncHoverInput) input;
+            fAsyncInput = asyncInput;
+            asyncInput.attach();
+            final Display display = getShell().getDisplay();
+            asyncInput.whenDone(new Runnable() {
+                @Override public void run() {
+                    if (!display.isDisposed()) {
+                        display.asyncExec(new Runnable() {
+                            @Override public void run() {
+                                asyncInputDone(asyncInput);
+                            }
+                        });
+                    }
+                }
+            });
+        }
+        super.setInput(input);
+    }
+
+    private void asyncInputDone(AsyncHoverInput asyncInput) {
+        if (asyncInput != fAsyncInput || getShell().isDisposed()) {
+            return;
+        }
+        fAsyncInput = null;
+        if (asyncInput.hasHtml()) {
+            CCWPlugin.getTracer().trace(TraceOptions.HOVER_SUPPORT, "Async hover input available, updating the hover");
+            super.setInput(asyncInput);
+            if (isVisible()) {
+                Point size = computeSizeHint();
+                setSize(size.x, size.y);
+            }
+        } else {
+            CCWPlugin.getTracer().trace(TraceOptions.HOVER_SUPPORT, "No async hover input available, hiding the hover");
+            setVisible(false);
+        }
+        asyncInput.detach();
+    }
+
+    private void detachAsyncInput() {
+        if (fAsyncInput != null) {
+            fAsyncInput.detach();
+            fAsyncInput = null;
+        }
+    }
+
+    @Override
+    public void setVisible(boolean visible) {
+        if (!visible) {
+            // The mouse left the hover region: the pending computation is not needed anymore
+            detachAsyncInput();
+        }
+        super.setVisible(visible);
+    }
+
     @Override
     protected void handleDispose() {
+        detachAsyncInput();
         super.handleDispose();
         if (fTestWidget != null) {
             fTestWidget.dispose();
@@ -17,7 +17,7 @@ import org.eclipse.swt.widgets.Shell;
 
 /**
  * Control creator when the hover will be enriched, adapted from org.eclipse.jdt.
- * The default imlementation uses a BrowserInformationControl (if available) taking additional configuration from
+ * The default imlementation uses a CCWBrowserInformationControl (if available) taking additional configuration from
  * the protected methods (symbolicFontName, css, ...) which are inherited from AbstractHoverControlCreator.
  * 
  * @see AbstractHoverControlCreator
@@ -37,7 +37,7 @@ public class HoverEnrichedControlCreator extends AbstractHoverControlCreator {
     @Override
     public IInformationControl doCreateInformationControl(Shell parent) {
         if (BrowserInformationControl.isAvailable(parent)) {
-            BrowserInformationControl iControl= new BrowserInformationControl(parent, symbolicFontName(), toolBarManager());
+            BrowserInformationControl iControl= new CCWBrowserInformationControl(parent, symbolicFontName(), toolBarManager());
 
 //          addLinkListener(iControl);
             return iControl;
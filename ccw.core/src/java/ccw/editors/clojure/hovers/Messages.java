@@ -7,6 +7,7 @@ public class Messages extends NLS {
     
     public static String You_need_a_running_repl_docstring;
     public static String You_need_a_running_repl_macro;
+    public static String Hover_loading;
     
     static {
         // initialize resource bundle
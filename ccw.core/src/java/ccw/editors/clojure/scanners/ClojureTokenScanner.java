@@ -32,10 +32,12 @@ import org.eclipse.swt.widgets.Display;
 import org.junit.Assert;
 
 import ccw.CCWPlugin;
+import ccw.TraceOptions;
 import ccw.editors.clojure.IClojureEditor;
 import ccw.preferences.PreferenceConstants;
 import ccw.util.ClojureInvoker;
-import clojure.lang.ISeq;
+import ccw.util.ITracer;
+import clojure.lang.Indexed;
 import clojure.lang.Keyword;
 
 public final class ClojureTokenScanner implements ITokenScanner, IPropertyChangeListener {
@@ -48,8 +50,10 @@ public final class ClojureTokenScanner implements ITokenScanner, IPropertyChange
 	
     private int currentOffset;
     private final Map<Keyword, IToken> parserTokenKeywordToJFaceToken;
-    private String text;
-    private final IScanContext context;
+    private final IScanContext staticContext;
+    /** Context used for the current pass: staticContext, or replContext if REPL-aware coloring is enabled */
+    private IScanContext context;
+    private ReplScanContext replContext;
     
     private final Keyword[] parenLevelPrefKeywords = new Keyword[] {
     		PreferenceConstants.rainbowParenLevel1,
@@ -70,13 +74,23 @@ public final class ClojureTokenScanner implements ITokenScanner, IPropertyChange
     
     protected static final IToken errorToken = new org.eclipse.jface.text.rules.Token(new TextAttribute(Display.getDefault().getSystemColor(SWT.COLOR_WHITE), Display.getDefault().getSystemColor(SWT.COLOR_DARK_RED), TextAttribute.UNDERLINE));
     private int currentParenLevel = 0;
-	private ISeq tokenSeq;
-	private Map<?,?> currentToken;
+
+    /**
+     * Packed tokens of the current range, as written by paredit.parser/packed-tokens:
+     * bits 0-31 hold the token length, bits 32-39 the token type ordinal,
+     * bits 40-47 the nesting delta (signed byte).
+     * The array is reused across calls to setRange.
+     */
+	private long[] tokens;
+	/** Symbol texts, taken from the parse tree leaves, of the symbol tokens in tokens */
+	private Object[] tokenTexts;
+	private int tokenIndex;
+	private long currentToken;
+	/** Token types of packed tokens, indexed by ordinal */
+	private final Keyword[] tokenTypes;
+	/** For each token type ordinal, whether it is a paren, colored with rainbow parens */
+	private final boolean[] parenTokenTypes;
 	private static Keyword symbolKeyword = Keyword.intern("symbol");
-	private static Keyword tokenTypeKeyword = Keyword.intern("token-type");
-	private static Keyword tokenLengthKeyword = Keyword.intern("token-length");
-	private static Keyword nestKeyword = Keyword.intern("nest");
-	private static Keyword unnestKeyword = Keyword.intern("unnest");
 	private static Keyword openListKeyword = Keyword.intern("open-list");
 	private static Keyword openFnKeyword = Keyword.intern("open-fn");
 	private static Keyword openChimeraKeyword = Keyword.intern("open-chimera");
@@ -90,10 +104,16 @@ public final class ClojureTokenScanner implements ITokenScanner, IPropertyChange
     public ClojureTokenScanner(IScanContext context, IPreferenceStore preferenceStore, IClojureEditor clojureEditor) {
         Assert.assertNotNull(clojureEditor);
 
+        this.staticContext = context;
         this.context = context;
         this.preferenceStore = preferenceStore;
         this.clojureEditor = clojureEditor;
         parserTokenKeywordToJFaceToken = new HashMap<Keyword, IToken>();
+        tokenTypes = (Keyword[]) topLevelFormsDamager.__("packedTokenTypes");
+        parenTokenTypes = new boolean[tokenTypes.length];
+        for (int i = 0; i < tokenTypes.length; i++) {
+        	parenTokenTypes[i] = parenKeywords.contains(tokenTypes[i]);
+        }
         utils = new TokenScannerUtils(this);
         initClojureTokenTypeToJFaceTokenMap(utils);
     }
@@ -122,14 +142,21 @@ public final class ClojureTokenScanner implements ITokenScanner, IPropertyChange
         addTokenType(tokenIndex, new org.eclipse.jface.text.rules.Token(textAttribute));
     }
 
+    private static int tokenLength(long token) {
+    	return (int) token;
+    }
+
+    private static int tokenTypeOrdinal(long token) {
+    	return (int) ((token >>> 32) & 0xFF);
+    }
+
+    private static int tokenNestDelta(long token) {
+    	return (byte) (token >>> 40);
+    }
+
     @Override
     public final int getTokenLength() {
-    	long start = System.currentTimeMillis();
-    	Number tokenLength = (Number) currentToken.get(tokenLengthKeyword);
-        long localDuration = System.currentTimeMillis() - start;
-        getTokenLengthDuration += localDuration;
-		duration += localDuration;
-		return tokenLength.intValue();
+		return tokenLength(currentToken);
     }
 
     @Override
@@ -138,25 +165,26 @@ public final class ClojureTokenScanner implements ITokenScanner, IPropertyChange
     }
 
     private void advanceToken() {
-    	long start = System.currentTimeMillis();
-    	boolean firstToken;
-    	if (currentToken == null) {
-    		firstToken = true;
-    	} else {
-    		firstToken = false;
-    	}
-        if (!firstToken) {
-        	Number count = (Number) currentToken.get(tokenLengthKeyword);
-        	currentOffset += count.intValue();
-        	tokenSeq = tokenSeq.next();
+        if (tokenIndex >= 0) {
+        	currentOffset += tokenLength(currentToken);
         }
-        //System.out.println(tokenSeq.first());
-        currentToken = (Map<?,?>)tokenSeq.first();
-        advanceTokenDuration += System.currentTimeMillis() - start;
+        tokenIndex++;
+        currentToken = tokens[tokenIndex];
     }
     
     private boolean isCallableSymbol = false;
     
+    private static final Set<Keyword> parenKeywords = new HashSet<Keyword>() {
+    	{
+    		add(openListKeyword);
+    		add(openFnKeyword);
+    		add(openChimeraKeyword);
+    		add(closeListKeyword);
+    		add(closeFnKeyword);
+    		add(closeChimeraKeyword);
+    	}
+    };
+
     private static final Set<?> nonCallableSymbolErasers = new HashSet() {
     	{
     		add(whitespaceKeyword);
@@ -171,38 +199,17 @@ public final class ClojureTokenScanner implements ITokenScanner, IPropertyChange
     
     @Override
     public final IToken nextToken() {
-    	long start = System.currentTimeMillis();
-    	advanceToken();   	
+    	advanceToken();
     	IToken result;
+    	int typeOrdinal = tokenTypeOrdinal(currentToken);
+    	int nestDelta = tokenNestDelta(currentToken);
     	
-		if (currentToken.get(tokenTypeKeyword).equals(nestKeyword)) {
+		if (nestDelta > 0) {
             currentParenLevel += 1;
-            long localDuration = System.currentTimeMillis() - start;
-            duration += localDuration;
-            nextTokenDuration += localDuration;
             isCallableSymbol = true;
-            return nextToken();
-        }
-        if (currentToken.get(tokenTypeKeyword).equals(unnestKeyword)) {
-        	currentParenLevel -= 1;
-            long localDuration = System.currentTimeMillis() - start;
-            duration += localDuration;
-            nextTokenDuration += localDuration;
-            isCallableSymbol = false;
-            return nextToken();
         }
         
-        if (    currentToken.get(tokenTypeKeyword).equals(openListKeyword)
-        		||
-        		currentToken.get(tokenTypeKeyword).equals(openFnKeyword)
-        		||
-        		currentToken.get(tokenTypeKeyword).equals(openChimeraKeyword)
-        		||
-        		currentToken.get(tokenTypeKeyword).equals(closeListKeyword)
-     		    ||
-     		    currentToken.get(tokenTypeKeyword).equals(closeFnKeyword)
-     		    ||
-     		    currentToken.get(tokenTypeKeyword).equals(closeChimeraKeyword)) {
+        if (parenTokenTypes[typeOrdinal]) {
         	if (currentParenLevel < 0) {
         		result = errorToken;
         	} else {
@@ -215,26 +222,28 @@ public final class ClojureTokenScanner implements ITokenScanner, IPropertyChange
         } else {
             result = toJFaceToken();
         }
+        
+        if (nestDelta < 0) {
+        	currentParenLevel -= 1;
+        }
+        if (metrics != null) {
+        	metrics.token();
+        }
         if (result.equals(Token.EOF)) {
-            long localDuration = System.currentTimeMillis() - start;
-            duration += localDuration;
-            nextTokenDuration += localDuration;
+        	if (metrics != null) {
+        		metrics.report(CCWPlugin.getTracer());
+        	}
             // setting isCallableSymbol does not matter anymore here
     		return result;
         }
-        long localDuration = System.currentTimeMillis() - start;
-        nextTokenDuration += localDuration;
-        duration += localDuration;
-        if (!nonCallableSymbolErasers.contains(currentToken.get(tokenTypeKeyword))) {
+        if (!nonCallableSymbolErasers.contains(tokenTypes[typeOrdinal])) {
         	isCallableSymbol = false;
         }
         return result;
     }
-    long duration;
-	private long getTokenLengthDuration;
-	private long nextTokenDuration;
-	private long advanceTokenDuration;
-	
+    /** Metrics of the current pass, null unless the syntax color scanner trace option is enabled */
+    private ScannerMetrics metrics;
+    
 	private void printSetRange(String name, IDocument document, int offset, int length) {
 		System.out.println("setRange() called on " + name);
 		System.out.println("offset:" + offset);
@@ -246,41 +255,56 @@ public final class ClojureTokenScanner implements ITokenScanner, IPropertyChange
 	@Override
     public final void setRange(IDocument document, int offset, int length) {
 		//printSetRange("ClojureTokenScanner", document, offset, length);
-    	long start = System.currentTimeMillis();
-    	getTokenLengthDuration = 0;
-    	nextTokenDuration = 0;
-    	duration = 0;
-    	guessEclipseTokenTypeForSymbolDuration = 0;
-    	toJFaceTokenDuration = 0;
-    	advanceTokenDuration = 0;
-    	getSymbolTypeDuration = 0;
-    	text = document.get();
-        tokenSeq = (ISeq) topLevelFormsDamager.__("getTokensSeq",
-        		editorSupport.__("getParseTree", clojureEditor.getParseState())
-        		, offset, length);
+		ITracer tracer = CCWPlugin.getTracer();
+		if (tracer.isEnabled(TraceOptions.SYNTAX_COLOR__SCANNER)) {
+			if (metrics == null) {
+				metrics = new ScannerMetrics();
+			} else {
+				// previous pass did not reach EOF
+				metrics.report(tracer);
+			}
+			metrics.startRange(offset, length);
+		} else {
+			metrics = null;
+		}
+		if (preferenceStore.getBoolean(PreferenceConstants.EDITOR_REPL_AWARE_SYNTAX_COLORING)) {
+			if (replContext == null) {
+				replContext = new ReplScanContext(staticContext, clojureEditor);
+			}
+			replContext.update();
+			context = replContext;
+		} else {
+			context = staticContext;
+		}
+        // An empty range is a deferred damage (see ClojureTopLevelFormsDamagerImpl):
+        // do not wait for the parse tree then
+        Indexed packedTokens = (Indexed) topLevelFormsDamager.__("getPackedTokens",
+        		(length == 0) ? null : editorSupport.__("getParseTree", clojureEditor.getParseState())
+        		, offset, length, tokens, tokenTexts);
+        tokens = (long[]) packedTokens.nth(0);
+        tokenTexts = (Object[]) packedTokens.nth(1);
         // STRONG HYPOTHESES HERE (related to the Damager used: offset always corresponds to the start of a top level form
         {
 	        currentParenLevel = -1; 
 	        isCallableSymbol = false;
         }
         currentOffset = offset;
-        currentToken = null;
+        tokenIndex = -1;
         //System.out.println("setRange(offset:" + offset + ", length:" + length + ")");
-        duration += System.currentTimeMillis() - start;
+        if (metrics != null) {
+        	metrics.setRangeDone();
+        }
     }
 
-    private long toJFaceTokenDuration;
     private IToken toJFaceToken() {
-    	long start = System.currentTimeMillis();
-		Keyword type = (Keyword) currentToken.get(tokenTypeKeyword);
-		if (type.equals(symbolKeyword)) {
-            type = guessEclipseTokenTypeForSymbol(text.substring(currentOffset, currentOffset + ((Long) currentToken.get(tokenLengthKeyword)).intValue()));
+		Keyword type = tokenTypes[tokenTypeOrdinal(currentToken)];
+		if (type == symbolKeyword) {
+            type = guessEclipseTokenTypeForSymbol((String) tokenTexts[tokenIndex]);
         }
 		IToken retToken = parserTokenKeywordToJFaceToken.get(type);
         if (retToken == null) {
             retToken = Token.UNDEFINED;
         }
-        toJFaceTokenDuration += System.currentTimeMillis() - start; 
         return retToken;
 //    	return Token.UNDEFINED;
     }
@@ -289,20 +313,17 @@ public final class ClojureTokenScanner implements ITokenScanner, IPropertyChange
     @SuppressWarnings("serial")
 	private static final Set<String> symbolLiterals = new HashSet<String>() { { add("nil"); add("true"); add("false"); } };
 
-	private long guessEclipseTokenTypeForSymbolDuration;
-	private long getSymbolTypeDuration;
     private Keyword guessEclipseTokenTypeForSymbol(String symbol) {
-    	long start = System.currentTimeMillis();
-    	Keyword res;
     	if (symbolLiterals.contains(symbol)) {
-    		res = Keyword.intern("literalSymbol");
+    		return Keyword.intern("literalSymbol");
+    	} else if (metrics == null) {
+    		return context.getSymbolType(symbol, isCallableSymbol);
     	} else {
-    		long sttart = System.currentTimeMillis();
-    		res = context.getSymbolType(symbol, isCallableSymbol);
-    		getSymbolTypeDuration += System.currentTimeMillis() - sttart;
+    		long start = System.nanoTime();
+    		Keyword res = context.getSymbolType(symbol, isCallableSymbol, metrics);
+    		metrics.symbolClassified(System.nanoTime() - start);
+    		return res;
     	}
-    	guessEclipseTokenTypeForSymbolDuration += System.currentTimeMillis() - start;
-    	return res;
     }
 
     /**
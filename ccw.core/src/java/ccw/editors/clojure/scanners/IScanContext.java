@@ -30,4 +30,12 @@ public interface IScanContext {
 	 */
 	Keyword getSymbolType(String symbol, boolean isCallableSymbol);
 
+	/**
+	 * Same as {@link #getSymbolType(String, boolean)}, additionally
+	 * recording cache hits in metrics.
+	 */
+	default Keyword getSymbolType(String symbol, boolean isCallableSymbol, ScannerMetrics metrics) {
+		return getSymbolType(symbol, isCallableSymbol);
+	}
+
 }
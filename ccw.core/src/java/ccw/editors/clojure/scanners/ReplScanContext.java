@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Laurent Petit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Laurent PETIT - initial API and implementation
+ *******************************************************************************/
+package ccw.editors.clojure.scanners;
+
+import ccw.CCWPlugin;
+import ccw.StaticScanContext;
+import ccw.editors.clojure.IClojureEditor;
+import ccw.preferences.PreferenceConstants;
+import ccw.repl.IReplProvider;
+import ccw.repl.REPLView;
+import ccw.util.ClojureInvoker;
+import clojure.lang.Keyword;
+
+/**
+ * Scan context for REPL-aware syntax coloring of an editor.
+ * <p>
+ * Symbols the delegate context cannot classify are looked up in the snapshot
+ * of the vars of the editor's namespace in the editor's REPL
+ * (see <code>ccw.editors.clojure.repl-symbols</code>). Lookups never block:
+ * snapshots are fetched in the background, and the editor is redrawn
+ * once they are available.
+ */
+public final class ReplScanContext implements IScanContext {
+	private static final ClojureInvoker replSymbols = ClojureInvoker.newInvoker(
+			CCWPlugin.getDefault(),
+			"ccw.editors.clojure.repl-symbols");
+
+	private static final ClojureInvoker editorCommon = ClojureInvoker.newInvoker(
+			CCWPlugin.getDefault(),
+			"ccw.editors.clojure.editor-common");
+
+	private final IScanContext delegate;
+	private final IClojureEditor editor;
+	private REPLView repl;
+	private String namespace;
+
+	public ReplScanContext(IScanContext delegate, IClojureEditor editor) {
+		this.delegate = delegate;
+		this.editor = editor;
+	}
+
+	/** Refresh the REPL and namespace of the editor, at the start of a scan */
+	void update() {
+		repl = (editor instanceof IReplProvider) ? ((IReplProvider) editor).getCorrespondingREPL() : null;
+		namespace = (repl == null) ? null : editor.findDeclaringNamespace();
+	}
+
+	@Override
+	public Keyword getSymbolType(String symbol, boolean isCallableSymbol) {
+		return getSymbolType(symbol, isCallableSymbol, null);
+	}
+
+	@Override
+	public Keyword getSymbolType(String symbol, boolean isCallableSymbol, ScannerMetrics metrics) {
+		Keyword type = delegate.getSymbolType(symbol, isCallableSymbol, metrics);
+		if (namespace != null
+				&& (type == PreferenceConstants.RAW_SYMBOL_Token || type == PreferenceConstants.callable_RAW_SYMBOL_Token)) {
+			Keyword replType = (Keyword) replSymbols.__("symbol-type", repl, namespace, symbol, editor);
+			if (replType != null) {
+				return StaticScanContext.getCallableOrNonCallable(replType, isCallableSymbol);
+			}
+		}
+		return type;
+	}
+
+	/**
+	 * Called when namespace has been (re)loaded in a REPL, so that the REPL
+	 * symbols and the var metadata cached for it are not stale.
+	 */
+	public static void namespaceLoaded(String namespace) {
+		replSymbols.__("namespace-loaded", namespace);
+		editorCommon.__("namespace-loaded", namespace);
+	}
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Laurent Petit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Laurent PETIT - initial API and implementation
+ *******************************************************************************/
+package ccw.editors.clojure.scanners;
+
+import ccw.TraceOptions;
+import ccw.util.ITracer;
+
+/**
+ * Metrics of a syntax coloring pass of a {@link ClojureTokenScanner} over
+ * a range (from a call to <code>setRange</code> to the EOF token).
+ * <p>
+ * Only collected when the {@link TraceOptions#SYNTAX_COLOR__SCANNER} trace
+ * option is enabled, in which case they are reported via the tracer at the
+ * end of each pass.
+ */
+public final class ScannerMetrics {
+	private int rangeOffset;
+	private int rangeLength;
+	private int tokens;
+	private int symbols;
+	private int symbolCacheHits;
+	private long setRangeNanos;
+	private long classifyNanos;
+	private long startNanos;
+	private boolean pending;
+
+	void startRange(int offset, int length) {
+		rangeOffset = offset;
+		rangeLength = length;
+		tokens = 0;
+		symbols = 0;
+		symbolCacheHits = 0;
+		setRangeNanos = 0;
+		classifyNanos = 0;
+		startNanos = System.nanoTime();
+		pending = true;
+	}
+
+	void setRangeDone() {
+		setRangeNanos = System.nanoTime() - startNanos;
+	}
+
+	void token() {
+		tokens++;
+	}
+
+	void symbolClassified(long nanos) {
+		symbols++;
+		classifyNanos += nanos;
+	}
+
+	/** Called by {@link IScanContext} implementations when a symbol type is found in their cache */
+	public void symbolCacheHit() {
+		symbolCacheHits++;
+	}
+
+	/** Report the metrics of the current pass, if not already done */
+	void report(ITracer tracer) {
+		if (!pending) {
+			return;
+		}
+		pending = false;
+		tracer.trace(TraceOptions.SYNTAX_COLOR__SCANNER,
+				"range [offset:", rangeOffset, ", length:", rangeLength, "]",
+				" tokens:", tokens,
+				" symbols:", symbols,
+				" symbol cache hits:", symbolCacheHits,
+				" setRange:", setRangeNanos, "ns",
+				" symbols classification:", classifyNanos, "ns",
+				" total:", System.nanoTime() - startNanos, "ns");
+	}
+}
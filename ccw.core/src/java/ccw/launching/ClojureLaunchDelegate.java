@@ -32,6 +32,7 @@ import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.debug.core.ILaunch;
 import org.eclipse.debug.core.ILaunchConfiguration;
 import org.eclipse.debug.core.model.IProcess;
+import org.eclipse.debug.ui.DebugUITools;
 import org.eclipse.jdt.launching.IJavaLaunchConfigurationConstants;
 import org.eclipse.jdt.launching.JavaLaunchDelegate;
 import org.eclipse.jface.dialogs.ErrorDialog;
@@ -60,7 +61,7 @@ import clojure.lang.Var;
 public class ClojureLaunchDelegate extends JavaLaunchDelegate {
 
     private static Var currentLaunch = Var.create().setDynamic(true);
-    private final ClojureInvoker coreLaunch = ClojureInvoker.newInvoker(CCWPlugin.getDefault(), "ccw.core.launch");
+    private static final ClojureInvoker coreLaunch = ClojureInvoker.newInvoker(CCWPlugin.getDefault(), "ccw.core.launch");
     private static IConsole lastConsoleOpened;
     
     static {
@@ -139,30 +140,8 @@ public class ClojureLaunchDelegate extends JavaLaunchDelegate {
 		            		CCWPlugin.logWarning("REPL url for launch " + launchName + " has not been provided");
 		            		return Status.CANCEL_STATUS;
 		            	} else {
-		            		String url = (String) replURL; 
-		            		coreLaunch.__("on-nrepl-server-instanciated", url, LaunchUtils.getProjectName(launch));
-		            		
-		                    // only using a latch because getProject().touch can call done() more than once
-		                    final CountDownLatch projectTouchLatch = new CountDownLatch(1);
-	                    	if (isAutoReloadEnabled(launch) && getProject() != null) {
-	                			try {
-	                    			getProject().touch(new NullProgressMonitor() {
-	                    				public void done() {
-	                    					projectTouchLatch.countDown();
-	                    				}
-	                    			});
-	                			} catch (CoreException e) {
-	                				final String MSG = "unexpected exception during project refresh for auto-load on startup";
-	                				ErrorDialog.openError(PlatformUI.getWorkbench().getActiveWorkbenchWindow().getShell(),
-	                						"REPL Connection failure", MSG, e.getStatus());
-	                    		}
-	                    	} else {
-	                    		projectTouchLatch.countDown();
-	                    	}
-	                    	try {
-	                            projectTouchLatch.await();
-	                        } catch (InterruptedException e) {}
-	                    	syncConnectRepl(url, o.e2);
+		            		String startingNamespace = launch.getLaunchConfiguration().getAttribute(LaunchUtils.ATTR_NS_TO_START_IN, "user");
+		            		connectREPL(launch, (String) replURL, getConsole(launch), startingNamespace, o.e2, makeActiveREPL);
 	                    	return Status.OK_STATUS;
 		            	}
 	            	} catch (Exception e) {
@@ -180,39 +159,84 @@ public class ClojureLaunchDelegate extends JavaLaunchDelegate {
 				CCWPlugin.logError("Failure to connect to REPL", e);
 			}
         }
-        
-        private IProject getProject() {
-    		try {
-    			return LaunchUtils.getProject(launch);
-    		} catch (CoreException e) {
-    			CCWPlugin.logWarning("Unable to get project for launch configuration", e);
-    			return null;
+    }
+    
+    /**
+     * @return the console of the process of launch, or the last console opened
+     *         if it has none: lastConsoleOpened may belong to another launch,
+     *         e.g. when warm REPLs are launched in the background
+     */
+    static IConsole getConsole(ILaunch launch) {
+    	IProcess[] processes = launch.getProcesses();
+    	IConsole console = (processes.length > 0) ? DebugUITools.getConsole(processes[0]) : null;
+    	return (console != null) ? console : lastConsoleOpened;
+    }
+
+    /**
+     * Connect a REPLView to the nREPL server at replURL, started by launch:
+     * notifies the nREPL servers listeners, touches the project for auto-load
+     * on startup if enabled, then opens the REPLView.
+     * Must not be called from the UI thread.
+     */
+    static void connectREPL(final ILaunch launch, final String replURL, final IConsole console,
+    		final String startingNamespace, final IWithREPLView withREPLView, final boolean makeActiveREPL) {
+		coreLaunch.__("on-nrepl-server-instanciated", replURL, LaunchUtils.getProjectName(launch));
+		
+        // only using a latch because getProject().touch can call done() more than once
+        final CountDownLatch projectTouchLatch = new CountDownLatch(1);
+        IProject project = getProject(launch);
+    	if (isAutoReloadEnabled(launch) && project != null) {
+			try {
+    			project.touch(new NullProgressMonitor() {
+    				public void done() {
+    					projectTouchLatch.countDown();
+    				}
+    			});
+			} catch (CoreException e) {
+				final String MSG = "unexpected exception during project refresh for auto-load on startup";
+				ErrorDialog.openError(PlatformUI.getWorkbench().getActiveWorkbenchWindow().getShell(),
+						"REPL Connection failure", MSG, e.getStatus());
     		}
+    	} else {
+    		projectTouchLatch.countDown();
     	}
-        private void syncConnectRepl(final String replURL, final IWithREPLView withREPLView) {
-        	DisplayUtil.syncExec(new Runnable() {
-				@Override public void run() {
-					try {
-						REPLView replView = REPLView.connect(replURL, lastConsoleOpened, launch, makeActiveREPL);
-						String startingNamespace = REPLURLOpener.this.launch.getLaunchConfiguration().getAttribute(LaunchUtils.ATTR_NS_TO_START_IN, "user");
-	                	replView.setCurrentNamespace(startingNamespace);
-	                	if (withREPLView != null) {
-	                		withREPLView.run(replView);
-	                	}
-	                	replView.setFocus();
-					} catch (Exception e) {
-						throw new RuntimeException("Could not connect REPL to local launch", e);
-	                }
-				}
-        	});
-        }
+    	try {
+            projectTouchLatch.await();
+        } catch (InterruptedException e) {}
+    	
+    	DisplayUtil.syncExec(new Runnable() {
+			@Override public void run() {
+				try {
+					REPLView replView = REPLView.connect(replURL, console, launch, makeActiveREPL);
+                	replView.setCurrentNamespace(startingNamespace);
+                	if (withREPLView != null) {
+                		withREPLView.run(replView);
+                	}
+                	replView.setFocus();
+				} catch (Exception e) {
+					throw new RuntimeException("Could not connect REPL to local launch", e);
+                }
+			}
+    	});
     }
     
+    private static IProject getProject(ILaunch launch) {
+		try {
+			return LaunchUtils.getProject(launch);
+		} catch (CoreException e) {
+			CCWPlugin.logWarning("Unable to get project for launch configuration", e);
+			return null;
+		}
+	}
+    
     
     @Override
     public void launch(ILaunchConfiguration configuration, String mode, final ILaunch launch, IProgressMonitor monitor) throws CoreException {
     	LaunchUtils.setProjectName(launch, configuration.getAttribute(LaunchUtils.ATTR_PROJECT_NAME, (String) null));
     	
+    	boolean prewarmed = configuration.getAttribute(LaunchUtils.ATTR_PREWARMED, false);
+    	launch.setAttribute(LaunchUtils.ATTR_PREWARMED, Boolean.toString(prewarmed));
+    	
     	Boolean activateAutoReload = CCWPlugin.isAutoReloadOnStartupSaveEnabled();
         launch.setAttribute(LaunchUtils.ATTR_IS_AUTO_RELOAD_ENABLED, Boolean.toString(activateAutoReload));
 
@@ -233,7 +257,8 @@ public class ClojureLaunchDelegate extends JavaLaunchDelegate {
             for(IProcess p: launch.getProcesses()) {
             	CCWPlugin.log("Launched process with command line: " + p.getAttribute(IProcess.ATTR_CMDLINE));
             }
-            if (isLaunchREPL(configuration)) {
+            // The REPLs started in the background are connected once adopted, see WarmREPLPool
+            if (isLaunchREPL(configuration) && !prewarmed) {
 				new REPLURLOpener(launch, true).done();
             }
         } finally {
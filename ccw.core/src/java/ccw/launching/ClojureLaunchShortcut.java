@@ -237,6 +237,11 @@ public class ClojureLaunchShortcut implements ILaunchShortcut, IJavaLaunchConfig
         	}
         		
             if (config != null) {
+            	if (CCWPlugin.isPrewarmedREPLsEnabled()
+            			&& WarmREPLPool.getDefault().adopt(project, config, mode, filesToLaunch, runOnceREPLAvailable)) {
+            		return;
+            	}
+            	
             	final String name = config.getName() + " #" + incTempLaunchCount(project.getName());
 				ILaunchConfigurationWorkingCopy runnableConfiguration =
             	    config.copy(name);
@@ -250,6 +255,10 @@ public class ClojureLaunchShortcut implements ILaunchShortcut, IJavaLaunchConfig
 	            		runnableConfiguration.setAttribute(LaunchUtils.ATTR_NS_TO_START_IN, ClojureCore.findMaybeLibNamespace(filesToLaunch[0]));
 	            	}
 	            	runnableConfiguration.launch(mode, null);
+	            	if (CCWPlugin.isPrewarmedREPLsEnabled()) {
+	            		// Ready for the next launch
+	            		WarmREPLPool.getDefault().warm(project, config, mode);
+	            	}
 	            	return;
             	} finally {
             		runnableConfiguration.delete();
@@ -57,6 +57,12 @@ public final class LaunchUtils implements IJavaLaunchConfigurationConstants {
 
 	public static final String ATTR_LEININGEN_CONFIGURATION = "ccw.leiningen.configuration";
 
+	/**
+	 * Configuration and launch attribute set to "true" for the REPLs started in
+	 * the background, until a REPL launch adopts them (see {@link WarmREPLPool})
+	 */
+	public static final String ATTR_PREWARMED = "CCW_ATTR_PREWARMED";
+
 	/**
 	 * @param files
 	 * @param lastFileAsScript if true, does not install the last arg as a resource to load, but as
@@ -191,10 +197,15 @@ public final class LaunchUtils implements IJavaLaunchConfigurationConstants {
     	ILaunchManager launchManager = DebugPlugin.getDefault().getLaunchManager();
     	for (ILaunch launch: launchManager.getLaunches()) {
     		if (!launch.isTerminated() 
+    				&& !isPrewarmed(launch)
     				&& projectName.equals(getProjectName(launch))) {
    				ret.add(launch);
     		}
     	}
     	return ret;
     }
+
+    public static boolean isPrewarmed(ILaunch launch) {
+    	return Boolean.parseBoolean(launch.getAttribute(ATTR_PREWARMED));
+    }
 }
@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Laurent Petit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Laurent PETIT - initial API and implementation
+ *******************************************************************************/
+package ccw.launching;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.debug.core.DebugException;
+import org.eclipse.debug.core.ILaunch;
+import org.eclipse.debug.core.ILaunchConfiguration;
+import org.eclipse.debug.core.ILaunchConfigurationWorkingCopy;
+import org.eclipse.debug.core.model.IProcess;
+import org.eclipse.debug.ui.DebugUITools;
+import org.eclipse.jdt.core.ElementChangedEvent;
+import org.eclipse.jdt.core.IElementChangedListener;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IJavaElementDelta;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jface.util.IPropertyChangeListener;
+import org.eclipse.jface.util.PropertyChangeEvent;
+import org.eclipse.ui.console.IConsole;
+
+import ccw.CCWPlugin;
+import ccw.ClojureCore;
+import ccw.TraceOptions;
+import ccw.launching.ClojureLaunchShortcut.IWithREPLView;
+import ccw.preferences.PreferenceConstants;
+import ccw.repl.REPLView;
+import ccw.util.Pair;
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+
+/**
+ * REPLs started in the background, one per project, so that the next REPL
+ * launch of the project adopts an already started JVM with an nREPL server
+ * bound, instead of waiting for a new JVM.
+ * <p>
+ * A REPL is warmed from the launch configuration of the last REPL launch of
+ * the project, without files to load at startup: files are loaded once the
+ * REPL is adopted. It is only adopted by a launch with the same launch
+ * configuration and mode. The REPL of a project is terminated, and a new one
+ * started, when the classpath of the project changes.
+ * </p>
+ * Enabled by the {@link PreferenceConstants#CCW_GENERAL_PREWARMED_REPLS}
+ * preference.
+ */
+public final class WarmREPLPool {
+
+	private static final long REPL_START_TIMEOUT_MS = 600000L;
+
+	/** Delay before warming a new REPL once the classpath of a project changed */
+	private static final long REWARM_DELAY_MS = 5000L;
+
+	private static WarmREPLPool instance;
+
+	private static final class WarmREPL {
+		final ILaunch launch;
+		final String url;
+		final ILaunchConfiguration config;
+		final Map<?, ?> configAttributes;
+		final String mode;
+
+		WarmREPL(ILaunch launch, String url, ILaunchConfiguration config, Map<?, ?> configAttributes, String mode) {
+			this.launch = launch;
+			this.url = url;
+			this.config = config;
+			this.configAttributes = configAttributes;
+			this.mode = mode;
+		}
+
+		boolean matches(ILaunchConfiguration config, String mode) throws CoreException {
+			return this.mode.equals(mode) && configAttributes.equals(config.getAttributes());
+		}
+	}
+
+	/** Adopt-able REPLs, by project name */
+	private final Map<String, WarmREPL> warmREPLs = new HashMap<String, WarmREPL>();
+
+	/** Jobs starting REPLs, by project name */
+	private final Map<String, WarmJob> warmJobs = new HashMap<String, WarmJob>();
+
+	private final AtomicLong warmCount = new AtomicLong();
+
+	private final IElementChangedListener classpathListener = new IElementChangedListener() {
+		@Override public void elementChanged(ElementChangedEvent event) {
+			for (IJavaElementDelta delta: event.getDelta().getAffectedChildren()) {
+				if (delta.getElement().getElementType() == IJavaElement.JAVA_PROJECT
+						&& (delta.getFlags() & (IJavaElementDelta.F_CLASSPATH_CHANGED
+								| IJavaElementDelta.F_RESOLVED_CLASSPATH_CHANGED)) != 0) {
+					invalidate(delta.getElement().getJavaProject().getProject());
+				}
+			}
+		}
+	};
+
+	private final IPropertyChangeListener preferenceListener = new IPropertyChangeListener() {
+		@Override public void propertyChange(PropertyChangeEvent event) {
+			if (PreferenceConstants.CCW_GENERAL_PREWARMED_REPLS.equals(event.getProperty())
+					&& !CCWPlugin.isPrewarmedREPLsEnabled()) {
+				clear();
+			}
+		}
+	};
+
+	private WarmREPLPool() {
+		JavaCore.addElementChangedListener(classpathListener, ElementChangedEvent.POST_CHANGE);
+		CCWPlugin.getDefault().getPreferenceStore().addPropertyChangeListener(preferenceListener);
+	}
+
+	public static synchronized WarmREPLPool getDefault() {
+		if (instance == null) {
+			instance = new WarmREPLPool();
+		}
+		return instance;
+	}
+
+	/** Terminate the REPLs of the pool, if it has been created, and dispose of it */
+	public static synchronized void shutdown() {
+		if (instance != null) {
+			JavaCore.removeElementChangedListener(instance.classpathListener);
+			CCWPlugin.getDefault().getPreferenceStore().removePropertyChangeListener(instance.preferenceListener);
+			instance.clear();
+			instance = null;
+		}
+	}
+
+	private class WarmJob extends Job {
+		private final IProject project;
+		private final ILaunchConfiguration config;
+		private final String mode;
+
+		WarmJob(IProject project, ILaunchConfiguration config, String mode) {
+			super("Starting a REPL in the background for project " + project.getName());
+			this.project = project;
+			this.config = config;
+			this.mode = mode;
+			setSystem(true);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			try {
+				startREPL(this, monitor);
+				return Status.OK_STATUS;
+			} catch (CoreException e) {
+				CCWPlugin.logError("Unable to start a REPL in the background for project " + project.getName(), e);
+				return Status.OK_STATUS;
+			} finally {
+				synchronized (WarmREPLPool.this) {
+					if (warmJobs.get(project.getName()) == this) {
+						warmJobs.remove(project.getName());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start, in the background, a REPL for project with config in mode,
+	 * unless one is already started or starting for them.
+	 */
+	public void warm(IProject project, ILaunchConfiguration config, String mode) {
+		warm(project, config, mode, 0);
+	}
+
+	private synchronized void warm(IProject project, ILaunchConfiguration config, String mode, long delay) {
+		if (!CCWPlugin.isPrewarmedREPLsEnabled()) {
+			return;
+		}
+		String name = project.getName();
+		WarmREPL warm = warmREPLs.get(name);
+		try {
+			if (warm != null && !warm.launch.isTerminated() && warm.matches(config, mode)) {
+				return;
+			}
+		} catch (CoreException e) {
+			CCWPlugin.logError("Unable to read launch configuration " + config.getName(), e);
+			return;
+		}
+		if (warm != null) {
+			warmREPLs.remove(name);
+			terminate(warm.launch);
+		}
+		WarmJob job = warmJobs.get(name);
+		if (job != null) {
+			if (delay == 0 && job.mode.equals(mode) && job.getState() == Job.RUNNING) {
+				return;
+			}
+			job.cancel();
+		}
+		job = new WarmJob(project, config, mode);
+		warmJobs.put(name, job);
+		job.schedule(delay);
+	}
+
+	private void startREPL(WarmJob job, IProgressMonitor monitor) throws CoreException {
+		Map<?, ?> configAttributes = job.config.getAttributes();
+		String name = job.config.getName() + " (background #" + warmCount.incrementAndGet() + ")";
+		ILaunchConfigurationWorkingCopy wc = job.config.copy(name);
+		ILaunch launch;
+		Object replURLPromise = ClojureLaunchDelegate.promise();
+		try {
+			ClojureLaunchShortcut.launchNameREPLURLPromiseAndWithREPLView.put(name, new Pair<Object,IWithREPLView>(replURLPromise, null));
+			wc.setAttribute(LaunchUtils.ATTR_PREWARMED, true);
+			LaunchUtils.setFilesToLaunchString(wc, null);
+			wc.removeAttribute(LaunchUtils.ATTR_NS_TO_START_IN);
+			CCWPlugin.getTracer().trace(TraceOptions.LAUNCHER, "starting REPL " + name + " in the background");
+			launch = wc.launch(job.mode, null);
+		} finally {
+			wc.delete();
+		}
+
+		String url = awaitREPLURL(launch, replURLPromise, monitor);
+		synchronized (this) {
+			if (url == null || monitor.isCanceled() || warmJobs.get(job.project.getName()) != job) {
+				terminate(launch);
+				return;
+			}
+			warmREPLs.put(job.project.getName(), new WarmREPL(launch, url, job.config, configAttributes, job.mode));
+		}
+		CCWPlugin.getTracer().trace(TraceOptions.LAUNCHER, "REPL " + name + " started in the background on " + url);
+	}
+
+	/**
+	 * @return the nREPL URL delivered to replURLPromise, or null if launch
+	 *         terminated, monitor got cancelled, or it timed out
+	 */
+	private static String awaitREPLURL(ILaunch launch, Object replURLPromise, IProgressMonitor monitor) {
+		IFn deref = Clojure.var("clojure.core", "deref");
+		Object timeOutObject = new Object();
+		long deadline = System.currentTimeMillis() + REPL_START_TIMEOUT_MS;
+		while (!launch.isTerminated() && !monitor.isCanceled() && System.currentTimeMillis() < deadline) {
+			Object replURL = deref.invoke(replURLPromise, 500L, timeOutObject);
+			if (replURL != timeOutObject) {
+				return (replURL instanceof String) ? (String) replURL : null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Connect a new REPLView to the REPL started in the background for project,
+	 * if it matches config and mode, load filesToLaunch in it, then run
+	 * withREPLView. A new REPL is then started in the background.
+	 * Must not be called from the UI thread.
+	 * @return true if a REPL has been adopted
+	 */
+	public boolean adopt(IProject project, ILaunchConfiguration config, String mode,
+			final IFile[] filesToLaunch, final IWithREPLView withREPLView) throws CoreException {
+		WarmREPL warm;
+		synchronized (this) {
+			warm = warmREPLs.get(project.getName());
+			if (warm == null || !warm.matches(config, mode)) {
+				return false;
+			}
+			warmREPLs.remove(project.getName());
+		}
+		if (warm.launch.isTerminated()) {
+			return false;
+		}
+		CCWPlugin.getTracer().trace(TraceOptions.LAUNCHER, "adopting REPL " + warm.launch.getLaunchConfiguration().getName());
+		warm.launch.setAttribute(LaunchUtils.ATTR_PREWARMED, Boolean.toString(false));
+
+		String startingNamespace = (filesToLaunch.length > 0)
+				? ClojureCore.findMaybeLibNamespace(filesToLaunch[0])
+				: config.getAttribute(LaunchUtils.ATTR_NS_TO_START_IN, "user");
+		IProcess[] processes = warm.launch.getProcesses();
+		IConsole console = (processes.length > 0) ? DebugUITools.getConsole(processes[0]) : null;
+		ClojureLaunchDelegate.connectREPL(warm.launch, warm.url, console, startingNamespace, new IWithREPLView() {
+			@Override public void run(REPLView replView) {
+				for (IFile file: filesToLaunch) {
+					// We use load so that the right info are compiled for use with breakpoints in a debugger
+					String path = ClojureCore.getAsRootClasspathRelativePath(file);
+					int offset = path.lastIndexOf(".clj");
+					replView.evalExpression("(load \"" + path.substring(0, offset) + "\")", false, true, false);
+				}
+				if (withREPLView != null) {
+					withREPLView.run(replView);
+				}
+			}
+		}, true);
+
+		warm(project, config, mode);
+		return true;
+	}
+
+	/** Terminate the REPL of project, and start a new one shortly */
+	private synchronized void invalidate(IProject project) {
+		WarmREPL warm = warmREPLs.get(project.getName());
+		WarmJob job = warmJobs.get(project.getName());
+		if (warm == null && job == null) {
+			return;
+		}
+		CCWPlugin.getTracer().trace(TraceOptions.LAUNCHER, "classpath of project " + project.getName() + " changed, restarting its background REPL");
+		ILaunchConfiguration config = (warm != null) ? warm.config : job.config;
+		String mode = (warm != null) ? warm.mode : job.mode;
+		if (warm != null) {
+			warmREPLs.remove(project.getName());
+			terminate(warm.launch);
+		}
+		if (job != null) {
+			job.cancel();
+			warmJobs.remove(project.getName());
+		}
+		warm(project, config, mode, REWARM_DELAY_MS);
+	}
+
+	/** Terminate all the REPLs of the pool */
+	private synchronized void clear() {
+		for (WarmJob job: new ArrayList<WarmJob>(warmJobs.values())) {
+			job.cancel();
+		}
+		warmJobs.clear();
+		List<WarmREPL> warms = new ArrayList<WarmREPL>(warmREPLs.values());
+		warmREPLs.clear();
+		for (WarmREPL warm: warms) {
+			terminate(warm.launch);
+		}
+	}
+
+	private static void terminate(ILaunch launch) {
+		try {
+			if (!launch.isTerminated()) {
+				launch.terminate();
+			}
+		} catch (DebugException e) {
+			CCWPlugin.logError("Unable to terminate the REPL started in the background " + launch.getLaunchConfiguration().getName(), e);
+		}
+	}
+}
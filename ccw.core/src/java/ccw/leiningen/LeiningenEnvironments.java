@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Laurent Petit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Laurent PETIT - initial API and implementation
+ *******************************************************************************/
+package ccw.leiningen;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.ResourcesPlugin;
+
+import ccw.CCWPlugin;
+import ccw.util.ClojureInvoker;
+import clojure.lang.Namespace;
+import clojure.lang.Symbol;
+
+/**
+ * Disposes of the Leiningen environments (see <code>ccw.leiningen.util</code>):
+ * the isolated environment of a project when it is closed or deleted, and
+ * all the environments when the plugin stops.
+ */
+public final class LeiningenEnvironments implements IResourceChangeListener {
+
+	private static final String UTIL_NAMESPACE = "ccw.leiningen.util";
+
+	public void start() {
+		ResourcesPlugin.getWorkspace().addResourceChangeListener(this,
+				IResourceChangeEvent.PRE_CLOSE | IResourceChangeEvent.PRE_DELETE);
+	}
+
+	public void stop() {
+		ResourcesPlugin.getWorkspace().removeResourceChangeListener(this);
+		if (isLoaded()) {
+			try {
+				util().__("dispose-envs!");
+			} catch (Exception e) {
+				CCWPlugin.logError("Error while disposing of the Leiningen environments", e);
+			}
+		}
+	}
+
+	@Override
+	public void resourceChanged(IResourceChangeEvent event) {
+		if (event.getResource() instanceof IProject && isLoaded()) {
+			IProject project = (IProject) event.getResource();
+			try {
+				util().__("dispose-project-env!", project);
+			} catch (Exception e) {
+				CCWPlugin.logError("Error while disposing of the Leiningen environment of project " + project.getName(), e);
+			}
+		}
+	}
+
+	/** No environment can exist if ccw.leiningen.util has not been loaded yet */
+	private static boolean isLoaded() {
+		return Namespace.find(Symbol.intern(UTIL_NAMESPACE)) != null;
+	}
+
+	private static ClojureInvoker util() {
+		return ClojureInvoker.newInvoker(CCWPlugin.getDefault(), UTIL_NAMESPACE);
+	}
+}
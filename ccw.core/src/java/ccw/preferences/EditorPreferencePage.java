@@ -54,6 +54,9 @@ public class EditorPreferencePage extends FieldEditorPreferencePage implements
         addField(
             	new BooleanFieldEditor(ccw.preferences.PreferenceConstants.SHOW_RAINBOW_PARENS_BY_DEFAULT, Messages.ClojurePreferencePage_show_rainbow_parens_by_default, getFieldEditorParent()));
         
+        addField(
+            	new BooleanFieldEditor(ccw.preferences.PreferenceConstants.EDITOR_REPL_AWARE_SYNTAX_COLORING, Messages.ClojurePreferencePage_repl_aware_syntax_coloring, getFieldEditorParent()));
+        
         addField(
             	new BooleanFieldEditor(ccw.preferences.PreferenceConstants.EDITOR_ESCAPE_ON_PASTE, Messages.ClojurePreferencePage_escape_on_paste, getFieldEditorParent()));
         
@@ -47,6 +47,18 @@ public class GeneralPreferencePage extends FieldEditorPreferencePage implements
                     Messages.ClojureGeneralPreferencePage_auto_reload_on_startup_save,
                     getFieldEditorParent()));
 
+        addField(
+                new BooleanFieldEditor(
+                	ccw.preferences.PreferenceConstants.CCW_GENERAL_PARALLEL_NAMESPACES_COMPILATION,
+                    Messages.ClojureGeneralPreferencePage_parallel_namespaces_compilation,
+                    getFieldEditorParent()));
+
+        addField(
+                new BooleanFieldEditor(
+                	ccw.preferences.PreferenceConstants.CCW_GENERAL_PREWARMED_REPLS,
+                    Messages.ClojureGeneralPreferencePage_prewarmed_repls,
+                    getFieldEditorParent()));
+
         addField(
                 new BooleanFieldEditor(
                 	ccw.preferences.PreferenceConstants.CCW_GENERAL_LAUNCH_REPLS_IN_DEBUG_MODE,
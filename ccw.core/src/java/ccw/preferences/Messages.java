@@ -31,6 +31,7 @@ public class Messages extends NLS {
     public static String ClojurePreferencePage_use_strict_structural_editing_mode_by_default;
     
     public static String ClojurePreferencePage_show_rainbow_parens_by_default;
+    public static String ClojurePreferencePage_repl_aware_syntax_coloring;
 
     public static String ClojurePreferencePage_use_tab_for_reindenting_line;
 
@@ -139,6 +140,7 @@ public class Messages extends NLS {
 
     public static String REPLViewPreferencePage_pprintResult;
     public static String REPLViewPreferencePage_pprintRightMargin;
+    public static String REPLViewPreferencePage_logMaxLines;
     public static String ClojureREPLHistoryPreferencePage_Description;
     public static String REPLHistoryPreferencePage_max_size;
     public static String REPLHistoryPreferencePage_persist_schedule;
@@ -146,6 +148,8 @@ public class Messages extends NLS {
     public static String ClojureGeneralPreferencePage_Description;
     public static String ClojureGeneralPreferencePage_automatic_nature_addition;
     public static String ClojureGeneralPreferencePage_auto_reload_on_startup_save;
+    public static String ClojureGeneralPreferencePage_parallel_namespaces_compilation;
+    public static String ClojureGeneralPreferencePage_prewarmed_repls;
     public static String ClojureGeneralPreferencePage_launch_repls_in_debug_mode;
     public static String ClojureGeneralPreferencePage_use_leiningen_launcher;
     public static String ClojureGeneralPreferencePage_use_cider_nrepl;
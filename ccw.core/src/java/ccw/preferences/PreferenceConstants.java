@@ -140,6 +140,12 @@ public class PreferenceConstants {
     public static final String CCW_GENERAL_AUTOMATIC_NATURE_ADDITION = CCW_PREFERENCE_PREFIX + ".automatic_nature_addition";
     
     public static final String CCW_GENERAL_AUTO_RELOAD_ON_STARTUP_SAVE = CCW_PREFERENCE_PREFIX + ".auto_reload_on_startup_save";
+
+    /** Will the namespaces loaded on start and on save be compiled in parallel, when independent? */
+    public static final String CCW_GENERAL_PARALLEL_NAMESPACES_COMPILATION = CCW_PREFERENCE_PREFIX + ".parallel_namespaces_compilation";
+
+    /** Will a started JVM be kept ready per project, for the next REPL launch? */
+    public static final String CCW_GENERAL_PREWARMED_REPLS = CCW_PREFERENCE_PREFIX + ".prewarmed_repls";
     
     public static final String CCW_GENERAL_LAUNCH_REPLS_IN_DEBUG_MODE = CCW_PREFERENCE_PREFIX + ".automatic_launch_repls_in_debug_mode";
 
@@ -157,6 +163,9 @@ public class PreferenceConstants {
 	public static final String USE_STRICT_STRUCTURAL_EDITING_MODE_BY_DEFAULT = CCW_PREFERENCE_PREFIX + ".use_strict_structural_editing_mode_by_default"; //$NON-NLS-1$
 	public static final String SHOW_RAINBOW_PARENS_BY_DEFAULT = CCW_PREFERENCE_PREFIX + ".show_rainbow_parens_by_default"; //$NON-NLS-1$
 
+	/** Will symbols be colored using the vars of their namespace in the active REPL? */
+	public static final String EDITOR_REPL_AWARE_SYNTAX_COLORING = CCW_PREFERENCE_PREFIX + ".editor.repl_aware_syntax_coloring"; //$NON-NLS-1$
+
 	public static final String USE_TAB_FOR_REINDENTING_LINE = CCW_PREFERENCE_PREFIX + ".use_tab_for_reindenting_line"; //$NON-NLS-1$
 	
 	public static final String FORCE_TWO_SPACES_INDENT = CCW_PREFERENCE_PREFIX + ".force_two_spaces_indent"; //$NON-NLS-1$
@@ -176,6 +185,7 @@ public class PreferenceConstants {
     public static final String REPL_VIEW_DISPLAY_HINTS = CCW_PREFERENCE_PREFIX + ".repl_view_display_hints"; //$NON-NLS-1$
     public static final String REPL_VIEW_PPRINT_RESULT = CCW_PREFERENCE_PREFIX + " .repl_view_pprint_result";
 	public static final String REPL_VIEW_PPRINT_RIGHT_MARGIN = CCW_PREFERENCE_PREFIX + " .repl_view_pprint_right_margin";
+    public static final String REPL_VIEW_LOG_MAX_LINES = CCW_PREFERENCE_PREFIX + ".repl_view_log_max_lines"; //$NON-NLS-1$
 
     public static final String REPL_HISTORY_MAX_SIZE = CCW_PREFERENCE_PREFIX + ".repl_history_max_size"; //$NON-NLS-1$
     public static final String REPL_HISTORY_PERSIST_SCHEDULE = CCW_PREFERENCE_PREFIX + ".repl_history_persist_schedule"; //$NON-NLS-1$
@@ -79,6 +79,8 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer {
 	    
 	    store.setDefault(PreferenceConstants.CCW_GENERAL_AUTOMATIC_NATURE_ADDITION, true);
 	    store.setDefault(PreferenceConstants.CCW_GENERAL_AUTO_RELOAD_ON_STARTUP_SAVE, false);
+	    store.setDefault(PreferenceConstants.CCW_GENERAL_PARALLEL_NAMESPACES_COMPILATION, false);
+	    store.setDefault(PreferenceConstants.CCW_GENERAL_PREWARMED_REPLS, false);
 	    store.setDefault(PreferenceConstants.CCW_GENERAL_LAUNCH_REPLS_IN_DEBUG_MODE, true);
 	    store.setDefault(PreferenceConstants.CCW_GENERAL_USE_LEININGEN_LAUNCHER, true);
 	    store.setDefault(PreferenceConstants.CCW_GENERAL_USE_CIDER_NREPL, true);
@@ -94,6 +96,7 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer {
 	    store.setDefault(PreferenceConstants.SWITCH_TO_NS_ON_REPL_STARTUP, true);
 	    store.setDefault(USE_STRICT_STRUCTURAL_EDITING_MODE_BY_DEFAULT, false);
 	    store.setDefault(PreferenceConstants.SHOW_RAINBOW_PARENS_BY_DEFAULT, true);
+	    store.setDefault(PreferenceConstants.EDITOR_REPL_AWARE_SYNTAX_COLORING, false);
 	    store.setDefault(PreferenceConstants.USE_TAB_FOR_REINDENTING_LINE, true);
 	    store.setDefault(PreferenceConstants.FORCE_TWO_SPACES_INDENT, false);
 	    
@@ -101,6 +104,7 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer {
 	    store.setDefault(PreferenceConstants.REPL_VIEW_DISPLAY_HINTS, true);
 	    store.setDefault(PreferenceConstants.REPL_VIEW_PPRINT_RESULT, true);
 	    store.setDefault(PreferenceConstants.REPL_VIEW_PPRINT_RIGHT_MARGIN, 40);
+	    store.setDefault(PreferenceConstants.REPL_VIEW_LOG_MAX_LINES, 10000);
 
 	    store.setDefault(PreferenceConstants.REPL_HISTORY_MAX_SIZE, 1000);
 	    store.setDefault(PreferenceConstants.REPL_HISTORY_PERSIST_SCHEDULE, 30000);
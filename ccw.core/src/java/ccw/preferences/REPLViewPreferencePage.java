@@ -56,6 +56,12 @@ public class REPLViewPreferencePage extends FieldEditorPreferencePage implements
                         Messages.REPLViewPreferencePage_pprintRightMargin,
                         getFieldEditorParent()));
 
+        addField(
+                new IntegerFieldEditor(
+                        ccw.preferences.PreferenceConstants.REPL_VIEW_LOG_MAX_LINES,
+                        Messages.REPLViewPreferencePage_logMaxLines,
+                        getFieldEditorParent()));
+
     }
 
     public void init(IWorkbench workbench) {
@@ -1,8 +1,15 @@
 package ccw.repl;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -16,6 +23,7 @@ import org.eclipse.jface.viewers.CellLabelProvider;
 import org.eclipse.jface.viewers.ColumnViewerToolTipSupport;
 import org.eclipse.jface.viewers.DoubleClickEvent;
 import org.eclipse.jface.viewers.IDoubleClickListener;
+import org.eclipse.jface.viewers.IElementComparer;
 import org.eclipse.jface.viewers.ISelection;
 import org.eclipse.jface.viewers.ISelectionChangedListener;
 import org.eclipse.jface.viewers.ISelectionProvider;
@@ -27,6 +35,7 @@ import org.eclipse.jface.viewers.TreePath;
 import org.eclipse.jface.viewers.TreeViewer;
 import org.eclipse.jface.viewers.Viewer;
 import org.eclipse.jface.viewers.ViewerCell;
+import org.eclipse.jface.viewers.ViewerComparator;
 import org.eclipse.jface.viewers.ViewerFilter;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.ModifyEvent;
@@ -55,7 +64,7 @@ import ccw.util.ClojureDocUtils;
 import ccw.util.ClojureInvoker;
 import ccw.util.DisplayUtil;
 import clojure.lang.Keyword;
-import clojure.tools.nrepl.Connection.Response;
+import clojure.lang.RT;
 
 public class NamespaceBrowser extends ViewPart implements ISelectionProvider, ISelectionChangedListener {
 	/**
@@ -77,6 +86,15 @@ public class NamespaceBrowser extends ViewPart implements ISelectionProvider, IS
 	public static final Keyword KEYWORD_NS = Keyword.intern(null, "ns");
 	private static final Keyword KEYWORD_FILE = Keyword.intern(null, "file");
 	private static final Keyword KEYWORD_LINE = Keyword.intern(null, "line");
+	private static final Keyword KEYWORD_VERSION = Keyword.intern(null, "version");
+	private static final Keyword KEYWORD_FULL = Keyword.intern(null, "full");
+	private static final Keyword KEYWORD_NAMESPACES = Keyword.intern(null, "namespaces");
+	private static final Keyword KEYWORD_ADDED = Keyword.intern(null, "added");
+	private static final Keyword KEYWORD_CHANGED = Keyword.intern(null, "changed");
+	private static final Keyword KEYWORD_REMOVED = Keyword.intern(null, "removed");
+
+	/** Type of the child of the namespace nodes whose vars are being loaded */
+	private static final String TYPE_PENDING = "pending";
 
 	private ListenerList selectionChangedListeners = new ListenerList();
 
@@ -96,6 +114,34 @@ public class NamespaceBrowser extends ViewPart implements ISelectionProvider, IS
 
 	private static final String VAR_DOC_INFO = "var-doc-info-text";
 
+	private final ClojureInvoker namespaceBrowser =
+			ClojureInvoker.newInvoker(
+					CCWPlugin.getDefault(),
+					"ccw.repl.namespace-browser");
+
+	/** Identifies this browser's snapshot in the REPL, see ccw.repl.namespace-browser */
+	private final String clientId = UUID.randomUUID().toString();
+
+	/** The REPL the tree has been fetched from */
+	private volatile SafeConnection snapshotRepl;
+
+	/** The version of the snapshot of the tree in snapshotRepl, or -1 */
+	private volatile long snapshotVersion = -1;
+
+	/** The tree input, namespace nodes by name. Only modified in the UI thread. */
+	private final Namespaces namespaces = new Namespaces();
+
+	/** The var nodes of the namespaces, loaded when their node is expanded */
+	private final Map<String, Object[]> varsByNamespace = new ConcurrentHashMap<String, Object[]>();
+
+	/** The namespaces whose vars are being loaded */
+	private final Set<String> loadingNamespaces = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** The input of the tree: the namespace nodes, sorted by name */
+	private static final class Namespaces {
+		private final SortedMap<String, Map> nodes = new TreeMap<String, Map>();
+	}
+
 	/**
 	 * Creates a content outline view with no content outline pages.
 	 */
@@ -155,9 +201,11 @@ public class NamespaceBrowser extends ViewPart implements ISelectionProvider, IS
 					pattern = Pattern.compile(patternString.trim());
 					if (selectionBeforePatternSearchBegan == null) {
 						// user triggers search, we save the current state of
-						// the tree
+						// the tree, and load the vars of all the namespaces
+						// at once for searching them
 						selectionBeforePatternSearchBegan = treeViewer.getSelection();
 						expandedElementsBeforeSearchBegan = treeViewer.getExpandedElements();
+						loadVars(new ArrayList<String>(namespaces.nodes.keySet()));
 					}
 					delayedRefresh(false);
 					treeViewer.expandAll();
@@ -177,8 +225,35 @@ public class NamespaceBrowser extends ViewPart implements ISelectionProvider, IS
 
 		ColumnViewerToolTipSupport.enableFor(treeViewer);
 
+		// Namespace nodes are replaced by new maps when they change: identify
+		// them by name, so that their expanded and selected states survive
+		treeViewer.setComparer(new IElementComparer() {
+			@Override
+			public boolean equals(Object a, Object b) {
+				if (isNamespace(a) && isNamespace(b)) {
+					return ((Map) a).get(KEYWORD_NAME).equals(((Map) b).get(KEYWORD_NAME));
+				} else {
+					return a.equals(b);
+				}
+			}
+			@Override
+			public int hashCode(Object element) {
+				return isNamespace(element) ? ((Map) element).get(KEYWORD_NAME).hashCode() : element.hashCode();
+			}
+		});
 		treeViewer.setContentProvider(new ContentProvider());
 		treeViewer.setLabelProvider(new LabelProvider());
+		treeViewer.setComparator(new ViewerComparator() {
+			@Override
+			public int compare(Viewer viewer, Object e1, Object e2) {
+				// Only sort namespaces, so that they are added at their place
+				if (isNamespace(e1) && isNamespace(e2)) {
+					return ((String) ((Map) e1).get(KEYWORD_NAME)).compareTo((String) ((Map) e2).get(KEYWORD_NAME));
+				} else {
+					return 0;
+				}
+			}
+		});
 
 		treeViewer.addFilter(new ViewerFilter() {
 			@Override
@@ -190,27 +265,33 @@ public class NamespaceBrowser extends ViewPart implements ISelectionProvider, IS
 				}
 			}
 
-			/** Tests element node, and its children if necessary, recursively */
+			/**
+			 * Tests element node, and its children if necessary, recursively.
+			 * Does not trigger the loading of children.
+			 */
 			private boolean recursiveElemMatches(Object element) {
 				if (elemMatches(element)) {
 					return true;
-				} else {
-					ITreeContentProvider cp = (ITreeContentProvider) treeViewer.getContentProvider();
-					if (cp.hasChildren(element)) {
-						for (Object c: cp.getChildren(element)) {
+				} else if (isNamespace(element)) {
+					Object[] vars = varsByNamespace.get(((Map) element).get(KEYWORD_NAME));
+					if (vars != null) {
+						for (Object c: vars) {
 							if (recursiveElemMatches(c)) {
 								return true;
 							}
 						}
-						return false;
-					} else {
-						return false;
 					}
+					return false;
+				} else {
+					return false;
 				}
 			}
 
 			/** Test just element node, not its children */
 			private boolean elemMatches(Object element) {
+				if (isPending(element)) {
+					return false;
+				}
 				Map elem = (Map) element;
 				String name = (String) elem.get(KEYWORD_NAME);
 				boolean nameMatches = name != null && pattern.matcher(name).find();
@@ -249,10 +330,26 @@ public class NamespaceBrowser extends ViewPart implements ISelectionProvider, IS
 		return super.getAdapter(key);
 	}
 
-	private static class ContentProvider implements ITreeContentProvider {
+	private static boolean isNamespace(Object element) {
+		return Map.class.isInstance(element) && "ns".equals(((Map) element).get(KEYWORD_TYPE));
+	}
+
+	private static boolean isPending(Object element) {
+		return Map.class.isInstance(element) && TYPE_PENDING.equals(((Map) element).get(KEYWORD_TYPE));
+	}
+
+	/**
+	 * Children of the namespace nodes are loaded lazily: until they are
+	 * available, a pending node is shown.
+	 */
+	private class ContentProvider implements ITreeContentProvider {
 		@Override
 		public Object[] getElements(Object inputElement) {
-			return getChildren(inputElement);
+			if (inputElement instanceof Namespaces) {
+				return ((Namespaces) inputElement).nodes.values().toArray();
+			} else {
+				return new Object[0];
+			}
 		}
 
 		@Override
@@ -265,7 +362,18 @@ public class NamespaceBrowser extends ViewPart implements ISelectionProvider, IS
 
 		@Override
 		public Object[] getChildren(Object parentElement) {
-			if (Map.class.isInstance(parentElement)) {
+			if (isNamespace(parentElement)) {
+				String ns = (String) ((Map) parentElement).get(KEYWORD_NAME);
+				Object[] vars = varsByNamespace.get(ns);
+				if (vars != null) {
+					return vars;
+				}
+				if (pattern == null) {
+					// When searching, the vars of all the namespaces are loaded at once
+					loadVars(Collections.singletonList(ns));
+				}
+				return new Object[] { RT.map(KEYWORD_NAME, "Loading...", KEYWORD_TYPE, TYPE_PENDING, KEYWORD_NS, ns) };
+			} else if (Map.class.isInstance(parentElement)) {
 				Collection children = (Collection) ((Map) parentElement).get(KEYWORD_CHILDREN);
 				if (children == null) {
 					return new Object[0];
@@ -284,7 +392,9 @@ public class NamespaceBrowser extends ViewPart implements ISelectionProvider, IS
 
 		@Override
 		public boolean hasChildren(Object parentElement) {
-			if (Map.class.isInstance(parentElement)) {
+			if (isNamespace(parentElement)) {
+				return true;
+			} else if (Map.class.isInstance(parentElement)) {
 				return ((Map) parentElement).get(KEYWORD_CHILDREN) != null;
 			} else {
 				return false;
@@ -296,6 +406,9 @@ public class NamespaceBrowser extends ViewPart implements ISelectionProvider, IS
 
 		@Override
 		public String getToolTipText(Object element) {
+			if (isPending(element)) {
+				return null;
+			}
 			return (String) docUtils.__(VAR_DOC_INFO, element);
 		}
 
@@ -330,7 +443,7 @@ public class NamespaceBrowser extends ViewPart implements ISelectionProvider, IS
 		}
 
 		private Image getImage(Object element) {
-			if (Map.class.isInstance(element)) {
+			if (Map.class.isInstance(element) && !isPending(element)) {
 				Map node = (Map) element;
 				if ("ns".equals(node.get(KEYWORD_TYPE))) {
 					return CCWPlugin.getDefault().getImageRegistry().get(CCWPlugin.NS);
@@ -346,18 +459,20 @@ public class NamespaceBrowser extends ViewPart implements ISelectionProvider, IS
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-    private Map<String, List<String>> getRemoteNsTree (SafeConnection repl) throws Exception {
-	    Response res = repl.send(10000, "op", "eval", "code", "(ccw.debug.serverrepl/namespaces-info)");
-        List<Object> values = res.values();
-        if (values.isEmpty()) {
-        	return null;
-        } else {
-        	return (Map<String, List<String>>)values.get(0);
-        }
+	/** Let the REPL the tree has been fetched from forget its snapshot */
+	private void forgetSnapshot() {
+		SafeConnection repl = snapshotRepl;
+		snapshotRepl = null;
+		snapshotVersion = -1;
+		if (repl != null) {
+			namespaceBrowser.__("forget", repl, clientId);
+		}
 	}
 
 	public void reset (final SafeConnection repl) {
+		if (repl != snapshotRepl) {
+			forgetSnapshot();
+		}
 		if (repl == null) {
 			asyncResetInput(null);
 			return;
@@ -368,21 +483,19 @@ public class NamespaceBrowser extends ViewPart implements ISelectionProvider, IS
 				if (treeViewer == null) {
 					return Status.CANCEL_STATUS;
 				}
-				try {
-					Object oldInput = treeViewer.getInput();
-					final Object newInput = getRemoteNsTree(repl);
-					if (oldInput != null && oldInput.equals(newInput)) {
-						return Status.CANCEL_STATUS;
-					} else {
-						asyncResetInput(newInput);
-						return Status.OK_STATUS;
-					}
-				} catch (Exception e) {
-					e.printStackTrace();
+				long version = (repl == snapshotRepl) ? snapshotVersion : -1;
+				Map changes = (Map) namespaceBrowser.__("changes", repl, clientId, version);
+				if (changes == null) {
+					// The next refresh will fetch all the namespaces again
+					snapshotVersion = -1;
 					repl.connectionLost();
 					asyncResetInput(null);
 					return Status.OK_STATUS;
 				}
+				snapshotRepl = repl;
+				snapshotVersion = ((Number) changes.get(KEYWORD_VERSION)).longValue();
+				asyncApplyChanges(changes);
+				return Status.OK_STATUS;
 			}
 			@Override
 			public boolean belongsTo(Object family) {
@@ -394,6 +507,63 @@ public class NamespaceBrowser extends ViewPart implements ISelectionProvider, IS
 		job.schedule(200);
 	}
 
+	/** Load in the background the vars of namespaces nsNames, then refresh their nodes */
+	private void loadVars(Collection<String> nsNames) {
+		loadVars(nsNames, false);
+	}
+
+	/**
+	 * Same as {@link #loadVars(Collection)}, loading again the vars already
+	 * loaded if reload is true
+	 */
+	private void loadVars(Collection<String> nsNames, boolean reload) {
+		final SafeConnection repl = snapshotRepl;
+		if (repl == null) {
+			return;
+		}
+		final List<String> toLoad = new ArrayList<String>();
+		for (String ns: nsNames) {
+			if ((reload || !varsByNamespace.containsKey(ns)) && loadingNamespaces.add(ns)) {
+				toLoad.add(ns);
+			}
+		}
+		if (toLoad.isEmpty()) {
+			return;
+		}
+		Job job = new Job("Namespace browser vars loading") {
+			@Override
+			protected IStatus run(IProgressMonitor monitor) {
+				final Map vars = (Map) namespaceBrowser.__("vars", repl, clientId, toLoad);
+				DisplayUtil.asyncExec(new Runnable() {
+					@Override public void run() {
+						loadingNamespaces.removeAll(toLoad);
+						if (vars == null || repl != snapshotRepl || treeViewer.getControl().isDisposed()) {
+							return;
+						}
+						for (String ns: toLoad) {
+							Collection nsVars = (Collection) vars.get(ns);
+							varsByNamespace.put(ns, (nsVars == null) ? new Object[0] : nsVars.toArray());
+						}
+						if (pattern != null) {
+							treeViewer.refresh(false);
+							treeViewer.expandAll();
+						} else {
+							for (String ns: toLoad) {
+								Map node = namespaces.nodes.get(ns);
+								if (node != null) {
+									treeViewer.refresh(node, false);
+								}
+							}
+						}
+					}
+				});
+				return Status.OK_STATUS;
+			}
+		};
+		job.setSystem(true);
+		job.schedule();
+	}
+
 	public void delayedRefresh(final boolean updateLabels) {
 		Job job = new Job("Namespace browser tree refresh") {
 			@Override
@@ -442,6 +612,72 @@ public class NamespaceBrowser extends ViewPart implements ISelectionProvider, IS
 		});
 	}
 
+	/**
+	 * Apply the changes returned by ccw.repl.namespace-browser/changes to the
+	 * tree: either replace all the namespaces, or add, remove and refresh
+	 * only the changed ones.
+	 */
+	private void asyncApplyChanges(final Map changes) {
+		DisplayUtil.asyncExec(new Runnable() {
+			@Override public void run() {
+				if (treeViewer.getControl().isDisposed()) {
+					return;
+				}
+				if (Boolean.TRUE.equals(changes.get(KEYWORD_FULL))) {
+					namespaces.nodes.clear();
+					varsByNamespace.clear();
+					for (Object node: (Collection) changes.get(KEYWORD_NAMESPACES)) {
+						namespaces.nodes.put((String) ((Map) node).get(KEYWORD_NAME), (Map) node);
+					}
+					CCWPlugin.getTracer().trace(TraceOptions.REPL, "Namespace browser: ", namespaces.nodes.size(), " namespaces");
+					if (treeViewer.getInput() == namespaces) {
+						// Keeps the expanded and selected namespaces
+						treeViewer.refresh();
+					} else {
+						asyncResetInput(namespaces);
+					}
+					return;
+				}
+				Collection added = (Collection) changes.get(KEYWORD_ADDED);
+				Collection changed = (Collection) changes.get(KEYWORD_CHANGED);
+				Collection removed = (Collection) changes.get(KEYWORD_REMOVED);
+				CCWPlugin.getTracer().trace(TraceOptions.REPL, "Namespace browser: ", added.size(), " namespaces added, ",
+						changed.size(), " changed, ", removed.size(), " removed");
+				for (Object name: removed) {
+					varsByNamespace.remove(name);
+					Map node = namespaces.nodes.remove(name);
+					if (node != null) {
+						treeViewer.remove(node);
+					}
+				}
+				List<String> expandedChanged = new ArrayList<String>();
+				for (Object node: changed) {
+					String name = (String) ((Map) node).get(KEYWORD_NAME);
+					Map oldNode = namespaces.nodes.put(name, (Map) node);
+					if (oldNode != null && treeViewer.getExpandedState(oldNode)) {
+						// Its previous vars are shown until the new ones are loaded
+						expandedChanged.add(name);
+					} else {
+						varsByNamespace.remove(name);
+					}
+					if (oldNode == null) {
+						treeViewer.add(namespaces, node);
+					} else {
+						treeViewer.update(node, null);
+						treeViewer.refresh(node, false);
+					}
+				}
+				loadVars(expandedChanged, true);
+				for (Object node: added) {
+					namespaces.nodes.put((String) ((Map) node).get(KEYWORD_NAME), (Map) node);
+				}
+				if (!added.isEmpty()) {
+					treeViewer.add(namespaces, added.toArray());
+				}
+			}
+		});
+	}
+
 	@Override
 	public void addSelectionChangedListener(ISelectionChangedListener listener) {
 		selectionChangedListeners.add(listener);
@@ -505,6 +741,13 @@ public class NamespaceBrowser extends ViewPart implements ISelectionProvider, IS
 		}
 	}
 
+	@Override
+	public void dispose() {
+		Job.getJobManager().cancel(NS_BROWSER_REFRESH_FAMILY);
+		forgetSnapshot();
+		super.dispose();
+	}
+
 	@Override
 	public void setSelection(ISelection selection) {
 		if (treeViewer != null) {
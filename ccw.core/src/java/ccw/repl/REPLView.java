@@ -334,6 +334,11 @@ public class REPLView extends ViewPart implements IAdaptable, IReplProvider, Lin
         return getPreferences().getLong(PreferenceConstants.REPL_VIEW_PPRINT_RIGHT_MARGIN);
     }
 
+    /** Maximum number of lines kept in the log, 0 meaning no limit */
+    public int getLogMaxLines() {
+        return getPreferences().getInt(PreferenceConstants.REPL_VIEW_LOG_MAX_LINES);
+    }
+
     public REPLView () {}
 
     @Override
@@ -353,8 +358,11 @@ public class REPLView extends ViewPart implements IAdaptable, IReplProvider, Lin
     private void copyToLog (StyledText s) {
         // sadly, need to reset text on the ST in order to get formatting/style ranges...
         s.setText(boostIndent.matcher(s.getText()).replaceAll("   ").replaceFirst("^\\s+", "=> "));
-        int start = logPanel.getCharCount();
         try {
+        	// Styles are added at the current end of the log: output still
+        	// queued must be logged first
+        	viewHelpers.__("flush-log", this, logPanel);
+        	int start = logPanel.getCharCount();
         	// Add styles before adding text to the log panel
             for (StyleRange sr : s.getStyleRanges()) {
                 sr.start += start;
@@ -410,7 +418,11 @@ public class REPLView extends ViewPart implements IAdaptable, IReplProvider, Lin
     	return lastExpressionSentFromREPL;
     }
 
-    public void evalExpression (String s, boolean addToHistory, boolean printToLog, boolean repeatLastREPLEvalIfActive) {
+    /**
+     * @return the (lazy) seq of the nREPL responses to the evaluation of s,
+     *         or null if nothing has been sent
+     */
+    public Object evalExpression (String s, boolean addToHistory, boolean printToLog, boolean repeatLastREPLEvalIfActive) {
         try {
         	if (s.trim().length() > 0) {
                 if (printToLog) {
@@ -434,6 +446,7 @@ public class REPLView extends ViewPart implements IAdaptable, IReplProvider, Lin
 							}).start();
 	            		}
                 	}
+                	return ret;
                 }
             }
         } catch (Exception e) {
@@ -442,6 +455,7 @@ public class REPLView extends ViewPart implements IAdaptable, IReplProvider, Lin
         	}
             CCWPlugin.logError(e);
         }
+        return null;
     }
 
     /**
@@ -1,66 +1,318 @@
 package ccw.repl;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import ccw.CCWPlugin;
+import ccw.TraceOptions;
 import clojure.tools.nrepl.Connection;
 
 /**
  * Wraps an nrepl connection and protects connections with timeouts.
- * 
+ * <p>
+ * Requests are run by a bounded pool of threads, shared by all the
+ * connections, either synchronously ({@link #withConnection}) or
+ * asynchronously ({@link #submit}). A request which times out is
+ * cancelled, but the connection is only considered lost after
+ * {@link #MAX_CONSECUTIVE_TIMEOUTS} timeouts in a row, or when the
+ * connection itself fails. Latency statistics are kept per feature
+ * (hover, code completion, builder, ...).
+ *
  * @author laurentpetit
  */
 public class SafeConnection {
-	
+
+	/** Maximum number of threads running requests */
+	private static final int MAX_THREADS = 8;
+
+	/** Maximum number of requests waiting for a thread */
+	private static final int MAX_PENDING_REQUESTS = 256;
+
+	/** Number of timeouts in a row after which the connection is considered lost */
+	public static final int MAX_CONSECUTIVE_TIMEOUTS = 3;
+
+	/** Maximum number of tooling sessions per connection, see {@link #acquireToolingSession} */
+	public static final int MAX_TOOLING_SESSIONS = 4;
+
+	/** Feature of the requests made without specifying one */
+	public static final String DEFAULT_FEATURE = "other";
+
 	/** Executor Thread pool for Safe Connections */
-	private static final ExecutorService toolConnectionExecutor = Executors.newCachedThreadPool();
+	private static final ThreadPoolExecutor toolConnectionExecutor = newExecutor();
+
+	/**
+	 * Runs the cancellation actions (e.g. interrupts) of the requests, and
+	 * closes connections: not the requests pool, which may be saturated by
+	 * the requests to cancel.
+	 */
+	private static final ExecutorService cancelExecutor =
+			Executors.newSingleThreadExecutor(newThreadFactory("CCW nrepl tooling cancellations"));
+
+	/** Cancels the requests which time out */
+	private static final ScheduledExecutorService timeoutScheduler =
+			Executors.newSingleThreadScheduledExecutor(newThreadFactory("CCW nrepl tooling timeouts"));
+
+	private static ThreadPoolExecutor newExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(MAX_PENDING_REQUESTS),
+				newThreadFactory("CCW nrepl tooling connection"));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private static ThreadFactory newThreadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + " " + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
 
 	private final Connection connection;
 	private final IConnectionLostListener connListener;
-	
+	private final AtomicInteger consecutiveTimeouts = new AtomicInteger();
+	private final ConcurrentMap<String, RequestStats> stats = new ConcurrentHashMap<String, RequestStats>();
+	/** Tooling sessions which are not evaluating a request */
+	private final Deque<String> idleToolingSessions = new ArrayDeque<String>();
+	/** Number of tooling sessions, idle or not */
+	private int toolingSessions;
+	private boolean toolingSessionsFailed;
+
 	public interface IConnectionLostListener {
 		void connectionLost();
 	}
-	
+
+	/** Latency statistics of the requests made for a feature */
+	public static final class RequestStats {
+		private long requests;
+		private long timeouts;
+		private long failures;
+		private long totalNanos;
+		private long maxNanos;
+
+		synchronized void record(long nanos, boolean timeout, boolean failure) {
+			requests++;
+			if (timeout) timeouts++;
+			if (failure) failures++;
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+		}
+
+		public synchronized long getRequests() { return requests; }
+		public synchronized long getTimeouts() { return timeouts; }
+		public synchronized long getFailures() { return failures; }
+		public synchronized long getMaxMillis() { return TimeUnit.NANOSECONDS.toMillis(maxNanos); }
+		public synchronized long getAverageMillis() {
+			return (requests == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos / requests);
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "requests:" + requests + " timeouts:" + timeouts + " failures:" + failures
+					+ " average:" + getAverageMillis() + "ms max:" + getMaxMillis() + "ms";
+		}
+	}
+
 	public SafeConnection(Connection connection, IConnectionLostListener connListener) {
 		this.connection = connection;
 		this.connListener = connListener;
 	}
-	
+
     public <T> T withConnection(final IConnectionClient client, long timeoutMillis)
     		throws Exception {
-        Future<T> future = toolConnectionExecutor.submit(new Callable<T>() {
-			@Override public T call() throws Exception {
-				return client.withConnection(connection);
-			}
-		});
+    	return withConnection(DEFAULT_FEATURE, client, timeoutMillis, null);
+    }
+
+    public <T> T withConnection(String feature, final IConnectionClient client, long timeoutMillis)
+    		throws Exception {
+    	return withConnection(feature, client, timeoutMillis, null);
+    }
+
+    /**
+     * Runs client with the connection, in the requests thread pool, and
+     * waits for its result.
+     *
+     * @param feature the feature the request is made for, for the statistics
+     * @param client the request
+     * @param timeoutMillis after which the request is cancelled
+     * @param onCancel if not null, run in the background when the request
+     *        times out, e.g. for interrupting its evaluation in the REPL
+     * @throws TimeoutException if the request timed out
+     * @throws RejectedExecutionException if too many requests are pending
+     * @throws ExecutionException if the request failed
+     * @see #submit(String, IConnectionClient, long, Runnable)
+     */
+    public <T> T withConnection(String feature, final IConnectionClient client, long timeoutMillis, Runnable onCancel)
+    		throws Exception {
+    	CompletableFuture<T> future = submit(feature, client, timeoutMillis, onCancel);
         try {
-        	T t = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
-        	return t;
-        } catch (Exception e) {
-       		connListener.connectionLost();
+        	return future.get();
+        } catch (ExecutionException e) {
+        	if (e.getCause() instanceof TimeoutException
+        			|| e.getCause() instanceof RejectedExecutionException) {
+        		throw (Exception) e.getCause();
+        	}
+        	throw e;
+        } catch (InterruptedException e) {
+        	future.cancel(true);
         	throw e;
         }
     }
-    
-    public Connection.Response send(long timeoutMillis, final String... args) 
+
+    /**
+     * Runs client with the connection, in the requests thread pool, without
+     * waiting for its result.
+     * <p>
+     * The returned future completes exceptionally with a TimeoutException
+     * if the request times out, or with a RejectedExecutionException if too
+     * many requests are pending. Cancelling it cancels the request.
+     *
+     * @param feature the feature the request is made for, for the statistics
+     * @param client the request
+     * @param timeoutMillis after which the request is cancelled
+     * @param onCancel if not null, run in the background when the request
+     *        times out or is cancelled, e.g. for interrupting its evaluation
+     *        in the REPL
+     */
+    public <T> CompletableFuture<T> submit(String feature, IConnectionClient client, long timeoutMillis, Runnable onCancel) {
+    	return submit(feature, client, timeoutMillis, onCancel, true);
+    }
+
+    /**
+     * Same as {@link #submit(String, IConnectionClient, long, Runnable)}.
+     *
+     * @param healthCheck false if the request may time out because it waits
+     *        for other evaluations (e.g. it is evaluated in a user session):
+     *        its timeouts then do not count toward the connection being lost
+     */
+    public <T> CompletableFuture<T> submit(final String feature, final IConnectionClient client, long timeoutMillis, final Runnable onCancel,
+    		final boolean healthCheck) {
+    	final long start = System.nanoTime();
+    	final CompletableFuture<T> result = new CompletableFuture<T>();
+    	final Future<?> task;
+    	try {
+    		task = toolConnectionExecutor.submit(new Runnable() {
+    			@Override public void run() {
+    				try {
+    					T t = client.withConnection(connection);
+    					if (result.complete(t)) {
+    						if (healthCheck) {
+    							consecutiveTimeouts.set(0);
+    						}
+    						record(feature, start, false, false);
+    					}
+    				} catch (Throwable e) {
+    					if (result.completeExceptionally(e)) {
+    						record(feature, start, false, true);
+    						if (e instanceof IOException) {
+    							connListener.connectionLost();
+    						}
+    					}
+    				}
+    			}
+    		});
+    	} catch (RejectedExecutionException e) {
+    		record(feature, start, false, true);
+    		result.completeExceptionally(e);
+    		return result;
+    	}
+    	final ScheduledFuture<?> timeout = timeoutScheduler.schedule(new Runnable() {
+    		@Override public void run() {
+    			if (result.completeExceptionally(new TimeoutException(feature + " request timed out"))) {
+    				task.cancel(true);
+    				record(feature, start, true, false);
+    				if (onCancel != null) {
+    					runOutsideRequestPool(onCancel);
+    				}
+    				if (healthCheck && consecutiveTimeouts.incrementAndGet() >= MAX_CONSECUTIVE_TIMEOUTS) {
+    					connListener.connectionLost();
+    				}
+    			}
+    		}
+    	}, timeoutMillis, TimeUnit.MILLISECONDS);
+    	result.whenComplete(new BiConsumer<T, Throwable>() {
+    		@Override public void accept(T t, Throwable e) {
+    			timeout.cancel(false);
+    			if (result.isCancelled()) {
+    				task.cancel(true);
+    				if (onCancel != null) {
+    					runOutsideRequestPool(onCancel);
+    				}
+    			}
+    		}
+    	});
+    	return result;
+    }
+
+    private void record(String feature, long start, boolean timeout, boolean failure) {
+    	long nanos = System.nanoTime() - start;
+    	RequestStats featureStats = stats.get(feature);
+    	if (featureStats == null) {
+    		RequestStats newStats = new RequestStats();
+    		featureStats = stats.putIfAbsent(feature, newStats);
+    		if (featureStats == null) {
+    			featureStats = newStats;
+    		}
+    	}
+    	featureStats.record(nanos, timeout, failure);
+    	CCWPlugin.getTracer().trace(TraceOptions.REPL_CLIENT,
+    			feature, " request ", timeout ? "timed out" : failure ? "failed" : "done",
+    			" in ", TimeUnit.NANOSECONDS.toMillis(nanos), "ms");
+    }
+
+    private static void runOutsideRequestPool(Runnable r) {
+    	cancelExecutor.execute(r);
+    }
+
+    /** @return the latency statistics of the requests, per feature */
+    public Map<String, RequestStats> getRequestStats() {
+    	return Collections.unmodifiableMap(stats);
+    }
+
+    public Connection.Response send(long timeoutMillis, final String... args)
+    		throws Exception {
+    	return send(DEFAULT_FEATURE, timeoutMillis, args);
+    }
+
+    public Connection.Response send(String feature, long timeoutMillis, final String... args)
     		throws Exception {
-    	return withConnection(new IConnectionClient() {
+    	return withConnection(feature, new IConnectionClient() {
 			@Override public Connection.Response withConnection(Connection c) {
-				return c.send(args);
+				Connection.Response response = c.send(args);
+				// Read the whole response while protected by the timeout
+				response.combinedResponse();
+				return response;
 			}
 		}, timeoutMillis);
     }
-    
+
 	public void close() {
-		toolConnectionExecutor.execute(new Runnable() {
+		runOutsideRequestPool(new Runnable() {
 			@Override public void run() {
 				try {
 					connection.close();
@@ -69,26 +321,92 @@ public class SafeConnection {
 				}
 			}});
 	}
-	
+
 	/**
 	 * Use with extreme care !!
-	 * 
+	 *
 	 * @return the unsafe wrapped nrepl connection
 	 */
 	public Connection getUnsafeConnection() {
 		return connection;
 	}
-	
+
 	public void connectionLost() {
 		connListener.connectionLost();
 	}
-	
+
+	/**
+	 * Returns an idle tooling session, for evaluating a request in a session
+	 * which can be interrupted. nREPL evaluates the messages of a session one
+	 * at a time, so a session is only used by one request at a time: it is
+	 * cloned with c (the wrapped connection, as given to the requests) if
+	 * none is idle, up to {@link #MAX_TOOLING_SESSIONS}.
+	 * Once the request is done, the session must be given back with
+	 * {@link #releaseToolingSession}, or {@link #discardToolingSession} if it
+	 * may still be evaluating.
+	 *
+	 * @return the tooling session, or null if all of them are busy or they
+	 *         cannot be cloned: the request is then evaluated in an
+	 *         ephemeral session
+	 */
+	public String acquireToolingSession(Connection c) {
+		synchronized (this) {
+			String session = idleToolingSessions.pollFirst();
+			if (session != null) {
+				return session;
+			}
+			if (toolingSessionsFailed || toolingSessions >= MAX_TOOLING_SESSIONS) {
+				return null;
+			}
+			toolingSessions++;
+		}
+		try {
+			return c.newSession(null);
+		} catch (Exception e) {
+			synchronized (this) {
+				toolingSessions--;
+				toolingSessionsFailed = true;
+			}
+			CCWPlugin.logError("Could not create a tooling session for nrepl connection " + this, e);
+			return null;
+		}
+	}
+
+	/** Give back session, which has finished evaluating a request */
+	public synchronized void releaseToolingSession(String session) {
+		idleToolingSessions.addFirst(session);
+	}
+
+	/**
+	 * Close session, which may still be evaluating a request (e.g. it has
+	 * been interrupted), instead of giving it back
+	 */
+	public void discardToolingSession(final String session) {
+		synchronized (this) {
+			toolingSessions--;
+		}
+		runOutsideRequestPool(new Runnable() {
+			@Override public void run() {
+				try {
+					connection.send("op", "close", "session", session);
+				} catch (Exception e) {
+					CCWPlugin.logError("Could not close tooling session " + session, e);
+				}
+			}
+		});
+	}
+
 	public static String safeNewSession(final Connection connection, final long timeoutMillis) throws InterruptedException, ExecutionException, TimeoutException {
         Future<String> future = toolConnectionExecutor.submit(new Callable<String>() {
 			@Override public String call() throws Exception {
 				return connection.newSession(null);
 			}
 		});
-        return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+        	return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+        	future.cancel(true);
+        	throw e;
+        }
 	}
 }
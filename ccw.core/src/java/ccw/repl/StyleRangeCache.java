@@ -320,6 +320,20 @@ public class StyleRangeCache {
 		setStyleRanges(0, 0, null, ranges, true);
 	}
 	
+	/**
+	 * Removes the styles of the text range, and shifts the styles following it,
+	 * as when the text range is deleted from the widget content.
+	 *
+	 * @param start offset of the first deleted character
+	 * @param length number of deleted characters
+	 */
+	public void deleteRange(int start, int length) {
+		if (start < 0 || length < 0) {
+			SWT.error(SWT.ERROR_INVALID_RANGE);
+		}
+		renderer.updateRanges(start, length, 0);
+	}
+
 	/** 
 	 * Reset all styles (deletes all styles and ranges). 
 	 */
@@ -13,6 +13,8 @@
  *******************************************************************************/
 package ccw.repl;
 
+import java.util.Arrays;
+
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.StyleRange;
 import org.eclipse.swt.graphics.Device;
@@ -24,7 +26,16 @@ import ccw.util.SWTFontUtils;
  * Stores StyleRanges, merging them as necessary.
  * <p/>
  * This class is mostly a verbatim copy of code found in
- * {@link org.eclipse.swt.custom.StyledTextRenderer}.
+ * {@link org.eclipse.swt.custom.StyledTextRenderer}, with the following
+ * changes for logs, which are appended to and trimmed at their head:
+ * <ul>
+ * <li>arrays grow geometrically, so that appending a style is
+ *     amortized O(1)</li>
+ * <li>deleting the head of the text does not shift the following ranges:
+ *     ranges are stored relative to a base offset, which is increased
+ *     instead. The deleted ranges are only removed once they outnumber
+ *     the remaining ones.</li>
+ * </ul>
  * <p/>
  * See {@link SytleRangeCache}
  */
@@ -42,6 +53,10 @@ public class StyleRangeCacheStore {
 	int stylesSetCount = 0;
 	boolean hasLinks;
 
+	/* Offset in the text of the stored range offsets 0, always 0 when ranges is null.
+	 * The ranges ending before base are those of deleted text, not removed yet */
+	int base;
+
 	final static boolean COMPACT_STYLES = true;
 	final static boolean MERGE_STYLES = true;
 
@@ -52,6 +67,11 @@ public class StyleRangeCacheStore {
 		this.device = device;
 	}
 
+	/** Returns an array length of at least minLength, growing geometrically from length */
+	static int newCapacity(int length, int minLength) {
+		return Math.max(minLength, length + (length >> 1));
+	}
+
 	int addMerge(int[] mergeRanges, StyleRange[] mergeStyles, int mergeCount, int modifyStart, int modifyEnd) {
 		int rangeCount = styleCount << 1;
 		StyleRange endStyle = null;
@@ -63,9 +83,10 @@ public class StyleRangeCacheStore {
 		}
 		int grow = mergeCount - (modifyEnd - modifyStart);
 		if (rangeCount + grow >= ranges.length) {
-			int[] tmpRanges = new int[ranges.length + grow + (GROW << 1)];
+			int newLength = newCapacity(styles.length, styles.length + (grow >> 1) + GROW);
+			int[] tmpRanges = new int[newLength << 1];
 			System.arraycopy(ranges, 0, tmpRanges, 0, modifyStart);
-			StyleRange[] tmpStyles = new StyleRange[styles.length + (grow >> 1) + GROW];
+			StyleRange[] tmpStyles = new StyleRange[newLength];
 			System.arraycopy(styles, 0, tmpStyles, 0, modifyStart >> 1);
 			if (rangeCount > modifyEnd) {
 				System.arraycopy(ranges, modifyEnd, tmpRanges, modifyStart + mergeCount, rangeCount - modifyEnd);
@@ -113,7 +134,7 @@ public class StyleRangeCacheStore {
 		StyleRange endStyle = null;
 		if (modifyEnd < styleCount) endStyle = styles[modifyEnd];
 		if (styleCount + grow >= styles.length) {
-			StyleRange[] tmpStyles = new StyleRange[styles.length + grow + GROW];
+			StyleRange[] tmpStyles = new StyleRange[newCapacity(styles.length, styles.length + grow + GROW)];
 			System.arraycopy(styles, 0, tmpStyles, 0, modifyStart);
 			if (styleCount > modifyEnd) {
 				System.arraycopy(styles, modifyEnd, tmpStyles, modifyStart + mergeCount, styleCount - modifyEnd);
@@ -196,6 +217,7 @@ public class StyleRangeCacheStore {
 	int[] getRanges(int start, int length) {
 		if (length == 0) return null;
 		int[] newRanges;
+		start += base;
 		int end = start + length - 1;
 		if (ranges != null) {
 			int rangeCount = styleCount << 1;
@@ -226,12 +248,18 @@ public class StyleRangeCacheStore {
 		if (end < newRanges[newRanges.length - 2] + newRanges[newRanges.length - 1] - 1) {
 			newRanges[newRanges.length - 1] = end - newRanges[newRanges.length - 2] + 1;
 		}
+		if (base != 0) {
+			for (int i = 0; i < newRanges.length; i += 2) {
+				newRanges[i] -= base;
+			}
+		}
 		return newRanges;
 	}
 
 	StyleRange[] getStyleRanges(int start, int length, boolean includeRanges) {
 		if (length == 0) return null;
 		StyleRange[] newStyles;
+		start += base;
 		int end = start + length - 1;
 		if (ranges != null) {
 			int rangeCount = styleCount << 1;
@@ -244,7 +272,7 @@ public class StyleRangeCacheStore {
 			if (includeRanges) {
 				for (int i = rangeStart, j = 0; i <= rangeEnd; i += 2, j++) {
 					newStyles[j] = (StyleRange)styles[i >> 1].clone();
-					newStyles[j].start = ranges[i];
+					newStyles[j].start = ranges[i] - base;
 					newStyles[j].length = ranges[i + 1];
 				}
 			} else {
@@ -260,6 +288,9 @@ public class StyleRangeCacheStore {
 			System.arraycopy(styles, rangeStart, newStyles, 0, newStyles.length);
 		}
 		if (includeRanges || ranges == null) {
+			// back to text offsets, like the start of the returned styles
+			start -= base;
+			end -= base;
 			StyleRange style = newStyles[0];
 			if (start > style.start) {
 				newStyles[0] = style = (StyleRange)style.clone();
@@ -292,7 +323,7 @@ public class StyleRangeCacheStore {
 
 	void setStyleRanges (int[] newRanges, StyleRange[] newStyles) {
 		if (newStyles == null) {
-			stylesSetCount = styleCount = 0;
+			stylesSetCount = styleCount = base = 0;
 			ranges = null;
 			styles = null;
 			stylesSet = null;
@@ -326,6 +357,7 @@ public class StyleRangeCacheStore {
 		}
 		
 		if (styleCount == 0) {
+			base = 0;
 			if (newRanges != null) {
 				ranges = new int[newRanges.length];
 				System.arraycopy(newRanges, 0, ranges, 0, ranges.length);
@@ -349,6 +381,14 @@ public class StyleRangeCacheStore {
 				newRanges[j++] = newStyles[i].length;
 			}
 		}
+		if (base != 0) {
+			int[] tmpRanges = new int[newRanges.length];
+			for (int i = 0; i < newRanges.length; i += 2) {
+				tmpRanges[i] = newRanges[i] + base;
+				tmpRanges[i + 1] = newRanges[i + 1];
+			}
+			newRanges = tmpRanges;
+		}
 		if (ranges != null) {
 			int rangeCount = styleCount << 1;
 			int start = newRanges[0];
@@ -446,6 +486,11 @@ public class StyleRangeCacheStore {
 
 	void updateRanges(int start, int replaceCharCount, int newCharCount) {
 		if (styleCount == 0 || (replaceCharCount == 0 && newCharCount == 0)) return;
+		if (start == 0 && newCharCount == 0 && ranges != null) {
+			deleteHead(replaceCharCount);
+			return;
+		}
+		start += base;
 		if (ranges != null) {
 			int rangeCount = styleCount << 1;
 			int modifyStart = getRangeIndex(start, -1, rangeCount);
@@ -459,10 +504,11 @@ public class StyleRangeCacheStore {
 					modifyEnd += 2;
 				} else {
 					if (rangeCount + 2 > ranges.length) {
-						int[] newRanges = new int[ranges.length + (GROW << 1)];
+						int newLength = newCapacity(styles.length, styles.length + GROW);
+						int[] newRanges = new int[newLength << 1];
 						System.arraycopy(ranges, 0, newRanges, 0, rangeCount);
 						ranges = newRanges;
-						StyleRange[] newStyles = new StyleRange[styles.length + GROW];
+						StyleRange[] newStyles = new StyleRange[newLength];
 						System.arraycopy(styles, 0, newStyles, 0, styleCount);
 						styles = newStyles;
 					}
@@ -511,7 +557,7 @@ public class StyleRangeCacheStore {
 					modifyEnd++;
 				} else {
 					if (styleCount + 1 > styles.length) {
-						StyleRange[] newStyles = new StyleRange[styles.length + GROW];
+						StyleRange[] newStyles = new StyleRange[newCapacity(styles.length, styles.length + GROW)];
 						System.arraycopy(styles, 0, newStyles, 0, styleCount);
 						styles = newStyles;
 					}
@@ -548,8 +594,38 @@ public class StyleRangeCacheStore {
 		}
 	}
 	
+	/**
+	 * Deletes the styles of the first length characters of the text, in
+	 * O(log n) time amortized: the offset of the remaining ranges is
+	 * shifted by increasing base, and the deleted ranges are only removed
+	 * once they are more numerous than the remaining ones.
+	 */
+	void deleteHead(int length) {
+		base += length;
+		int rangeCount = styleCount << 1;
+		int head = getRangeIndex(base, -1, rangeCount);
+		if (head == rangeCount) {
+			styleCount = base = 0;
+			return;
+		}
+		if (ranges[head] < base) {
+			ranges[head + 1] -= base - ranges[head];
+			ranges[head] = base;
+		}
+		if (head >= rangeCount - head || base > (Integer.MAX_VALUE >> 1)) {
+			for (int i = head; i < rangeCount; i += 2) {
+				ranges[i] -= base;
+			}
+			System.arraycopy(ranges, head, ranges, 0, rangeCount - head);
+			System.arraycopy(styles, head >> 1, styles, 0, styleCount - (head >> 1));
+			Arrays.fill(styles, styleCount - (head >> 1), styleCount, null);
+			styleCount -= head >> 1;
+			base = 0;
+		}
+	}
+
 	void reset() {
-		stylesSetCount = styleCount = 0;
+		stylesSetCount = styleCount = base = 0;
 		ranges = null;
 		styles = null;
 		stylesSet = null;
@@ -0,0 +1,71 @@
+(ns ^{:doc
+      "Fixtures of the paredit.clj JMH benchmarks (see the paredit.bench
+       java package): thin wrappers over the hot paths of the parser and of
+       the editor, called once per benchmark invocation."}
+  paredit.bench
+  (:require [clojure.java.io :as io]
+            [paredit.parser :as p]
+            [paredit.loc-utils :as l]
+            [paredit.core :as pc]))
+
+(defn corpus-text
+  "Text of the corpus file named name (path relative to the corpus root)"
+  [name]
+  (slurp (io/resource (str "corpus/" name)) :encoding "UTF-8"))
+
+(defn new-buffer [text]
+  (p/edit-buffer nil 0 -1 text))
+
+(defn parse-tree [buffer]
+  (p/buffer-parse-tree buffer 0))
+
+(defn parse
+  "Full parse of text, from an empty buffer"
+  [text]
+  (parse-tree (new-buffer text)))
+
+(defn edit
+  "Insert a space at offset in buffer"
+  [buffer offset]
+  (p/edit-buffer buffer offset 0 " "))
+
+(defn edit-and-parse
+  "Insert a space at offset in buffer, and get the parse tree of the new
+   buffer, as the editor does after each keystroke"
+  [buffer offset]
+  (p/buffer-parse-tree (edit buffer offset) 1))
+
+(defn tokens-view-count
+  "Walk the tokens-view of all the top level forms of parse-tree"
+  [parse-tree]
+  (count (mapcat #((:abstract-node %) p/tokens-view) (:content parse-tree))))
+
+(defn packed-tokens-count
+  "Write the packed tokens of all the top level forms of parse-tree"
+  [parse-tree]
+  (nth (p/packed-tokens nil nil (:content parse-tree)) 2))
+
+(defn root-loc [parse-tree]
+  (l/parsed-root-loc parse-tree))
+
+(defn loc-for-offset [root-loc offset]
+  (l/loc-for-offset root-loc offset))
+
+(defn loc-position
+  "[start-offset column] of the leave at offset"
+  [root-loc offset]
+  (let [loc (l/leave-for-offset root-loc offset)]
+    [(l/start-offset loc) (l/loc-col loc)]))
+
+(defn indent-all
+  "Indent all the lines of text (Ctrl+I on a whole file)"
+  [parse-tree buffer ^String text]
+  (pc/paredit :paredit-indent-selection
+              {:parse-tree parse-tree :buffer buffer}
+              {:text text :offset 0 :length (.length text)}))
+
+(defn damaged-region
+  "Damaged region after a space has been inserted at offset in the text of
+   previous-parse-tree, giving parse-tree"
+  [previous-parse-tree parse-tree previous-length offset]
+  (p/damaged-region previous-parse-tree parse-tree previous-length offset 0 1))
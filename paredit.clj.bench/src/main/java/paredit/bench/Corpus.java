@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Laurent Petit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Laurent PETIT - initial API and implementation
+ *******************************************************************************/
+package paredit.bench;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A file of the corpus, with its parsley buffer and parse tree.
+ * <p>
+ * Offsets used by the benchmarks are in the middle and near the end of
+ * the text, where position queries are the most expensive.
+ */
+@State(Scope.Benchmark)
+public class Corpus {
+
+	@Param({
+		"paredit/core.clj",
+		"paredit/core_commands.clj",
+		"paredit/parser.clj",
+		"ccw/editors/clojure/hover_support.clj"})
+	public String file;
+
+	public String text;
+	public Object buffer;
+	public Object parseTree;
+	public Object rootLoc;
+	public int middleOffset;
+	public int endOffset;
+
+	@Setup
+	public void setup() {
+		text = (String) Fixtures.corpusText.invoke(file);
+		buffer = Fixtures.newBuffer.invoke(text);
+		parseTree = Fixtures.parseTree.invoke(buffer);
+		rootLoc = Fixtures.rootLoc.invoke(parseTree);
+		middleOffset = text.length() / 2;
+		endOffset = Math.max(0, text.length() - 10);
+	}
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Laurent Petit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Laurent PETIT - initial API and implementation
+ *******************************************************************************/
+package paredit.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Editor commands: indentation of a whole file, and the syntax coloring
+ * damaged region computed after a keystroke
+ * (<code>ClojureTopLevelFormsDamagerImpl/getDamageRegion</code> delegates to
+ * <code>paredit.parser/damaged-region</code>).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EditorBenchmark {
+
+	/** Parse tree after a space has been inserted in the middle of the corpus file */
+	@State(Scope.Benchmark)
+	public static class Edited {
+		public Object parseTree;
+
+		@Setup(Level.Trial)
+		public void setup(Corpus corpus) {
+			parseTree = Fixtures.editAndParse.invoke(corpus.buffer, corpus.middleOffset);
+		}
+	}
+
+	@Benchmark
+	public Object indentSelection(Corpus corpus) {
+		return Fixtures.indentAll.invoke(corpus.parseTree, corpus.buffer, corpus.text);
+	}
+
+	@Benchmark
+	public Object damagedRegion(Corpus corpus, Edited edited) {
+		return Fixtures.damagedRegion.invoke(corpus.parseTree, edited.parseTree,
+				corpus.text.length(), corpus.middleOffset);
+	}
+}
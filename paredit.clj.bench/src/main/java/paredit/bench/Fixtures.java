@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Laurent Petit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Laurent PETIT - initial API and implementation
+ *******************************************************************************/
+package paredit.bench;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+
+/**
+ * The vars of the <code>paredit.bench</code> namespace, called by the benchmarks.
+ */
+final class Fixtures {
+	static {
+		Clojure.var("clojure.core", "require").invoke(Clojure.read("paredit.bench"));
+	}
+
+	static final IFn corpusText = fn("corpus-text");
+	static final IFn newBuffer = fn("new-buffer");
+	static final IFn parseTree = fn("parse-tree");
+	static final IFn parse = fn("parse");
+	static final IFn edit = fn("edit");
+	static final IFn editAndParse = fn("edit-and-parse");
+	static final IFn tokensViewCount = fn("tokens-view-count");
+	static final IFn packedTokensCount = fn("packed-tokens-count");
+	static final IFn rootLoc = fn("root-loc");
+	static final IFn locForOffset = fn("loc-for-offset");
+	static final IFn locPosition = fn("loc-position");
+	static final IFn indentAll = fn("indent-all");
+	static final IFn damagedRegion = fn("damaged-region");
+
+	private static IFn fn(String name) {
+		return Clojure.var("paredit.bench", name);
+	}
+
+	private Fixtures() {}
+}
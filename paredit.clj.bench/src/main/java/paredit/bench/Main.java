@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Laurent Petit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Laurent PETIT - initial API and implementation
+ *******************************************************************************/
+package paredit.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks, writing the results as JSON into
+ * <code>jmh-result.json</code> unless a result format is given on the
+ * command line.
+ */
+public final class Main {
+	public static void main(String[] args) throws Exception {
+		List<String> jmhArgs = new ArrayList<String>(Arrays.asList(args));
+		if (!jmhArgs.contains("-rf")) {
+			jmhArgs.addAll(Arrays.asList("-rf", "json", "-rff", "jmh-result.json"));
+		}
+		org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[jmhArgs.size()]));
+	}
+
+	private Main() {}
+}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Laurent Petit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Laurent PETIT - initial API and implementation
+ *******************************************************************************/
+package paredit.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Walks and position queries over a parse tree, as done by syntax coloring
+ * and by most paredit commands.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseTreeBenchmark {
+
+	@Benchmark
+	public Object tokensView(Corpus corpus) {
+		return Fixtures.tokensViewCount.invoke(corpus.parseTree);
+	}
+
+	@Benchmark
+	public Object packedTokens(Corpus corpus) {
+		return Fixtures.packedTokensCount.invoke(corpus.parseTree);
+	}
+
+	@Benchmark
+	public Object locForOffsetMiddle(Corpus corpus) {
+		return Fixtures.locForOffset.invoke(corpus.rootLoc, corpus.middleOffset);
+	}
+
+	@Benchmark
+	public Object locForOffsetEnd(Corpus corpus) {
+		return Fixtures.locForOffset.invoke(corpus.rootLoc, corpus.endOffset);
+	}
+
+	/** start-offset and loc-col of a leave near the end of the text */
+	@Benchmark
+	public Object locPositionEnd(Corpus corpus) {
+		return Fixtures.locPosition.invoke(corpus.rootLoc, corpus.endOffset);
+	}
+}
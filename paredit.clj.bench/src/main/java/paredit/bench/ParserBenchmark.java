@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Laurent Petit.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Laurent PETIT - initial API and implementation
+ *******************************************************************************/
+package paredit.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing: full parse, and the incremental edits done on each keystroke.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+	@Benchmark
+	public Object fullParse(Corpus corpus) {
+		return Fixtures.parse.invoke(corpus.text);
+	}
+
+	@Benchmark
+	public Object editBuffer(Corpus corpus) {
+		return Fixtures.edit.invoke(corpus.buffer, corpus.middleOffset);
+	}
+
+	@Benchmark
+	public Object editAndParseTree(Corpus corpus) {
+		return Fixtures.editAndParse.invoke(corpus.buffer, corpus.middleOffset);
+	}
+
+	/** Parse tree of an already parsed buffer */
+	@Benchmark
+	public Object bufferParseTree(Corpus corpus) {
+		return Fixtures.parseTree.invoke(corpus.buffer);
+	}
+}
@@ -308,38 +308,48 @@
         (inside-binding loc) ))))
 
 (defn indent-column 
-  "pre-condition: line-offset is already the starting offset of a line"
-  [root-loc line-offset force-two-spaces-indent]
-  (let [loc (loc-for-offset root-loc (dec line-offset))]
+  "pre-condition: line-offset is already the starting offset of a line.
+   col-delta, when provided, is a fn of an offset returning by how many columns
+   the line containing this offset has been shifted since root-loc was parsed
+   (see indent-lines)."
+  ([root-loc line-offset force-two-spaces-indent]
+    (indent-column root-loc line-offset force-two-spaces-indent nil))
+  ([root-loc line-offset force-two-spaces-indent col-delta]
+  (let [loc (loc-for-offset root-loc (dec line-offset))
+        col (if col-delta
+              #(+ (loc-col %) (col-delta (start-offset %)))
+              loc-col)]
     (loop [loc (z/left loc) seen-loc nil indent 0]
       (cond
         (nil? loc)
           indent
         (= :meta-prefix (loc-tag loc))
-          (loc-col loc)
+          (col loc)
         (punct-loc? loc)
           ; we reached the start of the parent form, indent depending on the form's type
           (if (#{"(" "#("} (loc-text loc))
             (cond
               (nil? seen-loc) 
-                (+ (loc-col loc) (loc-count loc) 1)
+                (+ (col loc) (loc-count loc) 1)
               (or force-two-spaces-indent (lisp-form? (loc-text (first seen-loc)))
                   (inline-implementation? (first seen-loc)))
-                (+ (loc-col loc) (loc-count loc) 1)
+                (+ (col loc) (loc-count loc) 1)
               (second seen-loc)
-                (loc-col (second seen-loc))
+                (col (second seen-loc))
               :else 
-                (+ (loc-col loc) (loc-count loc) 1))
-            (+ (loc-col loc) (loc-count loc)))
+                (+ (col loc) (loc-count loc) 1))
+            (+ (col loc) (loc-count loc)))
         (= :whitespace (loc-tag loc))
           ; we see a space
           (if (.contains ^String (loc-text loc) "\n")
             (if seen-loc
-              (+ indent (dec (-> ^String (loc-text loc) (.substring (.lastIndexOf ^String (loc-text loc) "\n")) .length)))
+              (+ indent
+                 (dec (-> ^String (loc-text loc) (.substring (.lastIndexOf ^String (loc-text loc) "\n")) .length))
+                 (if col-delta (col-delta (end-offset loc)) 0))
               (recur (z/left loc) nil 0))
             (recur (z/left loc) seen-loc (+ indent (-> ^String (loc-text loc) .length))))
         :else
-          (recur (z/left loc) (conj seen-loc loc) 0)))))
+          (recur (z/left loc) (conj seen-loc loc) 0))))))
 
 (defn text-selection
   "returns a vector [offset length] from a normalized-selection"
@@ -586,42 +596,57 @@
         r)
       r)))
 
+(defn- line-indent-length
+  "Number of indentation chars (whitespace and commas) of the line starting at line-start"
+  [^String text line-start]
+  (- 
+    (loop [o line-start]
+      (if (>= o (.length text)) 
+        o
+        (let [c (.charAt text o)]
+          (cond
+            (#{\return \newline} c) o ; test CR/LF before .isWhitespace !
+            (Character/isWhitespace c) (recur (inc o))
+            (= \, c) (recur (inc o))
+            :else o))))
+    line-start))
+
+(defn- indented-offset
+  "New value of offset once the cur-indent-col indentation chars of the line
+   starting at line-start have been replaced by indent spaces"
+  [offset line-start cur-indent-col indent]
+  (let [to-add (- indent cur-indent-col)]
+    (cond 
+      (>= offset (+ line-start cur-indent-col)) 
+        (+ offset to-add)
+      (<= offset (+ line-start indent))
+        offset
+      :else
+        (+ offset (max to-add (- line-start offset))))))
+
+(defn- in-string-line?
+  "Does the line starting at line-start start inside a multi-line string?"
+  [rloc line-start]
+  (let [loc (loc-for-offset rloc line-start)]
+    (and (#{:string, :string-body} (loc-tag loc)) (< (start-offset loc) line-start))))
+
 (defn paredit-indent-line
   "common fn: does not call with-important-memoized"
   [{:keys #{parse-tree buffer}} 
    {:keys [^String text offset length] :as t}
    & {:keys [force-two-spaces-indent]}]
   (if-let [rloc (-?> parse-tree (parsed-root-loc true))]
-    (let [line-start (t/line-start text offset)
-          line-stop (t/line-stop text offset)
-          loc (loc-for-offset rloc line-start)]
-      (if (and (#{:string, :string-body} (loc-tag loc)) (< (start-offset loc) line-start))
+    (let [line-start (t/line-start text offset)]
+      (if (in-string-line? rloc line-start)
         t
         (let [indent (indent-column rloc line-start force-two-spaces-indent)
-              cur-indent-col (- 
-                               (loop [o line-start]
-                                 (if (>= o (.length text)) 
-                                   o
-                                   (let [c (.charAt text o)]
-                                     (cond
-                                       (#{\return \newline} c) o ; test CR/LF before .isWhitespace !
-                                       (Character/isWhitespace c) (recur (inc o))
-                                       (= \, c) (recur (inc o))
-                                       :else o))))
-                               line-start)
-              to-add (- indent cur-indent-col)]
-          (cond
-            (zero? to-add) t
-            :else (let [t (update-in t [:modifs] conj {:text (str/repeat " " indent) :offset line-start :length cur-indent-col})
-                        t (update-in t [:text] t/str-replace line-start cur-indent-col (str/repeat " " indent))]
-                    (cond 
-                      (>= offset (+ line-start cur-indent-col)) 
-                        (update-in t [:offset] + to-add)
-                      (<= offset (+ line-start indent))
-                        t
-                      :else
-                        (update-in t [:offset] + (max to-add (- line-start 
-                                                                offset)))))))))
+              cur-indent-col (line-indent-length text line-start)]
+          (if (= indent cur-indent-col)
+            t
+            (-> t
+              (update-in [:modifs] conj {:text (str/repeat " " indent) :offset line-start :length cur-indent-col})
+              (update-in [:text] t/str-replace line-start cur-indent-col (str/repeat " " indent))
+              (assoc :offset (indented-offset offset line-start cur-indent-col indent)))))))
     t))
 
 (defmethod paredit
@@ -638,29 +663,56 @@
   [s start-offset stop-offset]
   (count (re-seq #"\n" (subs s start-offset stop-offset))))
 
-(defn result->input
-  "Given the return value of a paredit call of the form 
-     {:modifs {..} :text .. :length .. :offset ..}, 
-   and the buffer value before the call,
-   return the map {:parse-tree new-parse-tree, :buffer new-buffer}
-   Right now, only works if :modifs has a single element."
-  [t-result buffer]
-  (let [{:keys [text offset length] :or {offset 0 length 0 text ""}} (first (:modifs t-result))
-        new-buffer (edit-buffer buffer offset length text)
-        new-parse-tree (buffer-parse-tree new-buffer 0)]
-    {:parse-tree new-parse-tree
-     :buffer new-buffer}))
-
-(defn indent-line 
-  "Input: {:parse-tree parse-tree :buffer buffer}, t
-   Output: [[new-parse-tree new-buffer] new-t]"
-  [{:keys [pt, buffer] :as pt-buffer} t & {:keys [force-two-spaces-indent]}]
-  (let [t-result (paredit-indent-line
-                   pt-buffer
-                   t
-                   :force-two-spaces-indent force-two-spaces-indent)
-        new-pt-buffer (result->input t-result buffer)]
-    [new-pt-buffer t-result]))
+(defn indent-lines
+  "Indents the line of offset and the nb-lines following ones, in a single
+   pass over the parse tree rooted at rloc.
+   The parse tree is not updated as lines get indented: instead, the column
+   shift of each indented line is remembered, and taken into account when
+   computing the columns of the lines below.
+   Returns {:text new-text :offset new-offset :modif modification}, where
+   modification is a single modification covering all the indented lines."
+  [rloc ^String text offset nb-lines force-two-spaces-indent]
+  (let [sb (StringBuilder. (.length text))
+        first-line-start (t/line-start text offset)]
+    (loop [line-start first-line-start
+           n nb-lines
+           deltas {}     ; line start offset -> column shift of the line
+           copied 0      ; text before this offset has been appended to sb
+           new-offset offset
+           first-change nil]
+      (if (or (neg? n) (nil? line-start))
+        (if (nil? first-change)
+          {:text text
+           :offset new-offset
+           :modif {:offset first-line-start :length 0 :text ""}}
+          (let [new-text (str (.append sb text (int copied) (.length text)))
+                shift (- (.length new-text) (.length text))]
+            {:text new-text
+             :offset new-offset
+             :modif {:offset first-change
+                     :length (- copied first-change)
+                     :text (subs new-text first-change (+ copied shift))}}))
+        (let [next-line-start (t/next-line-start text line-start)
+              first-line? (= line-start first-line-start)]
+          (if (in-string-line? rloc line-start)
+            (recur next-line-start (dec n) deltas copied new-offset first-change)
+            (let [indent (indent-column rloc line-start force-two-spaces-indent
+                           #(get deltas (t/line-start text %) 0))
+                  cur-indent-col (line-indent-length text line-start)
+                  new-offset (if first-line?
+                               (indented-offset offset line-start cur-indent-col indent)
+                               new-offset)]
+              (if (= indent cur-indent-col)
+                (recur next-line-start (dec n) deltas copied new-offset first-change)
+                (do
+                  (.append sb text (int copied) (int line-start))
+                  (.append sb ^String (str/repeat " " indent))
+                  (recur next-line-start
+                         (dec n)
+                         (assoc deltas line-start (- indent cur-indent-col))
+                         (+ line-start cur-indent-col)
+                         new-offset
+                         (or first-change line-start)))))))))))
 
 (defmethod paredit
   :paredit-indent-selection
@@ -670,27 +722,20 @@
    & {:keys [force-two-spaces-indent]}]
   (with-important-memoized 
     (if-let [rloc (-?> parse-tree (parsed-root-loc true))]
-      (let [nb-lines (nb-lines text offset (+ offset length))
-            [pt-b-0 tr-0] (indent-line 
-                            parse-tree-buffer 
-                            (assoc t :length 0) 
-                            :force-two-spaces-indent force-two-spaces-indent)]
+      (let [nb-lines (nb-lines text offset (+ offset length))]
         (if (zero? nb-lines)
-          (assoc tr-0 :length 0)
-          (let [indent-next (fn [[pt-b-0 tr-0]]
-                              (let [next-line-offset (t/next-line-start (:text tr-0) (:offset tr-0))
-                                    [pt-b-1 tr-1] (indent-line
-                                                    pt-b-0
-                                                    (-> tr-0
-                                                      (dissoc :modifs)
-                                                      (assoc :offset next-line-offset))
-                                                    :force-two-spaces-indent force-two-spaces-indent)]
-                                [pt-b-1 (assoc tr-1 :length 0)])) 
-                [pt-b-n tr-n] (nth (iterate indent-next [pt-b-0 tr-0]) nb-lines)]
-            (assoc tr-n
-                   :offset (:offset tr-0)
+          (assoc (paredit-indent-line
+                   parse-tree-buffer
+                   (assoc t :length 0)
+                   :force-two-spaces-indent force-two-spaces-indent)
+                 :length 0)
+          (let [{new-text :text new-offset :offset modif :modif}
+                  (indent-lines rloc text offset nb-lines force-two-spaces-indent)]
+            (assoc t
+                   :text new-text
+                   :offset new-offset
                    :length 0
-                   :modifs [(t/text-diff text (:text tr-n))]))))
+                   :modifs [modif]))))
       t)))
  
 (defmethod paredit
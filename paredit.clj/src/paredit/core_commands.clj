@@ -696,6 +696,8 @@
                 " (foo\n      b|ar\n baz\nq|ux)" " (foo\n   b|ar\n   baz\n   qux)"
                 " (foo\n      b|ar\n baz\nqux\n\nq|ix)" " (foo\n   b|ar\n   baz\n   qux\n   \n   qix)"
                 " |a\na|b" "|a\nab"
+                "(foo\n|(bar a\nb)\nc|)" "(foo\n  |(bar a\n       b)\n  c)"
+                "(foo\n  |(bar a\n       b)\n  c|)" "(foo\n  |(bar a\n       b)\n  c)"
                 }]
      [#"C-j"     :paredit-newline
                {"(ab|cd)" "(ab\n  |cd)"
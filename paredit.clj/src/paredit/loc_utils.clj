@@ -100,21 +100,70 @@
   [loc]
   (and loc (remove z/branch? (take-while (complement nil?) (iterate z/prev (z/prev loc))))))
 
-;; TODO we should be able to locate the offset by first looking at the loc index, 
-;; and then get the :content-cumulative-count, etc.
+;; Offsets are computed from the :content-cumulative-count of the ancestors
+;; of the loc: O(depth) instead of O(number of nodes before the loc).
+;; The cumulative counts of a parent node can only be trusted if the path has
+;; not been changed by zipper edits, hence the fallback to summing the counts
+;; of the left siblings.
+(defn- node-count [n]
+  (if (string? n) (count n) (or (:count n) 0)))
+
 (defn ^:dynamic start-offset [loc]
-  (loop [loc loc offset 0] 
-    (cond
-      (nil? loc) offset
-      :else
-        (if-let [l (z/left loc)]
-          (recur l (+ offset (loc-count l)))
-          (recur (z/up loc) offset)))))
+  (loop [path (second loc) offset 0]
+    (if-not (map? path) ; nil for the root loc, :end for the end loc
+      offset
+      (let [lefts (:l path)
+            cumulative-counts (:content-cumulative-count (peek (:pnodes path)))]
+        (recur
+          (:ppath path)
+          (+ offset
+             (if (or (:changed? path) (nil? cumulative-counts))
+               (reduce + (map node-count lefts))
+               (cumulative-counts (count lefts)))))))))
 
 (defn ^:dynamic end-offset [loc]
   (+ (start-offset loc) (loc-count loc)))
 
-(defn ^:dynamic loc-col [loc]
+(defn- line-starts-index
+  "Sorted int array of the offsets, relative to node, of the lines starting
+   inside the text of node (i.e. following a newline of node)"
+  [node]
+  (let [starts (java.util.ArrayList.)
+        walk (fn walk [offset node]
+               (if (string? node)
+                 (let [^String s node]
+                   (loop [i (.indexOf s (int \newline))]
+                     (when-not (neg? i)
+                       (.add starts (int (+ offset i 1)))
+                       (recur (.indexOf s (int \newline) (int (inc i))))))
+                   (+ offset (.length s)))
+                 (reduce walk offset (:content node))))]
+    (walk 0 node)
+    (int-array starts)))
+
+(def ^:private line-starts-indexes
+  "Line starts indexes of top level nodes.
+   The parse trees built after an edit share the top level nodes which have
+   not been edited, so only the edited ones get indexed again."
+  (java.util.Collections/synchronizedMap (java.util.WeakHashMap.)))
+
+(defn- line-starts [top-level-node]
+  (or (.get ^java.util.Map line-starts-indexes top-level-node)
+      (let [index (line-starts-index top-level-node)]
+        (.put ^java.util.Map line-starts-indexes top-level-node index)
+        index)))
+
+(defn- unchanged-path?
+  "true if no zipper edit has been made along the path of loc, so that its
+   root node is still the one the loc has been created from"
+  [loc]
+  (loop [path (second loc)]
+    (cond
+      (not (map? path)) true
+      (:changed? path) false
+      :else (recur (:ppath path)))))
+
+(defn- walking-loc-col [loc]
   (loop [loc (z/prev loc) col 0]
     (cond
       (nil? loc) 
@@ -126,6 +175,33 @@
       :else
         (recur (z/prev loc) col))))
 
+(defn- top-level-loc
+  "The ancestor of loc (or loc itself) which is a child of the root node"
+  [loc]
+  (loop [loc loc]
+    (let [up (z/up loc)]
+      (if (and up (z/up up))
+        (recur up)
+        loc))))
+
+(defn ^:dynamic loc-col [loc]
+  (let [path (second loc)]
+    (cond
+      (not (map? path))
+        0
+      (unchanged-path? loc)
+        (let [top (top-level-loc loc)
+              offset (- (start-offset loc) (start-offset top))
+              ^ints index (line-starts (z/node top))
+              i (java.util.Arrays/binarySearch index (int offset))
+              i (if (neg? i) (- (- i) 2) i)]
+          (if (neg? i)
+            ;; loc is on the line the top level node starts on
+            (+ offset (walking-loc-col top))
+            (- offset (aget index i))))
+      :else
+        (walking-loc-col loc))))
+
 (defn loc-end-col [loc]
   (let [loc-text (loc-text loc)
         last-nl-idx (.lastIndexOf loc-text "\n")]
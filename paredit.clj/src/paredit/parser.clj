@@ -3,6 +3,7 @@
   (:use clojure.test)
   (:use [clojure.core.incubator :only [-?>]])
   (:use paredit.regex-utils)
+  (:use [paredit.utils :only [bin-search range-contains-in-ex range-contains-ex-in]])
 	(:require [clojure.zip :as zip])
   (:require [net.cgrand.parsley :as p])
   (:require [net.cgrand.parsley.lrplus :as lr+])
@@ -248,6 +249,194 @@
   ([abstract-node t abstract-children]
     (tokens t abstract-children (node-count abstract-node))))
 
+;; Packed tokens: an allocation-free alternative to tokens-view, for
+;; consumers (e.g. syntax coloring) which walk the tokens of big regions.
+;; Each token is encoded in a long:
+;;   bits  0-31 token length
+;;   bits 32-39 token type ordinal (index in packed-token-types)
+;;   bits 40-47 nesting delta, as a signed byte: +1 for a token opening a
+;;              nesting form (the former :nest token is folded in it),
+;;              -1 for a token closing it (the former :unnest token)
+;; A parallel Object array holds, for :symbol tokens, the symbol text taken
+;; from the parse tree leaf, so consumers need not extract it from the document.
+(def packed-token-types
+  [:eof :whitespace :unexpected :open :open-list :close-list :open-fn :close-fn
+   :open-chimera :close-chimera :close-vector :close-map :close-set :open-deref
+   :open-var :meta :reader-literal :string :regex :symbol :other-literals
+   :keyword :int :float :ratio :anon-arg :char :comment])
+
+(def ^:private packed-token-type-ordinal
+  (zipmap packed-token-types (range)))
+
+(defn pack-token
+  ^long [token-type ^long nest-delta ^long length]
+  (bit-or (bit-and length 0xFFFFFFFF)
+          (bit-shift-left (long (packed-token-type-ordinal token-type)) 32)
+          (bit-shift-left (bit-and nest-delta 0xFF) 40)))
+
+(defn packed-token-length ^long [^long token] (bit-and token 0xFFFFFFFF))
+(defn packed-token-type [^long token] (packed-token-types (bit-and (unsigned-bit-shift-right token 32) 0xFF)))
+(defn packed-token-nest-delta ^long [^long token] (long (byte (bit-and (unsigned-bit-shift-right token 40) 0xFF))))
+
+(defn- parse-tree-node-count ^long [node]
+  (if (string? node) (.length ^String node) (long (:count node 0))))
+
+(defn- emit-token!
+  "Append token (and its text, or nil) to the arrays held by buf-holder,
+   growing them geometrically when needed. idx holds the number of tokens written."
+  [^objects buf-holder ^longs idx ^long token text]
+  (let [i (aget idx 0)
+        ^longs buf (aget buf-holder 0)]
+    (when (>= i (alength buf))
+      (let [size (int (max 64 (* 2 (alength buf))))]
+        (aset buf-holder 0 (java.util.Arrays/copyOf buf size))
+        (aset buf-holder 1 (java.util.Arrays/copyOf ^objects (aget buf-holder 1) size))))
+    (aset ^longs (aget buf-holder 0) (int i) token)
+    (aset ^objects (aget buf-holder 1) (int i) text)
+    (aset idx 0 (inc i))
+    nil))
+
+(declare write-packed-tokens)
+
+(defn- write-packed-children [buf-holder idx content start end]
+  (loop [i (long start)]
+    (when (< i end)
+      (write-packed-tokens buf-holder idx (content i))
+      (recur (inc i)))))
+
+(defn- write-packed-balanced [buf-holder idx content token-open token-close nest-delta]
+  (emit-token! buf-holder idx (pack-token token-open nest-delta (parse-tree-node-count (content 0))) nil)
+  (write-packed-children buf-holder idx content 1 (dec (count content)))
+  (emit-token! buf-holder idx (pack-token token-close (- nest-delta) (parse-tree-node-count (peek content))) nil))
+
+(defn- write-packed-unbalanced [buf-holder idx content token-open]
+  (emit-token! buf-holder idx (pack-token token-open 0 (parse-tree-node-count (content 0))) nil)
+  (write-packed-children buf-holder idx content 1 (count content)))
+
+(defn- write-packed-tokens
+  "Walk the parse-tree node and write its packed tokens, mirroring what
+   tokens-view computes from the abstract nodes."
+  [^objects buf-holder ^longs idx node]
+  (if (string? node)
+    (emit-token! buf-holder idx (pack-token :unexpected 0 (.length ^String node)) nil)
+    (let [t (:tag node)
+          content (:content node)
+          cnt (long (:count node 0))
+          ;; compound nodes write their tokens and return nil,
+          ;; single token nodes return their token type
+          token-type
+          (cond
+            (= :whitespace t) :whitespace
+            (= :space t) :whitespace
+            (= :list t) (write-packed-balanced buf-holder idx content :open-list :close-list 1)
+            (= :vector t) (write-packed-balanced buf-holder idx content :open :close-vector 0)
+            (= :map t) (write-packed-balanced buf-holder idx content :open :close-map 0)
+            (= :set t) (write-packed-balanced buf-holder idx content :open :close-set 0)
+            (= :quote t) (write-packed-unbalanced buf-holder idx content :open)
+            (#{:meta :deprecated-meta} t) (write-packed-unbalanced buf-holder idx content :meta)
+            (= :reader-literal t) (let [body (peek content)]
+                                    (emit-token! buf-holder idx (pack-token :reader-literal 0 (- cnt (parse-tree-node-count body))) nil)
+                                    (write-packed-tokens buf-holder idx body))
+            (= :deref t) (write-packed-unbalanced buf-holder idx content :open-deref)
+            (= :syntax-quote t) (write-packed-unbalanced buf-holder idx content :open)
+            (= :var t) (write-packed-unbalanced buf-holder idx content :open-var)
+            (= :fn t) (write-packed-balanced buf-holder idx content :open-fn :close-fn 1)
+            (= :unquote-splicing t) (write-packed-unbalanced buf-holder idx content :open)
+            (= :unquote t) (write-packed-unbalanced buf-holder idx content :open)
+            (= :string t) :string
+            (= :regex t) :regex
+            (= :symbol t) (if (#{"nil" "true" "false"} (content 0)) :other-literals :symbol)
+            (= :keyword t) :keyword
+            (= :int t) :int
+            (= :float t) :float
+            (= :ratio t) :ratio
+            (= :anon-arg t) :anon-arg
+            (= :char t) :char
+            (= :chimera t) (cond
+                             (= "\"" (content 0)) :string
+                             (= "#\"" (content 0)) :regex
+                             :else (write-packed-balanced buf-holder idx content :open-chimera :close-chimera 1))
+            (= :comment t) :comment
+            (= :discard t) :comment
+            (= :net.cgrand.parsley/root t) (do (write-packed-children buf-holder idx content 0 (count content))
+                                               :eof)
+            :else :unexpected)]
+      (when token-type
+        (emit-token! buf-holder idx
+                     (pack-token token-type 0 (if (= :eof token-type) 0 cnt))
+                     (when (= :symbol token-type) (content 0)))))))
+
+(defn packed-tokens
+  "Write the packed tokens of the parse-tree nodes (e.g. a range of top level
+   forms), followed by an :eof token, and the texts of their symbol tokens.
+   buf and texts are reused when they are big enough, so callers can pass back
+   the arrays returned by the previous call.
+   Return [tokens-array texts-array tokens-count]."
+  [^longs buf ^objects texts nodes]
+  (let [buf-holder (if (and buf texts (= (alength buf) (alength texts)))
+                     (object-array [buf texts])
+                     (object-array [(long-array 256) (object-array 256)]))
+        idx (long-array 1)]
+    (doseq [node nodes]
+      (write-packed-tokens buf-holder idx node))
+    (emit-token! buf-holder idx (pack-token :eof 0 0) nil)
+    [(aget buf-holder 0) (aget buf-holder 1) (aget idx 0)]))
+
+;; Top level forms: the children of the root node of a parse tree
+
+(defn- top-level-form-range
+  "[start-offset stop-offset] of the top level form at index idx"
+  [parse-tree idx]
+  (let [offset ((:content-cumulative-count parse-tree) idx)]
+    [offset (+ offset (:count ((:content parse-tree) idx)))]))
+
+(defn top-level-forms-range
+  "[start-index stop-index] of the top level forms of parse-tree which
+   contain the text range starting at offset, of length length.
+   Indexes are nil if not found."
+  [parse-tree offset length]
+  (let [get-count [top-level-form-range (comp count :content)]]
+    [(bin-search get-count parse-tree (partial range-contains-in-ex offset))
+     (bin-search get-count parse-tree (partial range-contains-ex-in (+ offset length)))]))
+
+(defn- top-level-forms-region
+  "[offset length] of the text of the top level forms of parse-tree between
+   start-index and stop-index, both inclusive"
+  [parse-tree start-index stop-index]
+  [((:content-cumulative-count parse-tree) start-index)
+   (reduce + (map :count (subvec (:content parse-tree) start-index (inc stop-index))))])
+
+(defn covering-region
+  "Text region [offset length] of the top level forms of parse-tree which
+   contain the text range starting at offset, of length length, or nil if
+   no top level form is found."
+  [parse-tree offset length]
+  (let [[start-index stop-index] (top-level-forms-range parse-tree offset length)]
+    (when (and start-index stop-index)
+      (top-level-forms-region parse-tree start-index stop-index))))
+
+(defn damaged-region
+  "Text region [offset length] of parse-tree to re-colorize after the text of
+   previous-parse-tree (of length previous-length) had length chars at offset
+   replaced by text-length chars: the region of the top level forms of
+   parse-tree covering the top level forms of previous-parse-tree touched by
+   the change. Returns [0 0] if no top level form is found."
+  [previous-parse-tree parse-tree previous-length offset length text-length]
+  (let [[start-offset previous-region-length]
+          (if previous-parse-tree
+            (let [[start-index stop-index] (top-level-forms-range previous-parse-tree offset length)]
+              (if (and start-index stop-index)
+                (top-level-forms-region previous-parse-tree start-index stop-index)
+                [0 previous-length]))
+            [0 0])
+        [start-index stop-index] (top-level-forms-range
+                                   parse-tree
+                                   start-offset
+                                   (+ previous-region-length text-length (- length)))]
+    (if (and start-index stop-index)
+      (top-level-forms-region parse-tree start-index stop-index)
+      [0 0])))
+
 (defn- proposals [abstract-node pos]
   (-> (abstract-node parse-tree-view) :content (get pos)))
 
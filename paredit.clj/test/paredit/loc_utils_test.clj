@@ -70,3 +70,26 @@
      
        "( |(a\n    b)\n  c)"   " "   "(  |(a\n     b)\n  c)"
        ))
+
+(deftest start-offset-and-loc-col-tests
+  (are [text]
+    (let [locs (take-while (complement z/end?)
+                           (iterate z/next (l/parsed-root-loc (parse text))))]
+      (every? (fn [loc]
+                (let [offset (l/start-offset loc)]
+                  (and
+                    (is (= (subs text offset (+ offset (l/loc-count loc))) (l/loc-text loc)))
+                    (is (= (t/col text offset) (l/loc-col loc))))))
+              locs))
+    ""
+    "a"
+    "(foo bar)\n(baz\n  [qux\n   #{1 2}])"
+    "(defn f\n  \"doc\nstring\" [x]\n  ;; comment\n  (+ x\n     1))\n\n"
+    "(a)\r\n (b\r\n  c)"))
+
+(deftest start-offset-after-edit-tests
+  (let [loc (-> (parse "(a b c)") l/parsed-root-loc z/down z/down z/right
+              (z/replace "abc") z/right z/right)]
+    (is (= "b" (l/loc-text loc)))
+    (is (= 5 (l/start-offset loc)))
+    (is (= 5 (l/loc-col loc)))))
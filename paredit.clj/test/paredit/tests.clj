@@ -125,6 +125,27 @@
        "#foo.bar []" :reader-literal
        "#foo 5" :reader-literal))
 
+(deftest packed-tokens-tests
+  (doseq [s ["(defn foo [x] #(+ % x))"
+             "^{:a 1} #foo [nil true \\a \"s\" #\"r\"] 'x @y #'z ~@w"
+             "(foo #_(bar) ; baz\n 3/4 1.5 :k ::k)"
+             "(defn "
+             "#("]]
+    (let [tree (parse s)
+          [tokens texts n] (packed-tokens nil nil (:content tree))
+          packed (for [i (range n)] (aget ^longs tokens i))]
+      (is (= (->> ((:abstract-node tree) tokens-view)
+               (remove (comp #{:nest :unnest} :token-type))
+               (map (juxt :token-type :token-length)))
+             (map (juxt packed-token-type packed-token-length) packed)))
+      (is (= (count (filter #(= :nest (:token-type %)) ((:abstract-node tree) tokens-view)))
+             (count (filter pos? (map packed-token-nest-delta packed)))))
+      (is (zero? (reduce + (map packed-token-nest-delta packed))))
+      (is (= (->> tree :content (mapcat #(tree-seq map? :content %)) (filter (comp #{:symbol} :tag))
+               (map (comp first :content)) (remove #{"nil" "true" "false"}))
+             (for [i (range n) :when (= :symbol (packed-token-type (aget ^longs tokens i)))]
+               (aget ^objects texts i)))))))
+
 (deftest static-analysis-tests
   (are [text]
        (= "foo" (-?> text u/tree (st/find-namespace)))